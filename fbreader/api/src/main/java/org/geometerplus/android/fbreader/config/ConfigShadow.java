@@ -87,6 +87,7 @@ public final class ConfigShadow extends Config implements ServiceConnection {
         if (myInterface == null) {
             return Collections.emptyList();
         }
+        flush();
         try {
             return myInterface.listGroups();
         } catch (RemoteException e) {
@@ -99,6 +100,7 @@ public final class ConfigShadow extends Config implements ServiceConnection {
         if (myInterface == null) {
             return Collections.emptyList();
         }
+        flush();
         try {
             return myInterface.listNames(group);
         } catch (RemoteException e) {
@@ -108,6 +110,7 @@ public final class ConfigShadow extends Config implements ServiceConnection {
 
     @Override
     public void removeGroup(String name) {
+        flush();
         if (myInterface != null) {
             try {
                 myInterface.removeGroup(name);
@@ -168,6 +171,22 @@ public final class ConfigShadow extends Config implements ServiceConnection {
         }
     }
 
+    @Override
+    protected void setValuesInternal(final List<String> groups, final List<String> names, final List<String> values) {
+        if (myInterface == null) {
+            runOnConnect(new Runnable() {
+                public void run() {
+                    setValuesInternal(groups, names, values);
+                }
+            });
+            return;
+        }
+        try {
+            myInterface.setValues(groups, names, values);
+        } catch (RemoteException e) {
+        }
+    }
+
     @Override
     protected Map<String, String> requestAllValuesForGroupInternal(String group) throws NotAvailableException {
         if (myInterface == null) {
@@ -192,6 +211,37 @@ public final class ConfigShadow extends Config implements ServiceConnection {
         }
     }
 
+    @Override
+    protected Map<String, Map<String, String>> requestAllValuesForGroupsInternal(List<String> groups) throws NotAvailableException {
+        if (myInterface == null) {
+            throw new NotAvailableException("Config is not initialized for " + groups);
+        }
+        try {
+            final Map<String, Map<String, String>> values = new HashMap<String, Map<String, String>>();
+            for (String g : groups) {
+                values.put(g, new HashMap<String, String>());
+            }
+            for (String triple : myInterface.requestAllValuesForGroups(groups)) {
+                final String[] split = triple.split("\000");
+                final Map<String, String> groupValues = values.get(split[0]);
+                if (groupValues == null) {
+                    continue;
+                }
+                switch (split.length) {
+                    case 2:
+                        groupValues.put(split[1], "");
+                        break;
+                    case 3:
+                        groupValues.put(split[1], split[2]);
+                        break;
+                }
+            }
+            return values;
+        } catch (RemoteException e) {
+            throw new NotAvailableException("RemoteException for " + groups);
+        }
+    }
+
     // method from ServiceConnection interface
     public void onServiceConnected(ComponentName name, IBinder service) {
         synchronized (this) {
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.android.fbreader.libraryService;
+
+import org.geometerplus.fbreader.book.AbstractSerializer;
+import org.geometerplus.fbreader.book.BinarySerializer;
+import org.geometerplus.fbreader.book.Book;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Client-side cache of the books returned by the library service, keyed by id,
+ * path and hash. The books are kept as binary snapshots, so every caller gets
+ * its own Book object, as with a service call. Entries are dropped on the book
+ * events broadcast by the service.
+ */
+final class BookCache {
+    private static final int MAX_SIZE = 256;
+
+    private final LinkedHashMap<Long, byte[]> myById =
+            new LinkedHashMap<Long, byte[]>(MAX_SIZE, .75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                    if (size() <= MAX_SIZE) {
+                        return false;
+                    }
+                    removeAliases(eldest.getKey());
+                    return true;
+                }
+            };
+    private final Map<String, Long> myIdByPath = new HashMap<String, Long>();
+    private final Map<String, Long> myIdByHash = new HashMap<String, Long>();
+    // changed on every invalidation; a book requested before is not cached
+    private int myGeneration;
+
+    synchronized boolean isEmpty() {
+        return myById.isEmpty();
+    }
+
+    synchronized int generation() {
+        return myGeneration;
+    }
+
+    synchronized Book getById(long id, AbstractSerializer.BookCreator<Book> creator) {
+        final byte[] data = myById.get(id);
+        return data != null ? BinarySerializer.deserializeBook(data, creator) : null;
+    }
+
+    synchronized Book getByPath(String path, AbstractSerializer.BookCreator<Book> creator) {
+        final Long id = myIdByPath.get(path);
+        return id != null ? getById(id, creator) : null;
+    }
+
+    synchronized Book getByHash(String hash, AbstractSerializer.BookCreator<Book> creator) {
+        final Long id = myIdByHash.get(hash);
+        return id != null ? getById(id, creator) : null;
+    }
+
+    /**
+     * @param generation the value of generation() taken before the book was requested
+     * @param path       the path the book was requested by, or null
+     * @param hash       the hash the book was requested by, or null
+     */
+    synchronized void put(int generation, Book book, String path, String hash) {
+        if (book == null || generation != myGeneration) {
+            return;
+        }
+        final Long id = book.getId();
+        myById.put(id, BinarySerializer.serialize(book));
+        myIdByPath.put(book.getPath(), id);
+        if (path != null) {
+            myIdByPath.put(path, id);
+        }
+        if (hash != null) {
+            myIdByHash.put(hash, id);
+        }
+    }
+
+    synchronized void remove(Book book) {
+        ++myGeneration;
+        if (book == null) {
+            return;
+        }
+        myById.remove(book.getId());
+        removeAliases(book.getId());
+        // a book re-added with the same path gets a new id
+        myIdByPath.remove(book.getPath());
+    }
+
+    synchronized void clear() {
+        ++myGeneration;
+        myById.clear();
+        myIdByPath.clear();
+        myIdByHash.clear();
+    }
+
+    private void removeAliases(Long id) {
+        removeValue(myIdByPath, id);
+        removeValue(myIdByHash, id);
+    }
+
+    private static void removeValue(Map<String, Long> map, Long id) {
+        for (Iterator<Long> it = map.values().iterator(); it.hasNext(); ) {
+            if (id.equals(it.next())) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -32,6 +32,7 @@ import android.os.RemoteException;
 import org.geometerplus.android.fbreader.api.FBReaderIntents;
 import org.geometerplus.fbreader.book.AbstractBookCollection;
 import org.geometerplus.fbreader.book.Author;
+import org.geometerplus.fbreader.book.BinarySerializer;
 import org.geometerplus.fbreader.book.Book;
 import org.geometerplus.fbreader.book.BookEvent;
 import org.geometerplus.fbreader.book.BookQuery;
@@ -52,9 +53,12 @@ import java.util.List;
 
 public class BookCollectionShadow extends AbstractBookCollection<Book> implements ServiceConnection {
     private final List<Runnable> myOnBindActions = new LinkedList<Runnable>();
+    private final BookCache myBookCache = new BookCache();
     private final BroadcastReceiver myReceiver = new BroadcastReceiver() {
         public void onReceive(Context context, Intent intent) {
-            if (!hasListeners()) {
+            if (!hasListeners() && myBookCache.isEmpty()) {
+                // nothing to parse the event for; a book requested meanwhile is not cached
+                myBookCache.clear();
                 return;
             }
 
@@ -62,9 +66,16 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
                 final String type = intent.getStringExtra("type");
                 if (FBReaderIntents.Event.LIBRARY_BOOK.equals(intent.getAction())) {
                     final Book book = SerializerUtil.deserializeBook(intent.getStringExtra("book"), BookCollectionShadow.this);
-                    fireBookEvent(BookEvent.valueOf(type), book);
+                    myBookCache.remove(book);
+                    if (hasListeners()) {
+                        fireBookEvent(BookEvent.valueOf(type), book);
+                    }
                 } else {
-                    fireBuildEvent(Status.valueOf(type));
+                    // the collection is rebuilt
+                    myBookCache.clear();
+                    if (hasListeners()) {
+                        fireBuildEvent(Status.valueOf(type));
+                    }
                 }
             } catch (Exception e) {
                 // ignore
@@ -74,6 +85,8 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
     private volatile Context myContext;
     private volatile LibraryInterface myInterface;
     private volatile long myConnectionTimestamp = -1;
+    // -1 means not negotiated yet
+    private volatile int myProtocolVersion = -1;
 
     public synchronized boolean bindToService(Context context, Runnable onBindAction) {
         if (myInterface != null && context != null && myContext == context) {
@@ -130,7 +143,9 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
         }
         myInterface = null;
         myConnectionTimestamp = -1;
+        myProtocolVersion = -1;
         myContext = null;
+        myBookCache.clear();
     }
 
     public synchronized void reset(boolean force) {
@@ -167,6 +182,11 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
     public List<Book> books(final BookQuery query) {
         return listCall(new ListCallable<Book>() {
             public List<Book> call() throws RemoteException {
+                if (useBinaryProtocol()) {
+                    return BinarySerializer.deserializeBookList(
+                            myInterface.booksBinary(BinarySerializer.serialize(query)), BookCollectionShadow.this
+                    );
+                }
                 return SerializerUtil.deserializeBookList(
                         myInterface.books(SerializerUtil.serialize(query)), BookCollectionShadow.this
                 );
@@ -188,6 +208,11 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
     public List<Book> recentlyAddedBooks(final int count) {
         return listCall(new ListCallable<Book>() {
             public List<Book> call() throws RemoteException {
+                if (useBinaryProtocol()) {
+                    return BinarySerializer.deserializeBookList(
+                            myInterface.recentlyAddedBooksBinary(count), BookCollectionShadow.this
+                    );
+                }
                 return SerializerUtil.deserializeBookList(
                         myInterface.recentlyAddedBooks(count), BookCollectionShadow.this
                 );
@@ -198,6 +223,11 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
     public List<Book> recentlyOpenedBooks(final int count) {
         return listCall(new ListCallable<Book>() {
             public List<Book> call() throws RemoteException {
+                if (useBinaryProtocol()) {
+                    return BinarySerializer.deserializeBookList(
+                            myInterface.recentlyOpenedBooksBinary(count), BookCollectionShadow.this
+                    );
+                }
                 return SerializerUtil.deserializeBookList(
                         myInterface.recentlyOpenedBooks(count), BookCollectionShadow.this
                 );
@@ -210,6 +240,9 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
             return null;
         }
         try {
+            if (useBinaryProtocol()) {
+                return BinarySerializer.deserializeBook(myInterface.getRecentBookBinary(index), this);
+            }
             return SerializerUtil.deserializeBook(myInterface.getRecentBook(index), this);
         } catch (RemoteException e) {
             e.printStackTrace();
@@ -221,8 +254,20 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
         if (myInterface == null) {
             return null;
         }
+        final Book cached = myBookCache.getByPath(path, this);
+        if (cached != null) {
+            return cached;
+        }
+        final int generation = myBookCache.generation();
         try {
-            return SerializerUtil.deserializeBook(myInterface.getBookByFile(path), this);
+            final Book book;
+            if (useBinaryProtocol()) {
+                book = BinarySerializer.deserializeBook(myInterface.getBookByFileBinary(path), this);
+            } else {
+                book = SerializerUtil.deserializeBook(myInterface.getBookByFile(path), this);
+            }
+            myBookCache.put(generation, book, path, null);
+            return book;
         } catch (RemoteException e) {
             return null;
         }
@@ -232,8 +277,20 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
         if (myInterface == null) {
             return null;
         }
+        final Book cached = myBookCache.getById(id, this);
+        if (cached != null) {
+            return cached;
+        }
+        final int generation = myBookCache.generation();
         try {
-            return SerializerUtil.deserializeBook(myInterface.getBookById(id), this);
+            final Book book;
+            if (useBinaryProtocol()) {
+                book = BinarySerializer.deserializeBook(myInterface.getBookByIdBinary(id), this);
+            } else {
+                book = SerializerUtil.deserializeBook(myInterface.getBookById(id), this);
+            }
+            myBookCache.put(generation, book, null, null);
+            return book;
         } catch (RemoteException e) {
             return null;
         }
@@ -254,8 +311,15 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
         if (myInterface == null) {
             return null;
         }
+        final Book cached = myBookCache.getByHash(hash, this);
+        if (cached != null) {
+            return cached;
+        }
+        final int generation = myBookCache.generation();
         try {
-            return SerializerUtil.deserializeBook(myInterface.getBookByHash(hash), this);
+            final Book book = SerializerUtil.deserializeBook(myInterface.getBookByHash(hash), this);
+            myBookCache.put(generation, book, null, hash);
+            return book;
         } catch (RemoteException e) {
             return null;
         }
@@ -325,7 +389,12 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
         if (myInterface == null) {
             return false;
         }
+        // the event comes asynchronously, a following request must not get the old state
+        myBookCache.remove(book);
         try {
+            if (useBinaryProtocol()) {
+                return myInterface.saveBookBinary(BinarySerializer.serialize(book));
+            }
             return myInterface.saveBook(SerializerUtil.serialize(book));
         } catch (RemoteException e) {
             return false;
@@ -345,6 +414,7 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
 
     public synchronized void removeBook(Book book, boolean deleteFromDisk) {
         if (myInterface != null) {
+            myBookCache.remove(book);
             try {
                 myInterface.removeBook(SerializerUtil.serialize(book), deleteFromDisk);
             } catch (RemoteException e) {
@@ -354,6 +424,7 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
 
     public synchronized void addToRecentlyOpened(Book book) {
         if (myInterface != null) {
+            myBookCache.remove(book);
             try {
                 myInterface.addToRecentlyOpened(SerializerUtil.serialize(book));
             } catch (RemoteException e) {
@@ -419,6 +490,7 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
         if (myInterface == null) {
             return;
         }
+        myBookCache.remove(book);
         try {
             myInterface.setHash(SerializerUtil.serialize(book), hash);
         } catch (RemoteException e) {
@@ -508,6 +580,11 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
     public List<Bookmark> bookmarks(final BookmarkQuery query) {
         return listCall(new ListCallable<Bookmark>() {
             public List<Bookmark> call() throws RemoteException {
+                if (useBinaryProtocol()) {
+                    return BinarySerializer.deserializeBookmarkList(
+                            myInterface.bookmarksBinary(BinarySerializer.serialize(query))
+                    );
+                }
                 return SerializerUtil.deserializeBookmarkList(
                         myInterface.bookmarks(SerializerUtil.serialize(query))
                 );
@@ -519,6 +596,12 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
         bindToService(myContext, new Runnable() {
             public void run() {
                 try {
+                    if (useBinaryProtocol()) {
+                        bookmark.update(BinarySerializer.deserializeBookmark(
+                                myInterface.saveBookmarkBinary(BinarySerializer.serialize(bookmark))
+                        ));
+                        return;
+                    }
                     bookmark.update(SerializerUtil.deserializeBookmark(
                             myInterface.saveBookmark(SerializerUtil.serialize(bookmark))
                     ));
@@ -568,6 +651,9 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
     public List<HighlightingStyle> highlightingStyles() {
         return listCall(new ListCallable<HighlightingStyle>() {
             public List<HighlightingStyle> call() throws RemoteException {
+                if (useBinaryProtocol()) {
+                    return BinarySerializer.deserializeStyleList(myInterface.highlightingStylesBinary());
+                }
                 return SerializerUtil.deserializeStyleList(myInterface.highlightingStyles());
             }
         });
@@ -638,6 +724,21 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
         return false;
     }
 
+    /**
+     * Services older than the binary protocol do not know protocolVersion();
+     * an unknown transaction returns 0, and XML is used then.
+     */
+    private synchronized boolean useBinaryProtocol() {
+        if (myProtocolVersion == -1) {
+            try {
+                myProtocolVersion = myInterface.protocolVersion(BinarySerializer.VERSION);
+            } catch (Throwable t) {
+                myProtocolVersion = 0;
+            }
+        }
+        return myProtocolVersion >= 1;
+    }
+
     private synchronized <T> List<T> listCall(ListCallable<T> callable) {
         if (myInterface == null) {
             return Collections.emptyList();
@@ -657,6 +758,9 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
         synchronized (this) {
             myInterface = LibraryInterface.Stub.asInterface(service);
             myConnectionTimestamp = -1;
+            myProtocolVersion = -1;
+            // events could be missed while not connected
+            myBookCache.clear();
         }
 
         final List<Runnable> actions;
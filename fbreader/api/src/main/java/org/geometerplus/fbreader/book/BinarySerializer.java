@@ -0,0 +1,602 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.fbreader.book;
+
+import org.geometerplus.zlibrary.core.util.RationalNumber;
+import org.geometerplus.zlibrary.core.util.ZLColor;
+import org.geometerplus.zlibrary.text.view.ZLTextPosition;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compact length-prefixed form of books, bookmarks, queries and highlighting
+ * styles for the library service interface. A list is written as one block,
+ * so a shelf of books is decoded in a single pass instead of parsing
+ * an XML document per book.
+ *
+ * Every block starts with the format version. The client and the service
+ * agree on the version via LibraryInterface.protocolVersion(); with an older
+ * service (version 0) the client falls back to {@link SerializerUtil}.
+ */
+public abstract class BinarySerializer {
+    public static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte FILTER_EMPTY = 0;
+    private static final byte FILTER_NOT = 1;
+    private static final byte FILTER_AND = 2;
+    private static final byte FILTER_OR = 3;
+    private static final byte FILTER_AUTHOR = 4;
+    private static final byte FILTER_TAG = 5;
+    private static final byte FILTER_LABEL = 6;
+    private static final byte FILTER_SERIES = 7;
+    private static final byte FILTER_PATTERN = 8;
+    private static final byte FILTER_TITLE_PREFIX = 9;
+    private static final byte FILTER_HAS_BOOKMARK = 10;
+    private static final byte FILTER_HAS_PHYSICAL_FILE = 11;
+
+    private BinarySerializer() {
+    }
+
+    private static final class Output extends DataOutputStream {
+        Output() {
+            super(new ByteArrayOutputStream());
+            try {
+                writeByte(VERSION);
+            } catch (IOException e) {
+                // never thrown by ByteArrayOutputStream
+            }
+        }
+
+        void writeString(String s) throws IOException {
+            if (s == null) {
+                writeInt(-1);
+            } else {
+                final byte[] bytes = s.getBytes(UTF8);
+                writeInt(bytes.length);
+                write(bytes);
+            }
+        }
+
+        void writeLongObject(Long value) throws IOException {
+            writeBoolean(value != null);
+            if (value != null) {
+                writeLong(value);
+            }
+        }
+
+        byte[] toByteArray() {
+            return ((ByteArrayOutputStream) out).toByteArray();
+        }
+    }
+
+    private static final class Input extends DataInputStream {
+        Input(byte[] data) throws IOException {
+            super(new ByteArrayInputStream(data));
+            final int version = readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version);
+            }
+        }
+
+        String readString() throws IOException {
+            final int length = readInt();
+            if (length == -1) {
+                return null;
+            }
+            final byte[] bytes = new byte[length];
+            readFully(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        Long readLongObject() throws IOException {
+            return readBoolean() ? readLong() : null;
+        }
+    }
+
+    public static byte[] serialize(BookQuery query) {
+        if (query == null) {
+            return null;
+        }
+        try {
+            final Output out = new Output();
+            out.writeInt(query.Limit);
+            out.writeInt(query.Page);
+            writeFilter(out, query.Filter);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static BookQuery deserializeBookQuery(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            final Input in = new Input(data);
+            final int limit = in.readInt();
+            final int page = in.readInt();
+            return new BookQuery(readFilter(in), limit, page);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public static byte[] serialize(BookmarkQuery query) {
+        if (query == null) {
+            return null;
+        }
+        try {
+            final Output out = new Output();
+            out.writeBoolean(query.Visible);
+            out.writeInt(query.Limit);
+            out.writeInt(query.Page);
+            out.writeBoolean(query.Book != null);
+            if (query.Book != null) {
+                writeBook(out, query.Book);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static BookmarkQuery deserializeBookmarkQuery(byte[] data, AbstractSerializer.BookCreator<? extends AbstractBook> creator) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            final Input in = new Input(data);
+            final boolean visible = in.readBoolean();
+            final int limit = in.readInt();
+            final int page = in.readInt();
+            final AbstractBook book = in.readBoolean() ? readBook(in, creator) : null;
+            return new BookmarkQuery(book, visible, limit, page);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public static byte[] serialize(AbstractBook book) {
+        if (book == null) {
+            return null;
+        }
+        try {
+            final Output out = new Output();
+            writeBook(out, book);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static <B extends AbstractBook> B deserializeBook(byte[] data, AbstractSerializer.BookCreator<B> creator) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            return readBook(new Input(data), creator);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public static byte[] serializeBookList(List<? extends AbstractBook> books) {
+        try {
+            final Output out = new Output();
+            out.writeInt(books.size());
+            for (AbstractBook b : books) {
+                writeBook(out, b);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static <B extends AbstractBook> List<B> deserializeBookList(byte[] data, AbstractSerializer.BookCreator<B> creator) {
+        if (data == null) {
+            return Collections.emptyList();
+        }
+        try {
+            final Input in = new Input(data);
+            final int size = in.readInt();
+            final List<B> books = new ArrayList<B>(size);
+            for (int i = 0; i < size; ++i) {
+                final B b = readBook(in, creator);
+                if (b != null) {
+                    books.add(b);
+                }
+            }
+            return books;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Collections.emptyList();
+        }
+    }
+
+    public static byte[] serialize(Bookmark bookmark) {
+        if (bookmark == null) {
+            return null;
+        }
+        try {
+            final Output out = new Output();
+            writeBookmark(out, bookmark);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static Bookmark deserializeBookmark(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            return readBookmark(new Input(data));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public static byte[] serializeBookmarkList(List<Bookmark> bookmarks) {
+        try {
+            final Output out = new Output();
+            out.writeInt(bookmarks.size());
+            for (Bookmark b : bookmarks) {
+                writeBookmark(out, b);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static List<Bookmark> deserializeBookmarkList(byte[] data) {
+        if (data == null) {
+            return Collections.emptyList();
+        }
+        try {
+            final Input in = new Input(data);
+            final int size = in.readInt();
+            final List<Bookmark> bookmarks = new ArrayList<Bookmark>(size);
+            for (int i = 0; i < size; ++i) {
+                final Bookmark b = readBookmark(in);
+                if (b != null) {
+                    bookmarks.add(b);
+                }
+            }
+            return bookmarks;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Collections.emptyList();
+        }
+    }
+
+    public static byte[] serializeStyleList(List<HighlightingStyle> styles) {
+        try {
+            final Output out = new Output();
+            out.writeInt(styles.size());
+            for (HighlightingStyle s : styles) {
+                final ZLColor bgColor = s.getBackgroundColor();
+                final ZLColor fgColor = s.getForegroundColor();
+                out.writeInt(s.Id);
+                out.writeLong(s.LastUpdateTimestamp);
+                out.writeString(s.getNameOrNull());
+                out.writeInt(bgColor != null ? bgColor.intValue() : -1);
+                out.writeInt(fgColor != null ? fgColor.intValue() : -1);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static List<HighlightingStyle> deserializeStyleList(byte[] data) {
+        if (data == null) {
+            return Collections.emptyList();
+        }
+        try {
+            final Input in = new Input(data);
+            final int size = in.readInt();
+            final List<HighlightingStyle> styles = new ArrayList<HighlightingStyle>(size);
+            for (int i = 0; i < size; ++i) {
+                final int id = in.readInt();
+                final long timestamp = in.readLong();
+                final String name = in.readString();
+                final int bg = in.readInt();
+                final int fg = in.readInt();
+                styles.add(new HighlightingStyle(
+                        id, timestamp, name,
+                        bg != -1 ? new ZLColor(bg) : null,
+                        fg != -1 ? new ZLColor(fg) : null
+                ));
+            }
+            return styles;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Collections.emptyList();
+        }
+    }
+
+    private static void writeFilter(Output out, Filter filter) throws IOException {
+        if (filter instanceof Filter.Empty) {
+            out.writeByte(FILTER_EMPTY);
+        } else if (filter instanceof Filter.Not) {
+            out.writeByte(FILTER_NOT);
+            writeFilter(out, ((Filter.Not) filter).Base);
+        } else if (filter instanceof Filter.And) {
+            out.writeByte(FILTER_AND);
+            writeFilter(out, ((Filter.And) filter).First);
+            writeFilter(out, ((Filter.And) filter).Second);
+        } else if (filter instanceof Filter.Or) {
+            out.writeByte(FILTER_OR);
+            writeFilter(out, ((Filter.Or) filter).First);
+            writeFilter(out, ((Filter.Or) filter).Second);
+        } else if (filter instanceof Filter.ByAuthor) {
+            final Author author = ((Filter.ByAuthor) filter).Author;
+            out.writeByte(FILTER_AUTHOR);
+            out.writeString(author.DisplayName);
+            out.writeString(author.SortKey);
+        } else if (filter instanceof Filter.ByTag) {
+            out.writeByte(FILTER_TAG);
+            writeTag(out, ((Filter.ByTag) filter).Tag);
+        } else if (filter instanceof Filter.ByLabel) {
+            out.writeByte(FILTER_LABEL);
+            out.writeString(((Filter.ByLabel) filter).Label);
+        } else if (filter instanceof Filter.BySeries) {
+            out.writeByte(FILTER_SERIES);
+            out.writeString(((Filter.BySeries) filter).Series.getTitle());
+        } else if (filter instanceof Filter.ByPattern) {
+            out.writeByte(FILTER_PATTERN);
+            out.writeString(((Filter.ByPattern) filter).Pattern);
+        } else if (filter instanceof Filter.ByTitlePrefix) {
+            out.writeByte(FILTER_TITLE_PREFIX);
+            out.writeString(((Filter.ByTitlePrefix) filter).Prefix);
+        } else if (filter instanceof Filter.HasBookmark) {
+            out.writeByte(FILTER_HAS_BOOKMARK);
+        } else if (filter instanceof Filter.HasPhysicalFile) {
+            out.writeByte(FILTER_HAS_PHYSICAL_FILE);
+        } else {
+            throw new RuntimeException("Unsupported filter type: " + filter.getClass());
+        }
+    }
+
+    private static Filter readFilter(Input in) throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+            case FILTER_EMPTY:
+                return new Filter.Empty();
+            case FILTER_NOT:
+                return new Filter.Not(readFilter(in));
+            case FILTER_AND: {
+                final Filter first = readFilter(in);
+                return new Filter.And(first, readFilter(in));
+            }
+            case FILTER_OR: {
+                final Filter first = readFilter(in);
+                return new Filter.Or(first, readFilter(in));
+            }
+            case FILTER_AUTHOR: {
+                final String displayName = in.readString();
+                return new Filter.ByAuthor(new Author(displayName, in.readString()));
+            }
+            case FILTER_TAG:
+                return new Filter.ByTag(readTag(in));
+            case FILTER_LABEL:
+                return new Filter.ByLabel(in.readString());
+            case FILTER_SERIES:
+                return new Filter.BySeries(new Series(in.readString()));
+            case FILTER_PATTERN:
+                return new Filter.ByPattern(in.readString());
+            case FILTER_TITLE_PREFIX:
+                return new Filter.ByTitlePrefix(in.readString());
+            case FILTER_HAS_BOOKMARK:
+                return new Filter.HasBookmark();
+            case FILTER_HAS_PHYSICAL_FILE:
+                return new Filter.HasPhysicalFile();
+            default:
+                throw new IOException("Unknown filter type " + type);
+        }
+    }
+
+    private static void writeTag(Output out, Tag tag) throws IOException {
+        int depth = 0;
+        for (Tag t = tag; t != null; t = t.Parent) {
+            ++depth;
+        }
+        final String[] names = new String[depth];
+        for (Tag t = tag; t != null; t = t.Parent) {
+            names[--depth] = t.Name;
+        }
+        out.writeInt(names.length);
+        for (String n : names) {
+            out.writeString(n);
+        }
+    }
+
+    private static Tag readTag(Input in) throws IOException {
+        final String[] names = new String[in.readInt()];
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = in.readString();
+        }
+        return Tag.getTag(names);
+    }
+
+    private static void writeBook(Output out, AbstractBook book) throws IOException {
+        out.writeLong(book.getId());
+        out.writeInt(book.myChangedInfo);
+        out.writeString("file://" + book.getPath());
+        out.writeString(book.getTitle());
+        out.writeString(book.getEncodingNoDetection());
+        out.writeString(book.getLanguage());
+
+        final List<UID> uids = book.uids();
+        out.writeInt(uids.size());
+        for (UID uid : uids) {
+            out.writeString(uid.Type);
+            out.writeString(uid.Id);
+        }
+
+        final List<Author> authors = book.authors();
+        out.writeInt(authors.size());
+        for (Author author : authors) {
+            out.writeString(author.DisplayName);
+            out.writeString(author.SortKey);
+        }
+
+        final List<Tag> tags = book.tags();
+        out.writeInt(tags.size());
+        for (Tag tag : tags) {
+            writeTag(out, tag);
+        }
+
+        final List<Label> labels = book.labels();
+        out.writeInt(labels.size());
+        for (Label label : labels) {
+            out.writeString(label.Uid);
+            out.writeString(label.Name);
+        }
+
+        final SeriesInfo seriesInfo = book.getSeriesInfo();
+        out.writeString(seriesInfo != null ? seriesInfo.Series.getTitle() : null);
+        out.writeString(seriesInfo != null && seriesInfo.Index != null ? seriesInfo.Index.toPlainString() : null);
+
+        out.writeBoolean(book.HasBookmark);
+
+        final RationalNumber progress = book.getProgress();
+        out.writeBoolean(progress != null);
+        if (progress != null) {
+            out.writeLong(progress.Numerator);
+            out.writeLong(progress.Denominator);
+        }
+    }
+
+    private static <B extends AbstractBook> B readBook(Input in, AbstractSerializer.BookCreator<B> creator) throws IOException {
+        final long id = in.readLong();
+        final int changedInfo = in.readInt();
+        final String url = in.readString();
+        final String title = in.readString();
+        final String encoding = in.readString();
+        final String language = in.readString();
+        final B book = creator.createBook(id, url, title, encoding, language);
+
+        for (int count = in.readInt(); count > 0; --count) {
+            final String type = in.readString();
+            book.addUidWithNoCheck(new UID(type, in.readString()));
+        }
+        for (int count = in.readInt(); count > 0; --count) {
+            final String displayName = in.readString();
+            book.addAuthorWithNoCheck(new Author(displayName, in.readString()));
+        }
+        for (int count = in.readInt(); count > 0; --count) {
+            book.addTagWithNoCheck(readTag(in));
+        }
+        for (int count = in.readInt(); count > 0; --count) {
+            final String uid = in.readString();
+            book.addLabelWithNoCheck(new Label(uid, in.readString()));
+        }
+        final String seriesTitle = in.readString();
+        book.setSeriesInfoWithNoCheck(seriesTitle, in.readString());
+        book.HasBookmark = in.readBoolean();
+        if (in.readBoolean()) {
+            final long numerator = in.readLong();
+            book.setProgressWithNoCheck(RationalNumber.create(numerator, in.readLong()));
+        }
+        book.myChangedInfo = changedInfo;
+        return book;
+    }
+
+    private static void writeBookmark(Output out, Bookmark bookmark) throws IOException {
+        out.writeLong(bookmark.getId());
+        out.writeString(bookmark.Uid);
+        out.writeString(bookmark.getVersionUid());
+        out.writeLong(bookmark.BookId);
+        out.writeString(bookmark.BookTitle);
+        out.writeString(bookmark.getText());
+        out.writeString(bookmark.getOriginalText());
+        out.writeLong(bookmark.CreationTimestamp);
+        out.writeLongObject(bookmark.getTimestamp(Bookmark.DateType.Modification));
+        out.writeLongObject(bookmark.getTimestamp(Bookmark.DateType.Access));
+        out.writeString(bookmark.ModelId);
+        out.writeInt(bookmark.getParagraphIndex());
+        out.writeInt(bookmark.getElementIndex());
+        out.writeInt(bookmark.getCharIndex());
+        final ZLTextPosition end = bookmark.getEnd();
+        if (end != null) {
+            out.writeInt(end.getParagraphIndex());
+            out.writeInt(end.getElementIndex());
+            out.writeInt(end.getCharIndex());
+        } else {
+            out.writeInt(bookmark.getLength());
+            out.writeInt(-1);
+            out.writeInt(-1);
+        }
+        out.writeBoolean(bookmark.IsVisible);
+        out.writeInt(bookmark.getStyleId());
+    }
+
+    private static Bookmark readBookmark(Input in) throws IOException {
+        final long id = in.readLong();
+        final String uid = in.readString();
+        final String versionUid = in.readString();
+        final long bookId = in.readLong();
+        final String bookTitle = in.readString();
+        final String text = in.readString();
+        final String originalText = in.readString();
+        final long creationTimestamp = in.readLong();
+        final Long modificationTimestamp = in.readLongObject();
+        final Long accessTimestamp = in.readLongObject();
+        final String modelId = in.readString();
+        final int startParagraphIndex = in.readInt();
+        final int startElementIndex = in.readInt();
+        final int startCharIndex = in.readInt();
+        final int endParagraphIndex = in.readInt();
+        final int endElementIndex = in.readInt();
+        final int endCharIndex = in.readInt();
+        final boolean isVisible = in.readBoolean();
+        final int styleId = in.readInt();
+        return new Bookmark(
+                id, uid, versionUid,
+                bookId, bookTitle, text != null ? text : "", originalText,
+                creationTimestamp, modificationTimestamp, accessTimestamp,
+                modelId,
+                startParagraphIndex, startElementIndex, startCharIndex,
+                endParagraphIndex, endElementIndex, endCharIndex,
+                isVisible,
+                styleId
+        );
+    }
+}
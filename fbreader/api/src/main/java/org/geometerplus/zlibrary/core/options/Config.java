@@ -19,19 +19,42 @@
 
 package org.geometerplus.zlibrary.core.options;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public abstract class Config {
+    // option changes are written in one batch if they come within this period
+    private static final long WRITE_DELAY_MS = 500;
+
     private static Config ourInstance;
     private final String myNullString = new String("__NULL__");
     private final Map<StringPair, String> myCache =
             Collections.synchronizedMap(new HashMap<StringPair, String>());
     private final Set<String> myCachedGroups = new HashSet<String>();
+    // IPC round-trips made on behalf of each group, for startup diagnostics
+    private final Map<String, Integer> myRoundTripsByGroup = new HashMap<String, Integer>();
+    private int myRoundTrips;
+    // write-behind queue; the last value for an option wins, myNullString means unset
+    private final Map<StringPair, String> myPendingWrites = new LinkedHashMap<StringPair, String>();
+    private ScheduledExecutorService myWriter;
+    private boolean myIsFlushScheduled;
+    // keeps concurrent flushes from writing batches out of order
+    private final Object myFlushLock = new Object();
+    private final Runnable myFlushRunnable = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
 
     protected Config() {
         ourInstance = this;
@@ -52,6 +75,7 @@ public abstract class Config {
                 } catch (NotAvailableException e) {
                     return defaultValue;
                 }
+                countRoundTrip(Collections.singletonList(id.Group));
                 if (value == null) {
                     value = myNullString;
                 }
@@ -67,7 +91,7 @@ public abstract class Config {
             return;
         }
         myCache.put(id, value);
-        setValueInternal(id.Group, id.Name, value);
+        scheduleWrite(id, value);
     }
 
     public final void requestAllValuesForGroup(String group) {
@@ -81,6 +105,7 @@ public abstract class Config {
             } catch (NotAvailableException e) {
                 return;
             }
+            countRoundTrip(Collections.singletonList(group));
             for (Map.Entry<String, String> entry : values.entrySet()) {
                 setToCache(group, entry.getKey(), entry.getValue());
             }
@@ -88,13 +113,142 @@ public abstract class Config {
         }
     }
 
+    /**
+     * Same as requestAllValuesForGroup() for each of the groups,
+     * but fetches all the groups that are not cached yet at once.
+     */
+    public final void requestAllValuesForGroups(String... groups) {
+        synchronized (myCachedGroups) {
+            final List<String> toRequest = new ArrayList<String>(groups.length);
+            for (String g : groups) {
+                if (!myCachedGroups.contains(g) && !toRequest.contains(g)) {
+                    toRequest.add(g);
+                }
+            }
+            if (toRequest.isEmpty()) {
+                return;
+            }
+            final Map<String, Map<String, String>> values;
+            try {
+                values = requestAllValuesForGroupsInternal(toRequest);
+            } catch (NotAvailableException e) {
+                return;
+            }
+            countRoundTrip(toRequest);
+            for (String g : toRequest) {
+                final Map<String, String> groupValues = values.get(g);
+                if (groupValues != null) {
+                    for (Map.Entry<String, String> entry : groupValues.entrySet()) {
+                        setToCache(g, entry.getKey(), entry.getValue());
+                    }
+                }
+                myCachedGroups.add(g);
+            }
+        }
+    }
+
+    private void countRoundTrip(List<String> groups) {
+        synchronized (myRoundTripsByGroup) {
+            ++myRoundTrips;
+            for (String g : groups) {
+                final Integer count = myRoundTripsByGroup.get(g);
+                myRoundTripsByGroup.put(g, count != null ? count + 1 : 1);
+            }
+        }
+    }
+
+    /**
+     * @return number of successful IPC round-trips made to read option
+     * values since start or since the last resetRoundTripStatistics() call
+     */
+    public final int roundTrips() {
+        synchronized (myRoundTripsByGroup) {
+            return myRoundTrips;
+        }
+    }
+
+    /**
+     * @return per-group numbers of read round-trips; a request
+     * for several groups is counted for each of them
+     */
+    public final Map<String, Integer> roundTripsByGroup() {
+        synchronized (myRoundTripsByGroup) {
+            return new HashMap<String, Integer>(myRoundTripsByGroup);
+        }
+    }
+
+    public final void resetRoundTripStatistics() {
+        synchronized (myRoundTripsByGroup) {
+            myRoundTrips = 0;
+            myRoundTripsByGroup.clear();
+        }
+    }
+
     public final void unsetValue(StringPair id) {
         myCache.put(id, myNullString);
-        unsetValueInternal(id.Group, id.Name);
+        scheduleWrite(id, myNullString);
     }
 
     protected final void setToCache(String group, String name, String value) {
-        myCache.put(new StringPair(group, name), value != null ? value : myNullString);
+        final StringPair id = new StringPair(group, name);
+        synchronized (myPendingWrites) {
+            // a value that is not written yet is newer than the stored one
+            if (myPendingWrites.containsKey(id)) {
+                return;
+            }
+            myCache.put(id, value != null ? value : myNullString);
+        }
+    }
+
+    private void scheduleWrite(StringPair id, String value) {
+        synchronized (myPendingWrites) {
+            myPendingWrites.remove(id);
+            myPendingWrites.put(id, value);
+            if (myIsFlushScheduled) {
+                return;
+            }
+            if (myWriter == null) {
+                myWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, "Config.write");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            myWriter.schedule(myFlushRunnable, WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+            myIsFlushScheduled = true;
+        }
+    }
+
+    /**
+     * Writes the pending option changes at once; should be called
+     * when the application is paused or finished.
+     */
+    public final void flush() {
+        synchronized (myFlushLock) {
+            final List<String> groups;
+            final List<String> names;
+            final List<String> values;
+            synchronized (myPendingWrites) {
+                myIsFlushScheduled = false;
+                if (myPendingWrites.isEmpty()) {
+                    return;
+                }
+                final int size = myPendingWrites.size();
+                groups = new ArrayList<String>(size);
+                names = new ArrayList<String>(size);
+                values = new ArrayList<String>(size);
+                for (Map.Entry<StringPair, String> entry : myPendingWrites.entrySet()) {
+                    final String value = entry.getValue();
+                    groups.add(entry.getKey().Group);
+                    names.add(entry.getKey().Name);
+                    values.add(value != myNullString ? value : null);
+                }
+                myPendingWrites.clear();
+            }
+            setValuesInternal(groups, names, values);
+        }
     }
 
     public abstract boolean isInitialized();
@@ -121,8 +275,34 @@ public abstract class Config {
 
     protected abstract void unsetValueInternal(String group, String name);
 
+    /**
+     * Writes several option changes; null value means the option is unset.
+     * Implementations that can do it in one transaction should override this method.
+     */
+    protected void setValuesInternal(List<String> groups, List<String> names, List<String> values) {
+        for (int i = 0; i < groups.size(); ++i) {
+            final String value = values.get(i);
+            if (value != null) {
+                setValueInternal(groups.get(i), names.get(i), value);
+            } else {
+                unsetValueInternal(groups.get(i), names.get(i));
+            }
+        }
+    }
+
     protected abstract Map<String, String> requestAllValuesForGroupInternal(String group) throws NotAvailableException;
 
+    /**
+     * Implementations that can fetch several groups in one request should override this method.
+     */
+    protected Map<String, Map<String, String>> requestAllValuesForGroupsInternal(List<String> groups) throws NotAvailableException {
+        final Map<String, Map<String, String>> values = new HashMap<String, Map<String, String>>();
+        for (String g : groups) {
+            values.put(g, requestAllValuesForGroupInternal(g));
+        }
+        return values;
+    }
+
     protected final static class NotAvailableException extends Exception {
         public NotAvailableException(String message) {
             super(message);
@@ -38,6 +38,7 @@ import android.view.Window;
 import android.view.WindowManager;
 import android.widget.RelativeLayout;
 
+import org.LogUtils;
 import org.geometerplus.android.fbreader.api.ApiListener;
 import org.geometerplus.android.fbreader.api.ApiServerImplementation;
 import org.geometerplus.android.fbreader.api.FBReaderIntents;
@@ -72,6 +73,8 @@ import org.geometerplus.zlibrary.core.library.ZLibrary;
 import org.geometerplus.zlibrary.core.options.Config;
 import org.geometerplus.zlibrary.core.resources.ZLResource;
 import org.geometerplus.zlibrary.core.view.ZLViewWidget;
+import org.geometerplus.zlibrary.text.model.ZLTextMark;
+import org.geometerplus.zlibrary.text.model.ZLTextSearchTask;
 import org.geometerplus.zlibrary.text.view.ZLTextRegion;
 import org.geometerplus.zlibrary.text.view.ZLTextView;
 import org.geometerplus.zlibrary.ui.android.R;
@@ -87,11 +90,17 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 public final class FBReader extends FBReaderMainActivity implements ZLApplicationWindow {
     public static final int RESULT_DO_NOTHING = RESULT_FIRST_USER;
     public static final int RESULT_REPAINT = RESULT_FIRST_USER + 1;
     private static final String PLUGIN_ACTION_PREFIX = "___";
+    // option groups read while the reader screen is starting; fetched in one request
+    private static final String[] STARTUP_OPTION_GROUPS = {
+            "Options", "Style", "LookNFeel", "Fonts", "Colors", "Files", "Scrolling", "Sync"
+    };
+    private static boolean ourConfigStatisticsLogged;
     final DataService.Connection DataConnection = new DataService.Connection();
     private final FBReaderApp.Notifier myNotifier = new AppNotifier(this);
     private final List<PluginApi.ActionInfo> myPluginActions =
@@ -257,12 +266,7 @@ public final class FBReader extends FBReaderMainActivity implements ZLApplicatio
         final Config config = Config.Instance();
         config.runOnConnect(new Runnable() {
             public void run() {
-                config.requestAllValuesForGroup("Options");
-                config.requestAllValuesForGroup("Style");
-                config.requestAllValuesForGroup("LookNFeel");
-                config.requestAllValuesForGroup("Fonts");
-                config.requestAllValuesForGroup("Colors");
-                config.requestAllValuesForGroup("Files");
+                config.requestAllValuesForGroups(STARTUP_OPTION_GROUPS);
             }
         });
 
@@ -420,7 +424,27 @@ public final class FBReader extends FBReaderMainActivity implements ZLApplicatio
                     final TextSearchPopup popup = (TextSearchPopup) myFBReaderApp.getPopupById(TextSearchPopup.ID);
                     popup.initPosition();
                     myFBReaderApp.MiscOptions.TextSearchPattern.setValue(pattern);
-                    if (myFBReaderApp.getTextView().search(pattern, true, false, false, false) != 0) {
+                    // the search goes on in background; wait for the first match only
+                    final CountDownLatch firstResult = new CountDownLatch(1);
+                    final ZLTextSearchTask task = myFBReaderApp.getTextView().startSearch(
+                            pattern, true, false, false, new ZLTextSearchTask.Listener() {
+                                public void onMarksFound(List<ZLTextMark> marks) {
+                                    firstResult.countDown();
+                                }
+
+                                public void onSearchFinished(int count) {
+                                    firstResult.countDown();
+                                }
+                            }
+                    );
+                    if (task != null) {
+                        try {
+                            firstResult.await();
+                        } catch (InterruptedException e) {
+                            task.cancel();
+                        }
+                    }
+                    if (!myFBReaderApp.getTextView().findResultsAreEmpty()) {
                         runOnUiThread(new Runnable() {
                             public void run() {
                                 myFBReaderApp.showPopup(popup.getId());
@@ -545,6 +569,7 @@ public final class FBReader extends FBReaderMainActivity implements ZLApplicatio
                 if (getZLibrary().DisableButtonLightsOption.getValue()) {
                     setButtonLight(false);
                 }
+                logConfigStatistics();
 
                 getCollection().bindToService(FBReader.this, new Runnable() {
                     public void run() {
@@ -611,6 +636,18 @@ public final class FBReader extends FBReaderMainActivity implements ZLApplicatio
         ApiServerImplementation.sendEvent(this, ApiListener.EVENT_READ_MODE_OPENED);
     }
 
+    private static void logConfigStatistics() {
+        if (!LogUtils.DEBUG || ourConfigStatisticsLogged) {
+            return;
+        }
+        ourConfigStatisticsLogged = true;
+        final Config config = Config.Instance();
+        LogUtils.d(
+                "FBReader.Config",
+                "launch: " + config.roundTrips() + " round-trips, per group: " + config.roundTripsByGroup()
+        );
+    }
+
     @Override
     protected void onPause() {
         SyncOperations.quickSync(this, myFBReaderApp.SyncOptions);
@@ -632,6 +669,7 @@ public final class FBReader extends FBReaderMainActivity implements ZLApplicatio
             setButtonLight(true);
         }
         myFBReaderApp.onWindowClosing();
+        Config.Instance().flush();
 
         super.onPause();
     }
@@ -645,6 +683,7 @@ public final class FBReader extends FBReaderMainActivity implements ZLApplicatio
 
     @Override
     protected void onDestroy() {
+        Config.Instance().flush();
         getCollection().unbind();
         unbindService(DataConnection);
         super.onDestroy();
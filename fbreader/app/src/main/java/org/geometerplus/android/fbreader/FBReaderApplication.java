@@ -19,7 +19,16 @@
 
 package org.geometerplus.android.fbreader;
 
+import org.geometerplus.fbreader.Paths;
+import org.geometerplus.zlibrary.core.network.ZLNetworkManager;
+import org.geometerplus.zlibrary.text.hyphenation.ZLTextHyphenator;
 import org.geometerplus.zlibrary.ui.android.library.ZLAndroidApplication;
 
 public class FBReaderApplication extends ZLAndroidApplication {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        ZLTextHyphenator.enablePatternCache(Paths.systemInfo(this));
+        ZLNetworkManager.Instance().enableHttpCache(Paths.systemInfo(this));
+    }
 }
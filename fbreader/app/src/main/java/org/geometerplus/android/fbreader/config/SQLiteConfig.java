@@ -139,6 +139,31 @@ final class SQLiteConfig extends ConfigInterface.Stub {
         }
     }
 
+    @Override
+    synchronized public List<String> requestAllValuesForGroups(List<String> groups) {
+        final List<String> triples = new LinkedList<String>();
+        if (groups.isEmpty()) {
+            return triples;
+        }
+        final StringBuilder query = new StringBuilder("SELECT groupName,name,value FROM config WHERE groupName IN (");
+        for (int i = 0; i < groups.size(); ++i) {
+            query.append(i == 0 ? "?" : ",?");
+        }
+        query.append(")");
+        try {
+            final Cursor cursor = myDatabase.rawQuery(
+                    query.toString(), groups.toArray(new String[groups.size()])
+            );
+            while (cursor.moveToNext()) {
+                triples.add(cursor.getString(0) + "\000" + cursor.getString(1) + "\000" + cursor.getString(2));
+            }
+            cursor.close();
+            return triples;
+        } catch (SQLException e) {
+            return Collections.emptyList();
+        }
+    }
+
     @Override
     synchronized public String getValue(String group, String name) {
         myGetValueStatement.bindString(1, group);
@@ -173,6 +198,35 @@ final class SQLiteConfig extends ConfigInterface.Stub {
         }
     }
 
+    @Override
+    synchronized public void setValues(List<String> groups, List<String> names, List<String> values) {
+        final int size = groups.size();
+        myDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < size; ++i) {
+                final String value = values.get(i);
+                if (value != null) {
+                    mySetValueStatement.bindString(1, groups.get(i));
+                    mySetValueStatement.bindString(2, names.get(i));
+                    mySetValueStatement.bindString(3, value);
+                    mySetValueStatement.execute();
+                } else {
+                    myUnsetValueStatement.bindString(1, groups.get(i));
+                    myUnsetValueStatement.bindString(2, names.get(i));
+                    myUnsetValueStatement.execute();
+                }
+            }
+            myDatabase.setTransactionSuccessful();
+        } catch (SQLException e) {
+            return;
+        } finally {
+            myDatabase.endTransaction();
+        }
+        for (int i = 0; i < size; ++i) {
+            sendChangeEvent(groups.get(i), names.get(i), values.get(i));
+        }
+    }
+
     private void sendChangeEvent(String group, String name, String value) {
         myService.sendBroadcast(
                 new Intent(FBReaderIntents.Event.CONFIG_OPTION_CHANGE)
@@ -22,7 +22,6 @@ package org.geometerplus.android.fbreader.libraryService;
 import android.app.Service;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.os.FileObserver;
 import android.os.IBinder;
 
 import org.geometerplus.android.fbreader.api.FBReaderIntents;
@@ -30,6 +29,7 @@ import org.geometerplus.android.fbreader.httpd.DataService;
 import org.geometerplus.android.fbreader.httpd.DataUtil;
 import org.geometerplus.fbreader.Paths;
 import org.geometerplus.fbreader.book.Author;
+import org.geometerplus.fbreader.book.BinarySerializer;
 import org.geometerplus.fbreader.book.BookCollection;
 import org.geometerplus.fbreader.book.BookEvent;
 import org.geometerplus.fbreader.book.BookUtil;
@@ -44,7 +44,6 @@ import org.geometerplus.zlibrary.core.options.Config;
 import org.geometerplus.zlibrary.text.view.ZLTextPositionWithTimestamp;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
 public class LibraryService extends Service {
@@ -94,54 +93,14 @@ public class LibraryService extends Service {
             myLibrary = null;
             l.deactivate();
         }
+        // option writes are delayed; this process has no activity to flush them
+        Config.Instance().flush();
         super.onDestroy();
     }
 
-    private static final class Observer extends FileObserver {
-        private static final int MASK =
-                MOVE_SELF | MOVED_TO | MOVED_FROM | DELETE_SELF | DELETE | CLOSE_WRITE | ATTRIB;
-
-        private final String myPrefix;
-        private final BookCollection myCollection;
-
-        public Observer(String path, BookCollection collection) {
-            super(path, MASK);
-            myPrefix = path + '/';
-            myCollection = collection;
-        }
-
-        @Override
-        public void onEvent(int event, String path) {
-            event = event & ALL_EVENTS;
-            System.err.println("Event " + event + " on " + path);
-            switch (event) {
-                case MOVE_SELF:
-                    // TODO: File(path) removed; stop watching (?)
-                    break;
-                case MOVED_TO:
-                    myCollection.rescan(myPrefix + path);
-                    break;
-                case MOVED_FROM:
-                case DELETE:
-                    myCollection.rescan(myPrefix + path);
-                    break;
-                case DELETE_SELF:
-                    // TODO: File(path) removed; watching is stopped automatically (?)
-                    break;
-                case CLOSE_WRITE:
-                case ATTRIB:
-                    myCollection.rescan(myPrefix + path);
-                    break;
-                default:
-                    System.err.println("Unexpected event " + event + " on " + myPrefix + path);
-                    break;
-            }
-        }
-    }
-
     public final class LibraryImplementation extends LibraryInterface.Stub {
         private final BooksDatabase myDatabase;
-        private final List<FileObserver> myFileObservers = new LinkedList<FileObserver>();
+        private LibraryWatcher myWatcher;
         private BookCollection myCollection;
 
         LibraryImplementation(BooksDatabase db) {
@@ -170,16 +129,12 @@ public class LibraryService extends Service {
             }
 
             deactivate();
-            myFileObservers.clear();
 
             myCollection = new BookCollection(
                     Paths.systemInfo(LibraryService.this), myDatabase, bookDirectories
             );
-            for (String dir : bookDirectories) {
-                final Observer observer = new Observer(dir, myCollection);
-                observer.startWatching();
-                myFileObservers.add(observer);
-            }
+            myWatcher = new LibraryWatcher(myCollection);
+            myWatcher.start(bookDirectories);
 
             myCollection.addListener(new BookCollection.Listener<DbBook>() {
                 public void onBookEvent(BookEvent event, DbBook book) {
@@ -199,8 +154,9 @@ public class LibraryService extends Service {
         }
 
         public void deactivate() {
-            for (FileObserver observer : myFileObservers) {
-                observer.stopWatching();
+            if (myWatcher != null) {
+                myWatcher.stop();
+                myWatcher = null;
             }
         }
 
@@ -463,5 +419,55 @@ public class LibraryService extends Service {
                 return false;
             }
         }
+
+        public int protocolVersion(int clientVersion) {
+            return Math.min(clientVersion, BinarySerializer.VERSION);
+        }
+
+        public byte[] booksBinary(byte[] query) {
+            return BinarySerializer.serializeBookList(
+                    myCollection.books(BinarySerializer.deserializeBookQuery(query))
+            );
+        }
+
+        public byte[] recentlyAddedBooksBinary(int count) {
+            return BinarySerializer.serializeBookList(myCollection.recentlyAddedBooks(count));
+        }
+
+        public byte[] recentlyOpenedBooksBinary(int count) {
+            return BinarySerializer.serializeBookList(myCollection.recentlyOpenedBooks(count));
+        }
+
+        public byte[] getBookByIdBinary(long id) {
+            return BinarySerializer.serialize(myCollection.getBookById(id));
+        }
+
+        public byte[] getBookByFileBinary(String path) {
+            return BinarySerializer.serialize(myCollection.getBookByFile(path));
+        }
+
+        public byte[] getRecentBookBinary(int index) {
+            return BinarySerializer.serialize(myCollection.getRecentBook(index));
+        }
+
+        public boolean saveBookBinary(byte[] book) {
+            return myCollection.saveBook(BinarySerializer.deserializeBook(book, myCollection));
+        }
+
+        public byte[] bookmarksBinary(byte[] query) {
+            return BinarySerializer.serializeBookmarkList(myCollection.bookmarks(
+                    BinarySerializer.deserializeBookmarkQuery(query, myCollection)
+            ));
+        }
+
+        public byte[] saveBookmarkBinary(byte[] serialized) {
+            final Bookmark bookmark = BinarySerializer.deserializeBookmark(serialized);
+            myCollection.saveBookmark(bookmark);
+            return BinarySerializer.serialize(bookmark);
+        }
+
+        public byte[] highlightingStylesBinary() {
+            return BinarySerializer.serializeStyleList(myCollection.highlightingStyles());
+        }
     }
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.android.fbreader.libraryService;
+
+import android.os.FileObserver;
+
+import org.geometerplus.fbreader.book.BookCollection;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the book directories including all the subdirectories (FileObserver
+ * is not recursive, so there is an observer per directory). The changes are
+ * collected until the file system has been quiet for a while, and the whole
+ * burst (e.g. copying a folder of books) is passed to the collection as one rescan.
+ */
+final class LibraryWatcher {
+    private static final int MASK =
+            FileObserver.CREATE | FileObserver.MOVE_SELF | FileObserver.MOVED_TO | FileObserver.MOVED_FROM |
+            FileObserver.DELETE_SELF | FileObserver.DELETE | FileObserver.CLOSE_WRITE | FileObserver.ATTRIB;
+    private static final long QUIET_PERIOD_MS = 1000;
+    // a continuous stream of events does not delay the rescan longer than this
+    private static final long MAX_DELAY_MS = 5000;
+
+    private final BookCollection myCollection;
+    private final Map<String, DirectoryObserver> myObservers = new HashMap<String, DirectoryObserver>();
+    private final TreeSet<String> myChangedPaths = new TreeSet<String>();
+    private final ScheduledExecutorService myExecutor = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledFuture<?> myFlush;
+    private long myFirstChangeTime;
+    private boolean myIsStopped;
+
+    private final Runnable myFlushRunnable = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    LibraryWatcher(BookCollection collection) {
+        myCollection = collection;
+    }
+
+    void start(final List<String> directories) {
+        // the directory tree could be big, it is not walked in the caller thread
+        myExecutor.execute(new Runnable() {
+            public void run() {
+                for (String d : directories) {
+                    watchTree(new File(d));
+                }
+            }
+        });
+    }
+
+    synchronized void stop() {
+        myIsStopped = true;
+        for (DirectoryObserver observer : myObservers.values()) {
+            observer.stopWatching();
+        }
+        myObservers.clear();
+        myChangedPaths.clear();
+        myExecutor.shutdownNow();
+    }
+
+    private synchronized void watchTree(File directory) {
+        if (myIsStopped || !directory.isDirectory()) {
+            return;
+        }
+        final String path = directory.getPath();
+        if (myObservers.containsKey(path)) {
+            return;
+        }
+        final DirectoryObserver observer = new DirectoryObserver(path);
+        observer.startWatching();
+        myObservers.put(path, observer);
+
+        final File[] children = directory.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                if (!c.getName().startsWith(".") && c.isDirectory()) {
+                    watchTree(c);
+                }
+            }
+        }
+    }
+
+    private synchronized void unwatchTree(String path) {
+        final String prefix = path + '/';
+        for (Iterator<Map.Entry<String, DirectoryObserver>> it = myObservers.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<String, DirectoryObserver> entry = it.next();
+            if (entry.getKey().equals(path) || entry.getKey().startsWith(prefix)) {
+                entry.getValue().stopWatching();
+                it.remove();
+            }
+        }
+    }
+
+    private synchronized void onChange(String path) {
+        if (myIsStopped) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (myChangedPaths.isEmpty()) {
+            myFirstChangeTime = now;
+        }
+        myChangedPaths.add(path);
+
+        if (myFlush != null) {
+            myFlush.cancel(false);
+        }
+        final long delay = Math.max(0, Math.min(QUIET_PERIOD_MS, myFirstChangeTime + MAX_DELAY_MS - now));
+        myFlush = myExecutor.schedule(myFlushRunnable, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        final List<String> paths = new ArrayList<String>();
+        synchronized (this) {
+            myFlush = null;
+            // paths are sorted, so a directory precedes its content;
+            // the content is rescanned with the directory
+            String directoryPrefix = null;
+            for (String p : myChangedPaths) {
+                if (directoryPrefix == null || !p.startsWith(directoryPrefix)) {
+                    paths.add(p);
+                    directoryPrefix = p + '/';
+                }
+            }
+            myChangedPaths.clear();
+        }
+        if (!paths.isEmpty()) {
+            myCollection.rescan(paths);
+        }
+    }
+
+    private final class DirectoryObserver extends FileObserver {
+        private final String myPath;
+        private final String myPrefix;
+
+        DirectoryObserver(String path) {
+            super(path, MASK);
+            myPath = path;
+            myPrefix = path + '/';
+        }
+
+        @Override
+        public void onEvent(int event, String name) {
+            event = event & ALL_EVENTS;
+            if (name == null) {
+                // an event on the directory itself
+                name = "";
+            }
+            switch (event) {
+                case CREATE:
+                case MOVED_TO: {
+                    final File file = new File(myPrefix + name);
+                    if (file.isDirectory()) {
+                        watchTree(file);
+                        onChange(file.getPath());
+                    } else if (event == MOVED_TO) {
+                        onChange(file.getPath());
+                    }
+                    // a created file is rescanned on CLOSE_WRITE
+                    break;
+                }
+                case MOVED_FROM:
+                case DELETE:
+                    unwatchTree(myPrefix + name);
+                    onChange(myPrefix + name);
+                    break;
+                case CLOSE_WRITE:
+                case ATTRIB:
+                    onChange(name.length() > 0 ? myPrefix + name : myPath);
+                    break;
+                case MOVE_SELF:
+                case DELETE_SELF:
+                    // the parent directory observer reports the change
+                    unwatchTree(myPath);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -98,7 +98,7 @@ final class SQLiteBooksDatabase extends BooksDatabase {
 
     private void migrate() {
         final int version = myDatabase.getVersion();
-        final int currentVersion = 41;
+        final int currentVersion = 42;
         if (version >= currentVersion) {
             return;
         }
@@ -188,6 +188,8 @@ final class SQLiteBooksDatabase extends BooksDatabase {
                 updateTables39();
             case 40:
                 updateTables40();
+            case 41:
+                updateTables41();
         }
         myDatabase.setTransactionSuccessful();
         myDatabase.setVersion(currentVersion);
@@ -1264,15 +1266,36 @@ final class SQLiteBooksDatabase extends BooksDatabase {
     }
 
     @Override
-    protected void setHash(long bookId, String hash) throws NotAvailable {
+    protected String getHashByFingerprint(long bookId, String fingerprint) throws NotAvailable {
         try {
             final SQLiteStatement statement = get(
-                    "INSERT OR REPLACE INTO BookHash (book_id,timestamp,hash) VALUES (?,?,?)"
+                    "SELECT hash FROM BookHash WHERE book_id=? AND fingerprint=?"
+            );
+            synchronized (statement) {
+                statement.bindLong(1, bookId);
+                statement.bindString(2, fingerprint);
+                try {
+                    return statement.simpleQueryForString();
+                } catch (SQLiteDoneException e) {
+                    return null;
+                }
+            }
+        } catch (Throwable t) {
+            throw new NotAvailable();
+        }
+    }
+
+    @Override
+    protected void setHash(long bookId, String hash, String fingerprint) throws NotAvailable {
+        try {
+            final SQLiteStatement statement = get(
+                    "INSERT OR REPLACE INTO BookHash (book_id,timestamp,hash,fingerprint) VALUES (?,?,?,?)"
             );
             synchronized (statement) {
                 statement.bindLong(1, bookId);
                 statement.bindLong(2, System.currentTimeMillis());
                 statement.bindString(3, hash);
+                SQLiteUtil.bindString(statement, 4, fingerprint);
                 statement.execute();
             }
         } catch (Throwable t) {
@@ -1938,6 +1961,10 @@ final class SQLiteBooksDatabase extends BooksDatabase {
         myDatabase.execSQL("DROP TABLE IF EXISTS Labels_Obsolete");
     }
 
+    private void updateTables41() {
+        myDatabase.execSQL("ALTER TABLE BookHash ADD COLUMN fingerprint TEXT");
+    }
+
     private SQLiteStatement get(String sql) {
         SQLiteStatement statement = myStatements.get(sql);
         if (statement == null) {
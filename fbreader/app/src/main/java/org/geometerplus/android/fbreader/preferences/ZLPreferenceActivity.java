@@ -108,6 +108,12 @@ abstract class ZLPreferenceActivity extends android.preference.PreferenceActivit
         OrientationUtil.setOrientation(this, getIntent());
     }
 
+    @Override
+    protected void onPause() {
+        Config.Instance().flush();
+        super.onPause();
+    }
+
     @Override
     protected void onNewIntent(Intent intent) {
         OrientationUtil.setOrientation(this, intent);
@@ -128,6 +128,8 @@ public class SyncService extends Service implements IBookCollection.Listener<Boo
                             for (Status value : Status.values()) {
                                 log("STATUS " + value + ": " + statusCounts.get(value));
                             }
+                            // option writes are delayed; this process has no activity to flush them
+                            Config.Instance().flush();
                             ourSynchronizationThread = null;
                         }
                     }
@@ -153,6 +155,7 @@ public class SyncService extends Service implements IBookCollection.Listener<Boo
                             BookmarkSyncUtil.sync(mySyncBookmarksContext, myCollection);
                             ShelvesSyncUtil.sync(mySyncShelvesContext, myCollection);
                         } finally {
+                            Config.Instance().flush();
                             ourQuickSynchronizationThread = null;
                         }
                     }
@@ -185,8 +188,7 @@ public class SyncService extends Service implements IBookCollection.Listener<Boo
             final Config config = Config.Instance();
             config.runOnConnect(new Runnable() {
                 public void run() {
-                    config.requestAllValuesForGroup("Sync");
-                    config.requestAllValuesForGroup("SyncData");
+                    config.requestAllValuesForGroups("Sync", "SyncData");
 
                     if (!mySyncOptions.Enabled.getValue()) {
                         log("disabled");
@@ -365,6 +367,7 @@ public class SyncService extends Service implements IBookCollection.Listener<Boo
     public void onDestroy() {
         myCollection.removeListener(this);
         myCollection.unbind();
+        Config.Instance().flush();
         super.onDestroy();
     }
 
@@ -19,6 +19,7 @@
 
 package org.geometerplus.fbreader.book;
 
+import org.LogUtils;
 import org.geometerplus.fbreader.formats.BookReadingException;
 import org.geometerplus.fbreader.formats.FormatPlugin;
 import org.geometerplus.fbreader.formats.PluginCollection;
@@ -32,6 +33,7 @@ import org.geometerplus.zlibrary.text.view.ZLTextPositionWithTimestamp;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -46,15 +48,19 @@ import java.util.TreeSet;
 
 public class BookCollection extends AbstractBookCollection<DbBook> {
     private static final String ZERO_HASH = String.format("%040d", 0);
+    private static final String JOURNAL_FILE_NAME = "library.journal";
     private final static String DEFAULT_STYLE_ID_KEY = "defaultStyle";
     public final PluginCollection PluginCollection;
     public final List<String> BookDirectories;
     private final SystemInfo mySystemInfo;
+    private final BookHasher myHasher;
     private final BooksDatabase myDatabase;
     private final Map<ZLFile, DbBook> myBooksByFile =
             Collections.synchronizedMap(new LinkedHashMap<ZLFile, DbBook>());
     private final Map<Long, DbBook> myBooksById =
             Collections.synchronizedMap(new HashMap<Long, DbBook>());
+    // guarded by myBooksByFile
+    private final BookIndex myIndex = new BookIndex();
     private final List<String> myFilesToRescan =
             Collections.synchronizedList(new LinkedList<String>());
     private final DuplicateResolver myDuplicateResolver = new DuplicateResolver();
@@ -67,6 +73,7 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
         mySystemInfo = systemInfo;
         PluginCollection = org.geometerplus.fbreader.formats.PluginCollection.Instance(systemInfo);
         myDatabase = db;
+        myHasher = new BookHasher(db);
         BookDirectories = Collections.unmodifiableList(new ArrayList<String>(bookDirectories));
 
         final String formats = db.getOptionValue("formats");
@@ -88,10 +95,14 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
             return null;
         }
 
-        return getBookByFile(bookFile, PluginCollection.getPlugin(bookFile));
+        return getBookByFile(bookFile, PluginCollection.getPlugin(bookFile), true);
     }
 
-    private DbBook getBookByFile(ZLFile bookFile, final FormatPlugin plugin) {
+    /**
+     * @param save false if the caller stores the book itself (the library scanner
+     *             writes books in batches); the book is not added to the collection then
+     */
+    private DbBook getBookByFile(ZLFile bookFile, final FormatPlugin plugin, boolean save) {
         if (plugin == null || !isFormatActive(plugin)) {
             return null;
         }
@@ -128,7 +139,9 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
         }
 
         if (book != null && fileInfos.check(physicalFile, physicalFile != bookFile)) {
-            saveBook(book);
+            if (save) {
+                saveBook(book);
+            }
             return book;
         }
         fileInfos.save();
@@ -143,7 +156,9 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
             return null;
         }
 
-        saveBook(book);
+        if (save) {
+            saveBook(book);
+        }
         return book;
     }
 
@@ -228,17 +243,20 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
                 final DbBook original = duplicate != null ? myBooksByFile.get(duplicate) : null;
                 if (original != null) {
                     if (new BookMergeHelper(this).merge(original, book)) {
+                        myIndex.update(original);
                         fireBookEvent(BookEvent.Updated, original);
                     }
                 } else {
                     myBooksByFile.put(book.File, book);
                     myDuplicateResolver.addFile(book.File);
                     myBooksById.put(book.getId(), book);
+                    myIndex.add(book);
                     fireBookEvent(BookEvent.Added, book);
                 }
                 return true;
             } else if (force) {
                 existing.updateFrom(book);
+                myIndex.update(existing);
                 switch (existing.save(myDatabase)) {
                     case DbBook.InfoType.Nothing:
                         return false;
@@ -260,7 +278,10 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
 
     public void removeBook(DbBook book, boolean deleteFromDisk) {
         synchronized (myBooksByFile) {
-            myBooksByFile.remove(book.File);
+            final DbBook stored = myBooksByFile.remove(book.File);
+            if (stored != null) {
+                myIndex.remove(stored);
+            }
             myDuplicateResolver.removeFile(book.File);
             myBooksById.remove(book.getId());
 
@@ -300,41 +321,47 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
             return Collections.emptyList();
         }
 
-        final List<DbBook> allBooks;
+        final int start = query.Page * query.Limit;
+        final int end = start + query.Limit;
+        final List<DbBook> candidates;
         synchronized (myBooksByFile) {
-            //allBooks = new ArrayList<DbBook>(new LinkedHashSet<DbBook>(myBooksByFile.values()));
-            allBooks = new ArrayList<DbBook>(myBooksByFile.values());
+            final List<DbBook> indexed = myIndex.books(query.Filter);
+            if (indexed != null) {
+                if (start >= indexed.size()) {
+                    return Collections.emptyList();
+                }
+                return new ArrayList<DbBook>(indexed.subList(start, Math.min(end, indexed.size())));
+            }
+            candidates = new ArrayList<DbBook>(myIndex.candidates(query.Filter));
         }
-        final int start = query.Page * query.Limit;
-        if (start >= allBooks.size()) {
+        if (start >= candidates.size()) {
             return Collections.emptyList();
         }
-        final int end = start + query.Limit;
-        if (query.Filter instanceof Filter.Empty) {
-            return allBooks.subList(start, Math.min(end, allBooks.size()));
-        } else {
-            int count = 0;
-            final List<DbBook> filtered = new ArrayList<DbBook>(query.Limit);
-            for (DbBook b : allBooks) {
-                if (query.Filter.matches(b)) {
-                    if (count >= start) {
-                        filtered.add(b);
-                    }
-                    if (++count == end) {
-                        break;
-                    }
+        int count = 0;
+        final List<DbBook> filtered = new ArrayList<DbBook>(query.Limit);
+        for (DbBook b : candidates) {
+            if (query.Filter.matches(b)) {
+                if (count >= start) {
+                    filtered.add(b);
+                }
+                if (++count == end) {
+                    break;
                 }
             }
-            return filtered;
         }
+        return filtered;
     }
 
     public boolean hasBooks(Filter filter) {
-        final List<DbBook> allBooks;
+        final List<DbBook> candidates;
         synchronized (myBooksByFile) {
-            allBooks = new ArrayList<DbBook>(myBooksByFile.values());
+            final List<DbBook> indexed = myIndex.books(filter);
+            if (indexed != null) {
+                return !indexed.isEmpty();
+            }
+            candidates = new ArrayList<DbBook>(myIndex.candidates(filter));
         }
-        for (DbBook b : allBooks) {
+        for (DbBook b : candidates) {
             if (filter.matches(b)) {
                 return true;
             }
@@ -371,16 +398,9 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
     }
 
     public List<Author> authors() {
-        final Set<Author> authors = new TreeSet<Author>();
+        final Set<Author> authors;
         synchronized (myBooksByFile) {
-            for (DbBook book : myBooksByFile.values()) {
-                final List<Author> bookAuthors = book.authors();
-                if (bookAuthors.isEmpty()) {
-                    authors.add(Author.NULL);
-                } else {
-                    authors.addAll(bookAuthors);
-                }
-            }
+            authors = new TreeSet<Author>(myIndex.authors());
         }
         return new ArrayList<Author>(authors);
     }
@@ -388,16 +408,9 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
     public List<Tag> tags() {
         final Set<Tag> tags = new HashSet<Tag>();
         synchronized (myBooksByFile) {
-            for (DbBook book : myBooksByFile.values()) {
-                final List<Tag> bookTags = book.tags();
-                if (bookTags.isEmpty()) {
-                    tags.add(Tag.NULL);
-                } else {
-                    for (Tag t : bookTags) {
-                        for (; t != null; t = t.Parent) {
-                            tags.add(t);
-                        }
-                    }
+            for (Tag t : myIndex.tags()) {
+                for (; t != null; t = t.Parent) {
+                    tags.add(t);
                 }
             }
         }
@@ -420,6 +433,9 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
         for (Label label : book.labels()) {
             if (uuid.equals(label.Uid)) {
                 book.removeLabel(label);
+                synchronized (myBooksByFile) {
+                    myIndex.update(book);
+                }
                 break;
             }
         }
@@ -435,23 +451,15 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
 
     public boolean hasSeries() {
         synchronized (myBooksByFile) {
-            for (DbBook book : myBooksByFile.values()) {
-                if (book.getSeriesInfo() != null) {
-                    return true;
-                }
-            }
+            return !myIndex.series().isEmpty();
         }
-        return false;
     }
 
     public List<String> series() {
         final Set<String> series = new TreeSet<String>();
         synchronized (myBooksByFile) {
-            for (DbBook book : myBooksByFile.values()) {
-                final SeriesInfo info = book.getSeriesInfo();
-                if (info != null) {
-                    series.add(info.Series.getTitle());
-                }
+            for (Series s : myIndex.series()) {
+                series.add(s.getTitle());
             }
         }
         return new ArrayList<String>(series);
@@ -459,14 +467,7 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
 
     public List<String> firstTitleLetters() {
         synchronized (myBooksByFile) {
-            final TreeSet<String> letters = new TreeSet<String>();
-            for (DbBook book : myBooksByFile.values()) {
-                final String l = book.firstTitleLetter();
-                if (l != null) {
-                    letters.add(l);
-                }
-            }
-            return new ArrayList<String>(letters);
+            return new ArrayList<String>(new TreeSet<String>(myIndex.titleLetters()));
         }
     }
 
@@ -508,9 +509,11 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
                     synchronized (myFilesToRescan) {
                         processFilesQueue();
                     }
-                    for (DbBook book : new ArrayList<DbBook>(myBooksByFile.values())) {
-                        getHash(book, false);
+                    final List<DbBook> books;
+                    synchronized (myBooksByFile) {
+                        books = new ArrayList<DbBook>(myBooksByFile.values());
                     }
+                    myHasher.hashAll(books);
                 }
             }
         };
@@ -525,6 +528,16 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
         }
     }
 
+    /**
+     * Rescans several changed paths as one update.
+     */
+    public void rescan(Collection<String> paths) {
+        synchronized (myFilesToRescan) {
+            myFilesToRescan.addAll(paths);
+            processFilesQueue();
+        }
+    }
+
     private void processFilesQueue() {
         synchronized (myFilesToRescan) {
             if (!myStatus.IsComplete) {
@@ -565,6 +578,7 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
                     final DbBook book = myBooksByFile.remove(f);
                     myDuplicateResolver.removeFile(f);
                     if (book != null) {
+                        myIndex.remove(book);
                         myBooksById.remove(book.getId());
                         fireBookEvent(BookEvent.Removed, book);
                     }
@@ -632,26 +646,63 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
         myDatabase.setExistingFlag(orphanedBooks, false);
 
         // Step 2: collect books from physical files; add new, update already added,
-        //         unmark orphaned as existing again, collect newly added
+        //         unmark orphaned as existing again, collect newly added;
+        //         the scanner reads files in parallel and the books are saved in batches
+        //         files of the directories not changed since the last build are skipped
         final Map<Long, DbBook> orphanedBooksByFileId = myDatabase.loadBooks(fileInfos, false);
         final Set<DbBook> newBooks = new HashSet<DbBook>();
 
-        final List<ZLPhysicalFile> physicalFilesList = collectPhysicalFiles(BookDirectories);
-        for (ZLPhysicalFile file : physicalFilesList) {
-            if (physicalFiles.contains(file)) {
-                continue;
-            }
-            file.setCached(true);
-            try {
-                collectBooks(
-                        file, fileInfos,
-                        savedBooksByFileId, orphanedBooksByFileId,
-                        newBooks,
-                        !fileInfos.check(file, true)
-                );
-            } finally {
-                file.setCached(false);
-            }
+        final DirectoryJournal journal = new DirectoryJournal(
+                new File(mySystemInfo.tempDirectory(), JOURNAL_FILE_NAME), journalKey()
+        );
+        // empty database (e.g. cleared data) means the journal is not valid anymore
+        if (!savedBooksByFileId.isEmpty()) {
+            journal.load();
+        }
+
+        final LibraryScanner.Statistics statistics = new LibraryScanner().scan(
+                BookDirectories,
+                journal,
+                new LibraryScanner.FileProcessor() {
+                    public void process(ZLPhysicalFile file, List<DbBook> books) {
+                        if (physicalFiles.contains(file)) {
+                            return;
+                        }
+                        file.setCached(true);
+                        try {
+                            final boolean changed;
+                            synchronized (fileInfos) {
+                                changed = !fileInfos.check(file, true);
+                            }
+                            collectBooks(
+                                    file, fileInfos,
+                                    savedBooksByFileId, orphanedBooksByFileId,
+                                    books,
+                                    changed
+                            );
+                        } finally {
+                            file.setCached(false);
+                        }
+                    }
+                },
+                new LibraryScanner.BatchWriter() {
+                    public void write(final List<DbBook> books) {
+                        newBooks.addAll(books);
+                        // the same lock order as in saveBook(): collection, then database
+                        synchronized (BookCollection.this) {
+                            myDatabase.executeAsTransaction(new Runnable() {
+                                public void run() {
+                                    for (DbBook book : books) {
+                                        saveBook(book);
+                                    }
+                                }
+                            });
+                        }
+                    }
+                }
+        );
+        if (LogUtils.DEBUG) {
+            LogUtils.d(LibraryScanner.TAG, statistics.toString());
         }
 
         // Step 3: add help file
@@ -663,16 +714,26 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
         saveBook(helpBook);
 
         // Step 4: save changes into database
-        fileInfos.save();
+        synchronized (fileInfos) {
+            fileInfos.save();
+        }
+        myDatabase.setExistingFlag(newBooks, true);
+        journal.save();
+    }
 
-        myDatabase.executeAsTransaction(new Runnable() {
-            public void run() {
-                for (DbBook book : newBooks) {
-                    saveBook(book);
-                }
+    /**
+     * The journal is valid for the same book directories and the same set of active plugins;
+     * the set changes with format settings and with installed plugins.
+     */
+    private String journalKey() {
+        final TreeSet<String> formats = new TreeSet<String>();
+        for (FormatPlugin plugin : PluginCollection.plugins()) {
+            if (isFormatActive(plugin)) {
+                formats.add(plugin.supportedFileType());
             }
-        });
-        myDatabase.setExistingFlag(newBooks, true);
+        }
+        return MiscUtil.join(BookDirectories, "\000")
+                + '\001' + MiscUtil.join(new ArrayList<String>(formats), "\000");
     }
 
     private List<ZLPhysicalFile> collectPhysicalFiles(List<String> paths) {
@@ -708,10 +769,13 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
     private void collectBooks(
             ZLFile file, FileInfoSet fileInfos,
             Map<Long, DbBook> savedBooksByFileId, Map<Long, DbBook> orphanedBooksByFileId,
-            Set<DbBook> newBooks,
+            List<DbBook> newBooks,
             boolean doReadMetaInfo
     ) {
-        final long fileId = fileInfos.getId(file);
+        final long fileId;
+        synchronized (fileInfos) {
+            fileId = fileInfos.getId(file);
+        }
         if (savedBooksByFileId.get(fileId) != null) {
             return;
         }
@@ -734,11 +798,15 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
             // ignore
         }
 
-        final DbBook book = getBookByFile(file, plugin);
+        final DbBook book = getBookByFile(file, plugin, false);
         if (book != null) {
             newBooks.add(book);
         } else if (file.isArchive()) {
-            for (ZLFile entry : fileInfos.archiveEntries(file)) {
+            final List<ZLFile> entries;
+            synchronized (fileInfos) {
+                entries = fileInfos.archiveEntries(file);
+            }
+            for (ZLFile entry : entries) {
                 collectBooks(
                         entry, fileInfos,
                         savedBooksByFileId, orphanedBooksByFileId,
@@ -854,36 +922,22 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
     }
 
     public String getHash(DbBook book, boolean force) {
-        final ZLPhysicalFile file = book.File.getPhysicalFile();
-        if (file == null) {
+        if (book.File.getPhysicalFile() == null) {
             return ZERO_HASH;
         }
-        String hash = null;
-        try {
-            hash = myDatabase.getHash(book.getId(), file.javaFile().lastModified());
-        } catch (BooksDatabase.NotAvailable e) {
-            if (!force) {
-                return null;
-            }
-        }
-        if (hash == null) {
-            final UID uid = BookUtil.createUid(book.File, "SHA-1");
-            if (uid == null) {
-                return null;
-            }
-            hash = uid.Id.toLowerCase();
-            try {
-                myDatabase.setHash(book.getId(), hash);
-            } catch (BooksDatabase.NotAvailable e) {
-                // ignore
-            }
-        }
-        return hash;
+        return myHasher.hash(book, force);
+    }
+
+    /**
+     * @see BookHasher#setUsePrefilter(boolean)
+     */
+    public void setUseHashPrefilter(boolean usePrefilter) {
+        myHasher.setUsePrefilter(usePrefilter);
     }
 
     public void setHash(DbBook book, String hash) {
         try {
-            myDatabase.setHash(book.getId(), hash);
+            myDatabase.setHash(book.getId(), hash, null);
         } catch (BooksDatabase.NotAvailable e) {
             // ignore
         }
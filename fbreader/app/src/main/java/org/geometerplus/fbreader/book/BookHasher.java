@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.fbreader.book;
+
+import org.fbreader.util.IOUtil;
+import org.geometerplus.zlibrary.core.filesystem.ZLPhysicalFile;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Computes and stores SHA-1 hashes of book files.
+ *
+ * A cheap fingerprint (file size and digest of the first and last blocks) is stored
+ * with each hash. If the prefilter is enabled, a file with a new modification time
+ * and the same fingerprint is considered unchanged and the stored hash is reused.
+ */
+final class BookHasher {
+    private static final int PROBE_SIZE = 65536;
+    private static final int BATCH_SIZE = 50;
+
+    private static final class Result {
+        final long BookId;
+        final String Hash;
+        final String Fingerprint;
+        // false if the hash is taken from the database as is
+        final boolean NeedsStore;
+
+        Result(long bookId, String hash, String fingerprint, boolean needsStore) {
+            BookId = bookId;
+            Hash = hash;
+            Fingerprint = fingerprint;
+            NeedsStore = needsStore;
+        }
+    }
+
+    private final BooksDatabase myDatabase;
+    private final int myThreadCount;
+    private volatile boolean myUsePrefilter;
+
+    BookHasher(BooksDatabase database) {
+        myDatabase = database;
+        myThreadCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 2));
+    }
+
+    /**
+     * Off by default: the fingerprint does not notice changes of the same size
+     * in the middle of a file, and such a file would keep its old hash
+     * (and so its sync identity, bookmarks and cached model).
+     *
+     * @param usePrefilter if true, a file with a new modification time and
+     *                     an unchanged fingerprint is not hashed again
+     */
+    void setUsePrefilter(boolean usePrefilter) {
+        myUsePrefilter = usePrefilter;
+    }
+
+    String hash(DbBook book, boolean force) {
+        final Result result;
+        try {
+            result = compute(book, force);
+        } catch (BooksDatabase.NotAvailable e) {
+            return null;
+        }
+        if (result == null) {
+            return null;
+        }
+        if (result.NeedsStore) {
+            store(result);
+        }
+        return result.Hash;
+    }
+
+    /**
+     * Hashes the books in a bounded thread pool; the hashes are stored
+     * in the calling thread, one transaction per batch.
+     */
+    void hashAll(List<DbBook> books) {
+        if (books.isEmpty()) {
+            return;
+        }
+
+        final ExecutorService pool = Executors.newFixedThreadPool(myThreadCount, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "Library.hash");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        final CompletionService<Result> service = new ExecutorCompletionService<Result>(pool);
+        for (final DbBook book : books) {
+            service.submit(new Callable<Result>() {
+                public Result call() throws Exception {
+                    return compute(book, false);
+                }
+            });
+        }
+        pool.shutdown();
+
+        final List<Result> batch = new ArrayList<Result>(BATCH_SIZE);
+        for (int count = books.size(); count > 0; --count) {
+            Result result = null;
+            try {
+                result = service.take().get();
+            } catch (InterruptedException e) {
+                // the task result is lost; the book is hashed on the next request
+            } catch (ExecutionException e) {
+                // NotAvailable: the database is busy; the book is hashed on the next request
+            }
+            if (result != null && result.NeedsStore) {
+                batch.add(result);
+            }
+            if (batch.size() >= BATCH_SIZE || (count == 1 && !batch.isEmpty())) {
+                storeBatch(batch);
+            }
+        }
+    }
+
+    /**
+     * @return null if the hash cannot be computed
+     */
+    private Result compute(DbBook book, boolean force) throws BooksDatabase.NotAvailable {
+        final ZLPhysicalFile file = book.File.getPhysicalFile();
+        if (file == null) {
+            return null;
+        }
+        final long bookId = book.getId();
+
+        try {
+            final String hash = myDatabase.getHash(bookId, file.javaFile().lastModified());
+            if (hash != null) {
+                return new Result(bookId, hash, null, false);
+            }
+        } catch (BooksDatabase.NotAvailable e) {
+            if (!force) {
+                throw e;
+            }
+        }
+
+        // the fingerprint is always stored, so the prefilter can be enabled later
+        final String fingerprint = fingerprint(file);
+        if (myUsePrefilter && fingerprint != null) {
+            try {
+                final String hash = myDatabase.getHashByFingerprint(bookId, fingerprint);
+                if (hash != null) {
+                    return new Result(bookId, hash, fingerprint, true);
+                }
+            } catch (BooksDatabase.NotAvailable e) {
+                // compute the full hash
+            }
+        }
+
+        final UID uid = BookUtil.createUid(book.File, "SHA-1");
+        if (uid == null) {
+            return null;
+        }
+        return new Result(bookId, uid.Id.toLowerCase(), fingerprint, true);
+    }
+
+    private void store(Result result) {
+        try {
+            myDatabase.setHash(result.BookId, result.Hash, result.Fingerprint);
+        } catch (BooksDatabase.NotAvailable e) {
+            // ignore
+        }
+    }
+
+    private void storeBatch(final List<Result> batch) {
+        myDatabase.executeAsTransaction(new Runnable() {
+            public void run() {
+                for (Result r : batch) {
+                    store(r);
+                }
+            }
+        });
+        batch.clear();
+    }
+
+    /**
+     * Size and SHA-1 of the first and the last PROBE_SIZE bytes of the file.
+     */
+    static String fingerprint(ZLPhysicalFile file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file.javaFile(), "r");
+            final long size = raf.length();
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] buffer = new byte[PROBE_SIZE];
+
+            int length = (int) Math.min(size, PROBE_SIZE);
+            raf.readFully(buffer, 0, length);
+            digest.update(buffer, 0, length);
+            if (size > PROBE_SIZE) {
+                length = (int) Math.min(size - PROBE_SIZE, PROBE_SIZE);
+                raf.seek(size - length);
+                raf.readFully(buffer, 0, length);
+                digest.update(buffer, 0, length);
+            }
+            return size + ":" + BookUtil.toHex(digest.digest());
+        } catch (IOException e) {
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        } finally {
+            IOUtil.closeQuietly(raf);
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.fbreader.book;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Secondary indexes of the books in a collection: by author, tag, series, label
+ * and first title letter. Every list keeps the order the books were added in,
+ * so a page of a query is a plain sub-list.
+ *
+ * Pattern queries are answered from the lower-cased searchable fields stored with
+ * every book; the results are ranked (see rank()) and the last result is cached
+ * until the index changes.
+ *
+ * The index is not thread-safe; BookCollection uses it under its own lock.
+ */
+final class BookIndex {
+    private static final class Entry {
+        final DbBook Book;
+        final long Seq;
+        final List<Author> Authors = new ArrayList<Author>();
+        final List<Tag> Tags = new ArrayList<Tag>();
+        final List<String> Labels = new ArrayList<String>();
+        Series Series;
+        String TitleLetter;
+        // lower-cased searchable fields and their kinds
+        String[] SearchFields;
+        byte[] SearchKinds;
+
+        Entry(DbBook book, long seq) {
+            Book = book;
+            Seq = seq;
+        }
+    }
+
+    private static final class BookList extends AbstractList<DbBook> {
+        private final List<Entry> myEntries;
+
+        BookList(List<Entry> entries) {
+            myEntries = entries;
+        }
+
+        @Override
+        public DbBook get(int index) {
+            return myEntries.get(index).Book;
+        }
+
+        @Override
+        public int size() {
+            return myEntries.size();
+        }
+    }
+
+    private final Map<DbBook, Entry> myEntries = new IdentityHashMap<DbBook, Entry>();
+    private final ArrayList<Entry> myBooks = new ArrayList<Entry>();
+    private final Map<Author, ArrayList<Entry>> myByAuthor = new HashMap<Author, ArrayList<Entry>>();
+    private final Map<Tag, ArrayList<Entry>> myByTag = new HashMap<Tag, ArrayList<Entry>>();
+    private final Map<String, ArrayList<Entry>> myByLabel = new HashMap<String, ArrayList<Entry>>();
+    private final Map<Series, ArrayList<Entry>> myBySeries = new HashMap<Series, ArrayList<Entry>>();
+    private final Map<String, ArrayList<Entry>> myByTitleLetter = new HashMap<String, ArrayList<Entry>>();
+    private long myNextSeq;
+
+    private static final byte KIND_TITLE = 0;
+    private static final byte KIND_AUTHOR = 1;
+    private static final byte KIND_SERIES = 2;
+    private static final byte KIND_TAG = 3;
+    private static final byte KIND_FILE = 4;
+    // rank of a match that does not start a word
+    private static final int RANK_INNER = 6;
+
+    // changed on every modification, invalidates the cached pattern result
+    private int myVersion;
+    private String myLastPattern;
+    private int myLastPatternVersion;
+    private List<Entry> myLastPatternResult;
+
+    void add(DbBook book) {
+        ++myVersion;
+        if (myEntries.containsKey(book)) {
+            update(book);
+            return;
+        }
+        final Entry entry = new Entry(book, myNextSeq++);
+        myEntries.put(book, entry);
+        myBooks.add(entry);
+        addKeys(entry);
+    }
+
+    /**
+     * Re-read the indexed properties of an already added book.
+     */
+    void update(DbBook book) {
+        final Entry entry = myEntries.get(book);
+        if (entry != null) {
+            ++myVersion;
+            removeKeys(entry);
+            addKeys(entry);
+        }
+    }
+
+    void remove(DbBook book) {
+        final Entry entry = myEntries.remove(book);
+        if (entry != null) {
+            ++myVersion;
+            removeKeys(entry);
+            myBooks.remove(indexOf(myBooks, entry.Seq));
+        }
+    }
+
+    /**
+     * @return the books matching the filter in the collection order,
+     * or null if the filter cannot be answered by the index alone
+     */
+    List<DbBook> books(Filter filter) {
+        if (filter instanceof Filter.Empty) {
+            return new BookList(myBooks);
+        } else if (filter instanceof Filter.ByAuthor) {
+            return list(myByAuthor, ((Filter.ByAuthor) filter).Author);
+        } else if (filter instanceof Filter.ByTag) {
+            return list(myByTag, ((Filter.ByTag) filter).Tag);
+        } else if (filter instanceof Filter.ByLabel) {
+            return list(myByLabel, ((Filter.ByLabel) filter).Label);
+        } else if (filter instanceof Filter.BySeries) {
+            return list(myBySeries, ((Filter.BySeries) filter).Series);
+        } else if (filter instanceof Filter.ByTitlePrefix) {
+            return list(myByTitleLetter, ((Filter.ByTitlePrefix) filter).Prefix);
+        } else if (filter instanceof Filter.ByPattern) {
+            return new BookList(search(((Filter.ByPattern) filter).Pattern));
+        }
+        return null;
+    }
+
+    /**
+     * @param pattern lower-cased pattern, as stored in Filter.ByPattern
+     * @return the books matching the pattern, best ranked first
+     */
+    private List<Entry> search(String pattern) {
+        if ("".equals(pattern)) {
+            return Collections.emptyList();
+        }
+        if (myLastPatternResult != null && myLastPatternVersion == myVersion && pattern.equals(myLastPattern)) {
+            return myLastPatternResult;
+        }
+
+        final List<List<Entry>> byRank = new ArrayList<List<Entry>>(RANK_INNER + 1);
+        for (int i = 0; i <= RANK_INNER; ++i) {
+            byRank.add(new ArrayList<Entry>());
+        }
+        for (Entry entry : myBooks) {
+            final int rank = rank(entry, pattern);
+            if (rank != -1) {
+                byRank.get(rank).add(entry);
+            }
+        }
+        final List<Entry> result = new ArrayList<Entry>();
+        for (List<Entry> entries : byRank) {
+            result.addAll(entries);
+        }
+
+        myLastPattern = pattern;
+        myLastPatternVersion = myVersion;
+        myLastPatternResult = result;
+        return result;
+    }
+
+    /**
+     * @return -1 if no field contains the pattern; otherwise 0 for a title starting
+     * with the pattern, 1..5 for a word starting with it (in the title, author name,
+     * series, tag or file name), RANK_INNER for a match inside a word
+     */
+    private static int rank(Entry entry, String pattern) {
+        int best = -1;
+        final String[] fields = entry.SearchFields;
+        for (int i = 0; i < fields.length; ++i) {
+            final String field = fields[i];
+            for (int index = field.indexOf(pattern); index != -1; index = field.indexOf(pattern, index + 1)) {
+                final int rank;
+                if (index == 0 && entry.SearchKinds[i] == KIND_TITLE) {
+                    rank = 0;
+                } else if (index == 0 || !Character.isLetterOrDigit(field.charAt(index - 1))) {
+                    rank = entry.SearchKinds[i] + 1;
+                } else {
+                    rank = RANK_INNER;
+                }
+                if (best == -1 || rank < best) {
+                    best = rank;
+                }
+                if (rank != RANK_INNER) {
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static void setSearchFields(Entry entry, DbBook book) {
+        final List<String> fields = new ArrayList<String>();
+        final List<Byte> kinds = new ArrayList<Byte>();
+        addSearchField(fields, kinds, book.getTitle(), KIND_TITLE);
+        for (Author a : book.authors()) {
+            addSearchField(fields, kinds, a.DisplayName, KIND_AUTHOR);
+        }
+        final SeriesInfo info = book.getSeriesInfo();
+        if (info != null) {
+            addSearchField(fields, kinds, info.Series.getTitle(), KIND_SERIES);
+        }
+        for (Tag t : book.tags()) {
+            addSearchField(fields, kinds, t.Name, KIND_TAG);
+        }
+        addSearchField(fields, kinds, fileName(book.getPath()), KIND_FILE);
+
+        entry.SearchFields = fields.toArray(new String[fields.size()]);
+        entry.SearchKinds = new byte[kinds.size()];
+        for (int i = 0; i < entry.SearchKinds.length; ++i) {
+            entry.SearchKinds[i] = kinds.get(i);
+        }
+    }
+
+    private static void addSearchField(List<String> fields, List<Byte> kinds, String value, byte kind) {
+        if (value != null && !"".equals(value)) {
+            fields.add(value.toLowerCase());
+            kinds.add(kind);
+        }
+    }
+
+    // the same name as AbstractBook.matches() uses: the part after the last
+    // path delimiter that precedes the first archive delimiter
+    private static String fileName(String path) {
+        int index = path.indexOf(":");
+        if (index == -1) {
+            index = path.lastIndexOf("/");
+        } else {
+            index = path.lastIndexOf("/", index);
+        }
+        return path.substring(index + 1);
+    }
+
+    /**
+     * @return a list containing all the books matching the filter (and maybe some others),
+     * in the collection order
+     */
+    List<DbBook> candidates(Filter filter) {
+        final List<DbBook> books = books(filter);
+        if (books != null) {
+            return books;
+        }
+        if (filter instanceof Filter.And) {
+            final List<DbBook> first = candidates(((Filter.And) filter).First);
+            final List<DbBook> second = candidates(((Filter.And) filter).Second);
+            return first.size() <= second.size() ? first : second;
+        }
+        return new BookList(myBooks);
+    }
+
+    Set<Author> authors() {
+        return myByAuthor.keySet();
+    }
+
+    Set<Tag> tags() {
+        return myByTag.keySet();
+    }
+
+    Set<Series> series() {
+        return myBySeries.keySet();
+    }
+
+    Set<String> titleLetters() {
+        return myByTitleLetter.keySet();
+    }
+
+    private void addKeys(Entry entry) {
+        final DbBook book = entry.Book;
+        final List<Author> authors = book.authors();
+        if (authors.isEmpty()) {
+            entry.Authors.add(Author.NULL);
+        } else {
+            entry.Authors.addAll(authors);
+        }
+        for (Author a : entry.Authors) {
+            add(myByAuthor, a, entry);
+        }
+
+        final List<Tag> tags = book.tags();
+        if (tags.isEmpty()) {
+            entry.Tags.add(Tag.NULL);
+        } else {
+            entry.Tags.addAll(tags);
+        }
+        for (Tag t : entry.Tags) {
+            add(myByTag, t, entry);
+        }
+
+        for (Label l : book.labels()) {
+            entry.Labels.add(l.Name);
+            add(myByLabel, l.Name, entry);
+        }
+
+        final SeriesInfo info = book.getSeriesInfo();
+        entry.Series = info != null ? info.Series : null;
+        if (entry.Series != null) {
+            add(myBySeries, entry.Series, entry);
+        }
+
+        entry.TitleLetter = book.firstTitleLetter();
+        if (entry.TitleLetter != null) {
+            add(myByTitleLetter, entry.TitleLetter, entry);
+        }
+
+        setSearchFields(entry, book);
+    }
+
+    private void removeKeys(Entry entry) {
+        for (Author a : entry.Authors) {
+            remove(myByAuthor, a, entry.Seq);
+        }
+        entry.Authors.clear();
+        for (Tag t : entry.Tags) {
+            remove(myByTag, t, entry.Seq);
+        }
+        entry.Tags.clear();
+        for (String l : entry.Labels) {
+            remove(myByLabel, l, entry.Seq);
+        }
+        entry.Labels.clear();
+        if (entry.Series != null) {
+            remove(myBySeries, entry.Series, entry.Seq);
+            entry.Series = null;
+        }
+        if (entry.TitleLetter != null) {
+            remove(myByTitleLetter, entry.TitleLetter, entry.Seq);
+            entry.TitleLetter = null;
+        }
+    }
+
+    private <K> List<DbBook> list(Map<K, ArrayList<Entry>> index, K key) {
+        final List<Entry> entries = index.get(key);
+        return entries != null ? new BookList(entries) : Collections.<DbBook>emptyList();
+    }
+
+    private <K> void add(Map<K, ArrayList<Entry>> index, K key, Entry entry) {
+        ArrayList<Entry> entries = index.get(key);
+        if (entries == null) {
+            entries = new ArrayList<Entry>();
+            index.put(key, entries);
+        }
+        final int position = indexOf(entries, entry.Seq);
+        if (position < 0) {
+            entries.add(-position - 1, entry);
+        }
+    }
+
+    private <K> void remove(Map<K, ArrayList<Entry>> index, K key, long seq) {
+        final ArrayList<Entry> entries = index.get(key);
+        if (entries == null) {
+            return;
+        }
+        final int position = indexOf(entries, seq);
+        if (position >= 0) {
+            entries.remove(position);
+            if (entries.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Binary search by the add order; returns (-(insertion point) - 1) if the book is not in the list.
+     */
+    private static int indexOf(List<Entry> entries, long seq) {
+        int low = 0;
+        int high = entries.size() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long midSeq = entries.get(mid).Seq;
+            if (midSeq < seq) {
+                low = mid + 1;
+            } else if (midSeq > seq) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -low - 1;
+    }
+}
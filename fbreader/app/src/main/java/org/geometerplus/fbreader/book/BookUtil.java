@@ -30,10 +30,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Formatter;
 import java.util.Locale;
 
 public abstract class BookUtil {
+    private static final int HASH_BUFFER_SIZE = 65536;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
     public static String getAnnotation(AbstractBook book, PluginCollection pluginCollection) {
         try {
             return getPlugin(pluginCollection, book).readAnnotation(fileByBook(book));
@@ -73,7 +75,7 @@ public abstract class BookUtil {
             final MessageDigest hash = MessageDigest.getInstance(algorithm);
             stream = file.getInputStream();
 
-            final byte[] buffer = new byte[2048];
+            final byte[] buffer = new byte[HASH_BUFFER_SIZE];
             while (true) {
                 final int nread = stream.read(buffer);
                 if (nread == -1) {
@@ -82,11 +84,7 @@ public abstract class BookUtil {
                 hash.update(buffer, 0, nread);
             }
 
-            final Formatter f = new Formatter();
-            for (byte b : hash.digest()) {
-                f.format("%02X", b & 0xFF);
-            }
-            return new UID(algorithm, f.toString());
+            return new UID(algorithm, toHex(hash.digest()));
         } catch (IOException e) {
             return null;
         } catch (NoSuchAlgorithmException e) {
@@ -96,6 +94,15 @@ public abstract class BookUtil {
         }
     }
 
+    static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
     public static FormatPlugin getPlugin(PluginCollection pluginCollection, AbstractBook book) throws BookReadingException {
         final ZLFile file = fileByBook(book);
         final FormatPlugin plugin = pluginCollection.getPlugin(file);
@@ -181,7 +181,12 @@ public abstract class BooksDatabase {
 
     protected abstract String getHash(long bookId, long lastModified) throws NotAvailable;
 
-    protected abstract void setHash(long bookId, String hash) throws NotAvailable;
+    protected abstract String getHashByFingerprint(long bookId, String fingerprint) throws NotAvailable;
+
+    /**
+     * @param fingerprint size and head/tail digest of the file, null if unknown
+     */
+    protected abstract void setHash(long bookId, String hash, String fingerprint) throws NotAvailable;
 
     protected abstract List<Long> bookIdsByHash(String hash);
 
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.fbreader.book;
+
+import org.fbreader.util.IOUtil;
+import org.geometerplus.zlibrary.core.filesystem.ZLPhysicalFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persisted state of the library directories as seen by the last complete build:
+ * modification time and subdirectory names for every directory. A directory
+ * with the same modification time has the same entries, so the next build
+ * neither lists it nor checks its files again.
+ */
+final class DirectoryJournal {
+    private static final int VERSION = 1;
+    // modification times are not trusted if the directory has been changed
+    // that short before the scan; file systems with coarse timestamps
+    // could miss the changes made right after listing
+    private static final long RACY_INTERVAL_MS = 2000;
+    private static final long UNKNOWN = -1;
+
+    private static final class State {
+        final long LastModified;
+        final List<String> Subdirectories;
+
+        State(long lastModified, List<String> subdirectories) {
+            LastModified = lastModified;
+            Subdirectories = subdirectories;
+        }
+    }
+
+    private final File myFile;
+    private final String myKey;
+    private final long myStartTime = System.currentTimeMillis();
+    private final Map<String, State> myOldStates = new HashMap<String, State>();
+    private final Map<String, State> myNewStates = new ConcurrentHashMap<String, State>();
+
+    /**
+     * @param key describes the scan settings (directories, active formats);
+     *            the journal written with another key is ignored
+     */
+    DirectoryJournal(File file, String key) {
+        myFile = file;
+        myKey = key;
+    }
+
+    void load() {
+        if (!myFile.exists()) {
+            return;
+        }
+
+        DataInputStream stream = null;
+        try {
+            stream = new DataInputStream(new BufferedInputStream(new FileInputStream(myFile), 16384));
+            if (stream.readInt() != VERSION || !myKey.equals(stream.readUTF())) {
+                return;
+            }
+            for (int count = stream.readInt(); count > 0; --count) {
+                final String path = stream.readUTF();
+                final long lastModified = stream.readLong();
+                final int size = stream.readInt();
+                final List<String> subdirectories = new ArrayList<String>(size);
+                for (int i = 0; i < size; ++i) {
+                    subdirectories.add(stream.readUTF());
+                }
+                myOldStates.put(path, new State(lastModified, subdirectories));
+            }
+        } catch (IOException e) {
+            myOldStates.clear();
+        } finally {
+            IOUtil.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * @return subdirectories of the directory if it has not been changed
+     * since the journal was saved, null otherwise; the state is kept for the next save
+     */
+    List<ZLPhysicalFile> unchangedSubdirectories(ZLPhysicalFile directory, long lastModified) {
+        final String path = directory.getPath();
+        final State state = myOldStates.get(path);
+        if (state == null || state.LastModified == UNKNOWN || state.LastModified != lastModified) {
+            return null;
+        }
+        myNewStates.put(path, state);
+
+        final File javaFile = directory.javaFile();
+        final List<ZLPhysicalFile> subdirectories = new ArrayList<ZLPhysicalFile>(state.Subdirectories.size());
+        for (String name : state.Subdirectories) {
+            subdirectories.add(new ZLPhysicalFile(new File(javaFile, name)));
+        }
+        return subdirectories;
+    }
+
+    /**
+     * @param lastModified modification time taken before the directory was listed
+     */
+    void record(ZLPhysicalFile directory, long lastModified, List<String> subdirectories) {
+        if (lastModified == 0 || lastModified > myStartTime - RACY_INTERVAL_MS) {
+            lastModified = UNKNOWN;
+        }
+        myNewStates.put(
+                directory.getPath(),
+                new State(lastModified, Collections.unmodifiableList(subdirectories))
+        );
+    }
+
+    void save() {
+        final File parent = myFile.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        final File tempFile = new File(myFile.getPath() + ".tmp");
+        DataOutputStream stream = null;
+        try {
+            stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 16384));
+            stream.writeInt(VERSION);
+            stream.writeUTF(myKey);
+            stream.writeInt(myNewStates.size());
+            for (Map.Entry<String, State> entry : myNewStates.entrySet()) {
+                final State state = entry.getValue();
+                stream.writeUTF(entry.getKey());
+                stream.writeLong(state.LastModified);
+                stream.writeInt(state.Subdirectories.size());
+                for (String name : state.Subdirectories) {
+                    stream.writeUTF(name);
+                }
+            }
+            stream.close();
+            stream = null;
+            if (!tempFile.renameTo(myFile)) {
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            IOUtil.closeQuietly(stream);
+            tempFile.delete();
+        }
+    }
+}
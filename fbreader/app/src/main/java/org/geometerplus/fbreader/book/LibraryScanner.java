@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.fbreader.book;
+
+import org.LogUtils;
+import org.geometerplus.zlibrary.core.filesystem.ZLFile;
+import org.geometerplus.zlibrary.core.filesystem.ZLPhysicalFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pipelined library scan. Directories are walked in parallel and the found files
+ * are passed through a bounded queue to a pool of readers, which extract book infos
+ * (native plugins serialize the calls themselves). The calling thread receives
+ * the books in batches, so it can store them in one transaction per batch.
+ */
+final class LibraryScanner {
+    static final String TAG = "FBReader.Library";
+
+    interface FileProcessor {
+        /**
+         * Called in a reader thread; adds the books found in the file to the list.
+         */
+        void process(ZLPhysicalFile file, List<DbBook> books);
+    }
+
+    interface BatchWriter {
+        /**
+         * Called in the thread that runs scan().
+         */
+        void write(List<DbBook> books);
+    }
+
+    static final class Statistics {
+        final AtomicLong Directories = new AtomicLong();
+        final AtomicLong UnchangedDirectories = new AtomicLong();
+        final AtomicLong Files = new AtomicLong();
+        final AtomicLong Books = new AtomicLong();
+        final AtomicLong Batches = new AtomicLong();
+        final AtomicLong WalkNanos = new AtomicLong();
+        final AtomicLong ReadNanos = new AtomicLong();
+        final AtomicLong WriteNanos = new AtomicLong();
+        volatile long TotalNanos;
+
+        float filesPerSecond() {
+            return TotalNanos > 0 ? Files.get() * 1e9f / TotalNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "LibraryScanner: " + Files.get() + " files in " + Directories.get() + " directories ("
+                    + UnchangedDirectories.get() + " unchanged), "
+                    + Books.get() + " books in " + ms(TotalNanos) + " ms (" + (int) filesPerSecond() + " files/s); "
+                    + "walk " + ms(WalkNanos.get()) + " ms, read " + ms(ReadNanos.get()) + " ms (all readers), "
+                    + "write " + ms(WriteNanos.get()) + " ms in " + Batches.get() + " batches";
+        }
+
+        private static long ms(long nanos) {
+            return nanos / 1000000;
+        }
+    }
+
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int BATCH_SIZE = 50;
+    // a batch is written anyway if no book has arrived during this period
+    private static final long BATCH_TIMEOUT_MS = 500;
+    private static final Object END = new Object();
+
+    private final int myWalkerCount;
+    private final int myReaderCount;
+
+    LibraryScanner() {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        myWalkerCount = Math.max(1, Math.min(processors, 4));
+        myReaderCount = Math.max(1, Math.min(processors, 4));
+    }
+
+    /**
+     * @param journal if not null, the files of the directories it reports as unchanged
+     *                are not processed; the state of all walked directories is recorded
+     */
+    Statistics scan(List<String> paths, DirectoryJournal journal, final FileProcessor processor, BatchWriter writer) {
+        final Statistics stats = new Statistics();
+        final long start = System.nanoTime();
+
+        final BlockingQueue<Object> files = new ArrayBlockingQueue<Object>(QUEUE_CAPACITY);
+        final BlockingQueue<Object> books = new ArrayBlockingQueue<Object>(QUEUE_CAPACITY);
+
+        startWalk(paths, journal, files, stats, start);
+
+        final AtomicInteger activeReaders = new AtomicInteger(myReaderCount);
+        for (int i = 0; i < myReaderCount; ++i) {
+            final Thread reader = new Thread("Library.read") {
+                public void run() {
+                    try {
+                        final List<DbBook> found = new ArrayList<DbBook>();
+                        for (Object o = take(files); o != END; o = take(files)) {
+                            final long readStart = System.nanoTime();
+                            try {
+                                processor.process((ZLPhysicalFile) o, found);
+                            } catch (Throwable t) {
+                                LogUtils.d(TAG, "Cannot process " + o, t);
+                            }
+                            stats.ReadNanos.addAndGet(System.nanoTime() - readStart);
+                            for (DbBook b : found) {
+                                put(books, b);
+                            }
+                            found.clear();
+                        }
+                    } finally {
+                        if (activeReaders.decrementAndGet() == 0) {
+                            put(books, END);
+                        }
+                    }
+                }
+            };
+            reader.setPriority(Thread.MIN_PRIORITY);
+            reader.start();
+        }
+
+        final List<DbBook> batch = new ArrayList<DbBook>(BATCH_SIZE);
+        while (true) {
+            final Object o = poll(books, BATCH_TIMEOUT_MS);
+            if (o == END) {
+                break;
+            }
+            if (o != null) {
+                batch.add((DbBook) o);
+            }
+            if (batch.size() >= BATCH_SIZE || (o == null && !batch.isEmpty())) {
+                write(writer, batch, stats);
+            }
+        }
+        if (!batch.isEmpty()) {
+            write(writer, batch, stats);
+        }
+
+        stats.TotalNanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    private void startWalk(List<String> paths, final DirectoryJournal journal, final BlockingQueue<Object> files, final Statistics stats, final long start) {
+        final ExecutorService walkers = Executors.newFixedThreadPool(myWalkerCount, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "Library.walk");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        final Set<ZLPhysicalFile> visited =
+                Collections.newSetFromMap(new ConcurrentHashMap<ZLPhysicalFile, Boolean>());
+        // entries submitted and not processed yet; the last one finishes the walk
+        final AtomicInteger pending = new AtomicInteger(1);
+
+        final class Visit implements Runnable {
+            private final ZLPhysicalFile myEntry;
+
+            Visit(ZLPhysicalFile entry) {
+                myEntry = entry;
+            }
+
+            private void submit(ZLPhysicalFile entry) {
+                pending.incrementAndGet();
+                walkers.execute(new Visit(entry));
+            }
+
+            public void run() {
+                try {
+                    if (!myEntry.exists()) {
+                        return;
+                    }
+                    if (myEntry.isDirectory()) {
+                        if (!visited.add(myEntry)) {
+                            return;
+                        }
+                        stats.Directories.incrementAndGet();
+                        if (journal == null) {
+                            for (ZLFile child : myEntry.children()) {
+                                submit((ZLPhysicalFile) child);
+                            }
+                            return;
+                        }
+                        // taken before listing, so the changes made meanwhile are seen next time
+                        final long lastModified = myEntry.lastModified();
+                        final List<ZLPhysicalFile> unchanged =
+                                journal.unchangedSubdirectories(myEntry, lastModified);
+                        if (unchanged != null) {
+                            stats.UnchangedDirectories.incrementAndGet();
+                            for (ZLPhysicalFile subdirectory : unchanged) {
+                                submit(subdirectory);
+                            }
+                        } else {
+                            final List<String> subdirectories = new ArrayList<String>();
+                            for (ZLFile child : myEntry.children()) {
+                                if (child.isDirectory()) {
+                                    subdirectories.add(((ZLPhysicalFile) child).javaFile().getName());
+                                }
+                                submit((ZLPhysicalFile) child);
+                            }
+                            journal.record(myEntry, lastModified, subdirectories);
+                        }
+                    } else {
+                        stats.Files.incrementAndGet();
+                        put(files, myEntry);
+                    }
+                } catch (Throwable t) {
+                    LogUtils.d(TAG, "Cannot walk " + myEntry, t);
+                } finally {
+                    if (pending.decrementAndGet() == 0) {
+                        stats.WalkNanos.set(System.nanoTime() - start);
+                        walkers.shutdown();
+                        for (int i = 0; i < myReaderCount; ++i) {
+                            put(files, END);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (String p : paths) {
+            pending.incrementAndGet();
+            walkers.execute(new Visit(new ZLPhysicalFile(new File(p))));
+        }
+        // releases the initial count, so an empty path list also finishes the walk
+        if (pending.decrementAndGet() == 0) {
+            walkers.shutdown();
+            for (int i = 0; i < myReaderCount; ++i) {
+                put(files, END);
+            }
+        }
+    }
+
+    private static void write(BatchWriter writer, List<DbBook> batch, Statistics stats) {
+        final long writeStart = System.nanoTime();
+        writer.write(batch);
+        stats.WriteNanos.addAndGet(System.nanoTime() - writeStart);
+        stats.Books.addAndGet(batch.size());
+        stats.Batches.incrementAndGet();
+        batch.clear();
+    }
+
+    private static Object take(BlockingQueue<Object> queue) {
+        while (true) {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                // continue waiting
+            }
+        }
+    }
+
+    private static Object poll(BlockingQueue<Object> queue, long timeoutMs) {
+        try {
+            return queue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    private static void put(BlockingQueue<Object> queue, Object o) {
+        while (true) {
+            try {
+                queue.put(o);
+                return;
+            } catch (InterruptedException e) {
+                // continue waiting
+            }
+        }
+    }
+}
@@ -31,6 +31,7 @@ import org.geometerplus.zlibrary.text.model.CachedCharStorage;
 import org.geometerplus.zlibrary.text.model.ZLTextModel;
 import org.geometerplus.zlibrary.text.model.ZLTextPlainModel;
 
+import java.nio.CharBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -45,6 +46,8 @@ public final class BookModel {
     protected ZLTextModel myBookTextModel;
     private LabelResolver myResolver;
     private TOCTree myCurrentTree = TOCTree;
+    private BookModelCache myRecordingCache;
+    private String myCacheDirectory;
 
     protected BookModel(Book book) {
         Book = book;
@@ -54,6 +57,7 @@ public final class BookModel {
         if (plugin instanceof BuiltinFormatPlugin) {
             final BookModel model = new BookModel(book);
             ((BuiltinFormatPlugin) plugin).readModel(model);
+            ((BuiltinFormatPlugin) plugin).initModel(model);
             return model;
         }
 
@@ -62,6 +66,56 @@ public final class BookModel {
         );
     }
 
+    /**
+     * Restores the model from the cache if possible;
+     * otherwise reads it by the plugin and stores into the cache.
+     *
+     * @param cache the model cache for the book, might be null
+     */
+    public static BookModel createModel(Book book, FormatPlugin plugin, BookModelCache cache) throws BookReadingException {
+        if (cache == null || !(plugin instanceof BuiltinFormatPlugin)) {
+            return createModel(book, plugin);
+        }
+
+        final BookModel cached = new BookModel(book);
+        cached.myCacheDirectory = cache.directory();
+        if (cache.restore(cached)) {
+            ((BuiltinFormatPlugin) plugin).initModel(cached);
+            return cached;
+        }
+
+        final BookModel model = new BookModel(book);
+        if (cache.startRecording()) {
+            model.myCacheDirectory = cache.directory();
+            model.myRecordingCache = cache;
+        }
+        try {
+            ((BuiltinFormatPlugin) plugin).readModel(model);
+            cache.finishRecording();
+            ((BuiltinFormatPlugin) plugin).initModel(model);
+        } finally {
+            model.myRecordingCache = null;
+            cache.endRecording();
+        }
+        return model;
+    }
+
+    /**
+     * @return the directory for the model's cache files (both for a restored model
+     * and for a model read by the plugin into the cache) or null if the model is not cached.
+     */
+    public String getCacheDirectory() {
+        return myCacheDirectory;
+    }
+
+    /**
+     * @return a fresh directory the plugin should write ncache files to
+     * while the model is recorded into the cache, or null if the model is not cached.
+     */
+    public String getRecordingDirectory() {
+        return myRecordingCache != null ? myRecordingCache.recordingDirectory() : null;
+    }
+
     public void setLabelResolver(LabelResolver resolver) {
         myResolver = resolver;
     }
@@ -80,6 +134,9 @@ public final class BookModel {
     }
 
     public void registerFontFamilyList(String[] families) {
+        if (myRecordingCache != null) {
+            myRecordingCache.onRegisterFontFamilyList(families);
+        }
         FontManager.index(Arrays.asList(families));
     }
 
@@ -88,6 +145,9 @@ public final class BookModel {
     }
 
     public void registerFontEntry(String family, FileInfo normal, FileInfo bold, FileInfo italic, FileInfo boldItalic) {
+        if (myRecordingCache != null) {
+            myRecordingCache.onRegisterFontEntry(family, normal, bold, italic, boldItalic);
+        }
         registerFontEntry(family, new FontEntry(family, normal, bold, italic, boldItalic));
     }
 
@@ -97,19 +157,35 @@ public final class BookModel {
             int[] paragraphLenghts, int[] textSizes, byte[] paragraphKinds,
             String directoryName, String name, String fileExtension, int blocksNumber
     ) {
-        return new ZLTextPlainModel(
+        final ZLTextModel model = new ZLTextPlainModel(
                 id, language, paragraphsNumber,
                 entryIndices, entryOffsets,
                 paragraphLenghts, textSizes, paragraphKinds,
-                directoryName, name, fileExtension, blocksNumber, myImageMap, FontManager
+                directoryName, name, fileExtension, blocksNumber,
+                myCacheDirectory != null, myImageMap, FontManager
         );
+        if (myRecordingCache != null) {
+            myRecordingCache.onCreateTextModel(
+                    model, id, language, paragraphsNumber,
+                    entryIndices, entryOffsets,
+                    paragraphLenghts, textSizes, paragraphKinds,
+                    directoryName, name, fileExtension, blocksNumber
+            );
+        }
+        return model;
     }
 
     public void setBookTextModel(ZLTextModel model) {
+        if (myRecordingCache != null) {
+            myRecordingCache.onSetBookTextModel(model);
+        }
         myBookTextModel = model;
     }
 
     public void setFootnoteModel(ZLTextModel model) {
+        if (myRecordingCache != null) {
+            myRecordingCache.onSetFootnoteModel(model);
+        }
         myFootnotes.put(model.getId(), model);
     }
 
@@ -122,20 +198,33 @@ public final class BookModel {
     }
 
     public void addImage(String id, ZLImage image) {
+        if (myRecordingCache != null) {
+            myRecordingCache.onAddImage(id, image);
+        }
         myImageMap.put(id, image);
     }
 
     public void initInternalHyperlinks(String directoryName, String name, String fileExtension, int blocksNumber) {
-        myInternalHyperlinks = new CachedCharStorage(directoryName, name, fileExtension, blocksNumber);
+        if (myRecordingCache != null) {
+            myRecordingCache.onInitInternalHyperlinks(directoryName, name, fileExtension, blocksNumber);
+        }
+        // cached ncache files are never rewritten, see BookModelCache.startRecording()
+        myInternalHyperlinks = new CachedCharStorage(directoryName, name, fileExtension, blocksNumber, myCacheDirectory != null);
     }
 
     public void addTOCItem(String text, int reference) {
+        if (myRecordingCache != null) {
+            myRecordingCache.onAddTOCItem(text, reference);
+        }
         myCurrentTree = new TOCTree(myCurrentTree);
         myCurrentTree.setText(text);
         myCurrentTree.setReference(myBookTextModel, reference);
     }
 
     public void leaveTOCItem() {
+        if (myRecordingCache != null) {
+            myRecordingCache.onLeaveTOCItem();
+        }
         myCurrentTree = myCurrentTree.Parent;
         if (myCurrentTree == null) {
             myCurrentTree = TOCTree;
@@ -147,27 +236,39 @@ public final class BookModel {
         final int size = myInternalHyperlinks.size();
 
         for (int i = 0; i < size; ++i) {
-            final char[] block = myInternalHyperlinks.block(i);
-            for (int offset = 0; offset < block.length; ) {
-                final int labelLength = (int) block[offset++];
+            final CharBuffer block = myInternalHyperlinks.buffer(i);
+            final int blockLength = block.limit();
+            for (int offset = 0; offset < blockLength; ) {
+                final int labelLength = (int) block.get(offset++);
                 if (labelLength == 0) {
                     break;
                 }
-                final int idLength = (int) block[offset + labelLength];
-                if (labelLength != len || !id.equals(new String(block, offset, labelLength))) {
+                final int idLength = (int) block.get(offset + labelLength);
+                if (labelLength != len || !regionMatches(block, offset, id)) {
                     offset += labelLength + idLength + 3;
                     continue;
                 }
                 offset += labelLength + 1;
-                final String modelId = (idLength > 0) ? new String(block, offset, idLength) : null;
+                final String modelId = (idLength > 0)
+                        ? block.subSequence(offset, offset + idLength).toString() : null;
                 offset += idLength;
-                final int paragraphNumber = (int) block[offset] + (((int) block[offset + 1]) << 16);
+                final int paragraphNumber = (int) block.get(offset) + (((int) block.get(offset + 1)) << 16);
                 return new Label(modelId, paragraphNumber);
             }
         }
         return null;
     }
 
+    private static boolean regionMatches(CharBuffer block, int offset, String id) {
+        final int len = id.length();
+        for (int i = 0; i < len; ++i) {
+            if (block.get(offset + i) != id.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public interface LabelResolver {
         List<String> getCandidates(String id);
     }
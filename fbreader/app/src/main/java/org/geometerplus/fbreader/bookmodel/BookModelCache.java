@@ -0,0 +1,548 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.fbreader.bookmodel;
+
+import org.fbreader.util.IOUtil;
+import org.geometerplus.fbreader.formats.FormatPlugin;
+import org.geometerplus.zlibrary.core.drm.FileEncryptionInfo;
+import org.geometerplus.zlibrary.core.fonts.FileInfo;
+import org.geometerplus.zlibrary.core.image.ZLFileImage;
+import org.geometerplus.zlibrary.core.image.ZLImage;
+import org.geometerplus.zlibrary.core.library.ZLibrary;
+import org.geometerplus.zlibrary.text.model.ZLTextModel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Persistent cache of parsed book models.
+ *
+ * While the format plugin reads a model, the calls it makes to {@link BookModel}
+ * (text models, footnotes, images, TOC, fonts, internal hyperlinks) are recorded;
+ * the native plugin writes its ncache files into a fresh subdirectory of the per-book directory,
+ * so files a live model might have mapped are never rewritten.
+ * Next time the book is opened, the model is rebuilt by replaying these calls,
+ * so the plugin is not invoked at all.
+ */
+public final class BookModelCache {
+    private static final int VERSION = 1;
+    private static final int MAX_CACHED_BOOKS = 8;
+    private static final String INDEX_FILE_NAME = "model.cache";
+    private static final String SEARCH_INDEX_FILE_NAME = "search.index";
+    private static final String TEXT_DIRECTORY_PREFIX = "text-";
+
+    private static final byte CREATE_TEXT_MODEL = 1;
+    private static final byte SET_BOOK_TEXT_MODEL = 2;
+    private static final byte SET_FOOTNOTE_MODEL = 3;
+    private static final byte ADD_IMAGE = 4;
+    private static final byte INIT_INTERNAL_HYPERLINKS = 5;
+    private static final byte ADD_TOC_ITEM = 6;
+    private static final byte LEAVE_TOC_ITEM = 7;
+    private static final byte REGISTER_FONT_FAMILY_LIST = 8;
+    private static final byte REGISTER_FONT_ENTRY = 9;
+    private static final byte END = 0;
+
+    private final File myRootDirectory;
+    private final File myDirectory;
+    private final String myKey;
+
+    private File myRecordingDirectory;
+    private ByteArrayOutputStream myBuffer;
+    private DataOutputStream myOutput;
+    private final List<ZLTextModel> myModels = new ArrayList<ZLTextModel>();
+
+    /**
+     * @param rootDirectory directory for all cached models
+     * @param bookHash      hash of the book file content
+     * @param plugin        plugin used to read the model
+     */
+    public BookModelCache(String rootDirectory, String bookHash, FormatPlugin plugin) {
+        myRootDirectory = new File(rootDirectory);
+        myDirectory = new File(myRootDirectory, bookHash);
+        // the plugin output may change between application versions
+        myKey = bookHash + ":" + plugin.supportedFileType() + ":" + ZLibrary.Instance().getVersionName();
+    }
+
+    /**
+     * The directory the plugin should write ncache files to.
+     */
+    public String directory() {
+        return myDirectory.getPath();
+    }
+
+    /**
+     * The directory the plugin writes ncache files to while the model is recorded.
+     */
+    String recordingDirectory() {
+        return myRecordingDirectory != null ? myRecordingDirectory.getPath() : null;
+    }
+
+    /**
+     * The file the search index of the book text model is stored to.
+     */
+    public File searchIndexFile() {
+        return new File(myDirectory, SEARCH_INDEX_FILE_NAME);
+    }
+
+    boolean restore(BookModel model) {
+        final File file = new File(myDirectory, INDEX_FILE_NAME);
+        if (!file.exists()) {
+            return false;
+        }
+
+        DataInputStream stream = null;
+        try {
+            stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16384));
+            if (stream.readInt() != VERSION || !myKey.equals(stream.readUTF())) {
+                return false;
+            }
+            myModels.clear();
+            while (true) {
+                final byte operation = stream.readByte();
+                switch (operation) {
+                    case END:
+                        myDirectory.setLastModified(System.currentTimeMillis());
+                        return true;
+                    case CREATE_TEXT_MODEL: {
+                        final String id = readString(stream);
+                        final String language = readString(stream);
+                        final int paragraphsNumber = stream.readInt();
+                        final int[] entryIndices = readIntArray(stream);
+                        final int[] entryOffsets = readIntArray(stream);
+                        final int[] paragraphLengths = readIntArray(stream);
+                        final int[] textSizes = readIntArray(stream);
+                        final byte[] paragraphKinds = new byte[stream.readInt()];
+                        stream.readFully(paragraphKinds);
+                        final String directoryName = stream.readUTF();
+                        final String name = stream.readUTF();
+                        final String fileExtension = stream.readUTF();
+                        final int blocksNumber = stream.readInt();
+                        if (!blocksExist(directoryName, name, fileExtension, blocksNumber)) {
+                            return false;
+                        }
+                        myModels.add(model.createTextModel(
+                                id, language, paragraphsNumber,
+                                entryIndices, entryOffsets,
+                                paragraphLengths, textSizes, paragraphKinds,
+                                directoryName, name, fileExtension, blocksNumber
+                        ));
+                        break;
+                    }
+                    case SET_BOOK_TEXT_MODEL:
+                        model.setBookTextModel(myModels.get(stream.readInt()));
+                        break;
+                    case SET_FOOTNOTE_MODEL:
+                        model.setFootnoteModel(myModels.get(stream.readInt()));
+                        break;
+                    case ADD_IMAGE: {
+                        final String id = stream.readUTF();
+                        final ZLFileImage image = ZLFileImage.byUrlPath(stream.readUTF());
+                        if (image == null) {
+                            return false;
+                        }
+                        model.addImage(id, image);
+                        break;
+                    }
+                    case INIT_INTERNAL_HYPERLINKS: {
+                        final String directoryName = stream.readUTF();
+                        final String name = stream.readUTF();
+                        final String fileExtension = stream.readUTF();
+                        final int blocksNumber = stream.readInt();
+                        if (!blocksExist(directoryName, name, fileExtension, blocksNumber)) {
+                            return false;
+                        }
+                        model.initInternalHyperlinks(directoryName, name, fileExtension, blocksNumber);
+                        break;
+                    }
+                    case ADD_TOC_ITEM: {
+                        final String text = readString(stream);
+                        model.addTOCItem(text, stream.readInt());
+                        break;
+                    }
+                    case LEAVE_TOC_ITEM:
+                        model.leaveTOCItem();
+                        break;
+                    case REGISTER_FONT_FAMILY_LIST: {
+                        final String[] families = new String[stream.readInt()];
+                        for (int i = 0; i < families.length; ++i) {
+                            families[i] = stream.readUTF();
+                        }
+                        model.registerFontFamilyList(families);
+                        break;
+                    }
+                    case REGISTER_FONT_ENTRY: {
+                        final String family = stream.readUTF();
+                        final FileInfo normal = readFileInfo(stream);
+                        final FileInfo bold = readFileInfo(stream);
+                        final FileInfo italic = readFileInfo(stream);
+                        final FileInfo boldItalic = readFileInfo(stream);
+                        model.registerFontEntry(family, normal, bold, italic, boldItalic);
+                        break;
+                    }
+                    default:
+                        return false;
+                }
+            }
+        } catch (Exception e) {
+            return false;
+        } finally {
+            myModels.clear();
+            IOUtil.closeQuietly(stream);
+        }
+    }
+
+    private static boolean blocksExist(String directoryName, String name, String fileExtension, int blocksNumber) {
+        for (int i = 0; i < blocksNumber; ++i) {
+            if (!new File(directoryName + '/' + name + '_' + i + '.' + fileExtension).exists()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the cache directory cannot be created, the model is not recorded then
+     */
+    boolean startRecording() {
+        myDirectory.mkdirs();
+        new File(myDirectory, INDEX_FILE_NAME).delete();
+        // without the index nothing refers to the ncache files of earlier recordings
+        myRecordingDirectory = null;
+        deleteStaleTextDirectories();
+        File directory;
+        for (long time = System.currentTimeMillis(); ; ++time) {
+            directory = new File(myDirectory, TEXT_DIRECTORY_PREFIX + Long.toHexString(time));
+            if (!directory.exists()) {
+                break;
+            }
+        }
+        if (!directory.mkdir()) {
+            return false;
+        }
+        myRecordingDirectory = directory;
+        myModels.clear();
+        myBuffer = new ByteArrayOutputStream(65536);
+        myOutput = new DataOutputStream(myBuffer);
+        try {
+            myOutput.writeInt(VERSION);
+            myOutput.writeUTF(myKey);
+        } catch (IOException e) {
+            stopRecording();
+        }
+        return true;
+    }
+
+    private void stopRecording() {
+        myBuffer = null;
+        myOutput = null;
+        myModels.clear();
+    }
+
+    /**
+     * Drops the recording state and trims the cache; must be called after every startRecording(),
+     * whether the recording is finished, aborted or failed with an exception.
+     */
+    void endRecording() {
+        stopRecording();
+        trim();
+    }
+
+    /**
+     * Removes ncache files of the models recorded before the current one.
+     */
+    private void deleteStaleTextDirectories() {
+        final File[] children = myDirectory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.getName().startsWith(TEXT_DIRECTORY_PREFIX) && !child.equals(myRecordingDirectory)) {
+                delete(child);
+            }
+        }
+    }
+
+    void finishRecording() {
+        if (myOutput == null) {
+            return;
+        }
+
+        final File file = new File(myDirectory, INDEX_FILE_NAME);
+        final File tempFile = new File(myDirectory, INDEX_FILE_NAME + ".tmp");
+        FileOutputStream stream = null;
+        try {
+            myOutput.writeByte(END);
+            myOutput.flush();
+            stream = new FileOutputStream(tempFile);
+            myBuffer.writeTo(stream);
+            stream.close();
+            stream = null;
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            IOUtil.closeQuietly(stream);
+            tempFile.delete();
+        } finally {
+            stopRecording();
+        }
+    }
+
+    /**
+     * Removes least recently used models if there are too many of them.
+     */
+    private void trim() {
+        final File[] directories = myRootDirectory.listFiles();
+        if (directories == null || directories.length <= MAX_CACHED_BOOKS) {
+            return;
+        }
+        Arrays.sort(directories, new Comparator<File>() {
+            public int compare(File f0, File f1) {
+                final long diff = f1.lastModified() - f0.lastModified();
+                return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+            }
+        });
+        for (int i = MAX_CACHED_BOOKS; i < directories.length; ++i) {
+            if (!directories[i].equals(myDirectory)) {
+                delete(directories[i]);
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    void onCreateTextModel(
+            ZLTextModel model,
+            String id, String language, int paragraphsNumber,
+            int[] entryIndices, int[] entryOffsets,
+            int[] paragraphLengths, int[] textSizes, byte[] paragraphKinds,
+            String directoryName, String name, String fileExtension, int blocksNumber
+    ) {
+        if (myOutput == null) {
+            return;
+        }
+        try {
+            myModels.add(model);
+            myOutput.writeByte(CREATE_TEXT_MODEL);
+            writeString(myOutput, id);
+            writeString(myOutput, language);
+            myOutput.writeInt(paragraphsNumber);
+            writeIntArray(myOutput, entryIndices);
+            writeIntArray(myOutput, entryOffsets);
+            writeIntArray(myOutput, paragraphLengths);
+            writeIntArray(myOutput, textSizes);
+            myOutput.writeInt(paragraphKinds.length);
+            myOutput.write(paragraphKinds);
+            myOutput.writeUTF(directoryName);
+            myOutput.writeUTF(name);
+            myOutput.writeUTF(fileExtension);
+            myOutput.writeInt(blocksNumber);
+        } catch (IOException e) {
+            stopRecording();
+        }
+    }
+
+    void onSetBookTextModel(ZLTextModel model) {
+        writeModelOperation(SET_BOOK_TEXT_MODEL, model);
+    }
+
+    void onSetFootnoteModel(ZLTextModel model) {
+        writeModelOperation(SET_FOOTNOTE_MODEL, model);
+    }
+
+    private void writeModelOperation(byte operation, ZLTextModel model) {
+        if (myOutput == null) {
+            return;
+        }
+        final int index = myModels.indexOf(model);
+        if (index == -1) {
+            stopRecording();
+            return;
+        }
+        try {
+            myOutput.writeByte(operation);
+            myOutput.writeInt(index);
+        } catch (IOException e) {
+            stopRecording();
+        }
+    }
+
+    void onAddImage(String id, ZLImage image) {
+        if (myOutput == null) {
+            return;
+        }
+        // only unencrypted file images can be restored from their URI
+        if (!(image instanceof ZLFileImage) || ((ZLFileImage) image).encryptionInfo() != null) {
+            stopRecording();
+            return;
+        }
+        try {
+            myOutput.writeByte(ADD_IMAGE);
+            myOutput.writeUTF(id);
+            myOutput.writeUTF(((ZLFileImage) image).getURI().substring(ZLFileImage.SCHEME.length() + 3));
+        } catch (IOException e) {
+            stopRecording();
+        }
+    }
+
+    void onInitInternalHyperlinks(String directoryName, String name, String fileExtension, int blocksNumber) {
+        if (myOutput == null) {
+            return;
+        }
+        try {
+            myOutput.writeByte(INIT_INTERNAL_HYPERLINKS);
+            myOutput.writeUTF(directoryName);
+            myOutput.writeUTF(name);
+            myOutput.writeUTF(fileExtension);
+            myOutput.writeInt(blocksNumber);
+        } catch (IOException e) {
+            stopRecording();
+        }
+    }
+
+    void onAddTOCItem(String text, int reference) {
+        if (myOutput == null) {
+            return;
+        }
+        try {
+            myOutput.writeByte(ADD_TOC_ITEM);
+            writeString(myOutput, text);
+            myOutput.writeInt(reference);
+        } catch (IOException e) {
+            stopRecording();
+        }
+    }
+
+    void onLeaveTOCItem() {
+        if (myOutput == null) {
+            return;
+        }
+        try {
+            myOutput.writeByte(LEAVE_TOC_ITEM);
+        } catch (IOException e) {
+            stopRecording();
+        }
+    }
+
+    void onRegisterFontFamilyList(String[] families) {
+        if (myOutput == null) {
+            return;
+        }
+        try {
+            myOutput.writeByte(REGISTER_FONT_FAMILY_LIST);
+            myOutput.writeInt(families.length);
+            for (String f : families) {
+                myOutput.writeUTF(f);
+            }
+        } catch (IOException e) {
+            stopRecording();
+        }
+    }
+
+    void onRegisterFontEntry(String family, FileInfo normal, FileInfo bold, FileInfo italic, FileInfo boldItalic) {
+        if (myOutput == null) {
+            return;
+        }
+        try {
+            myOutput.writeByte(REGISTER_FONT_ENTRY);
+            myOutput.writeUTF(family);
+            writeFileInfo(myOutput, normal);
+            writeFileInfo(myOutput, bold);
+            writeFileInfo(myOutput, italic);
+            writeFileInfo(myOutput, boldItalic);
+        } catch (IOException e) {
+            stopRecording();
+        }
+    }
+
+    private static void writeString(DataOutputStream stream, String value) throws IOException {
+        stream.writeBoolean(value != null);
+        if (value != null) {
+            stream.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream stream) throws IOException {
+        return stream.readBoolean() ? stream.readUTF() : null;
+    }
+
+    private static void writeIntArray(DataOutputStream stream, int[] array) throws IOException {
+        stream.writeInt(array.length);
+        for (int value : array) {
+            stream.writeInt(value);
+        }
+    }
+
+    private static int[] readIntArray(DataInputStream stream) throws IOException {
+        final int[] array = new int[stream.readInt()];
+        for (int i = 0; i < array.length; ++i) {
+            array[i] = stream.readInt();
+        }
+        return array;
+    }
+
+    private static void writeFileInfo(DataOutputStream stream, FileInfo info) throws IOException {
+        stream.writeBoolean(info != null);
+        if (info != null) {
+            stream.writeUTF(info.Path);
+            final FileEncryptionInfo encryption = info.EncryptionInfo;
+            stream.writeBoolean(encryption != null);
+            if (encryption != null) {
+                writeString(stream, encryption.Uri);
+                writeString(stream, encryption.Method);
+                writeString(stream, encryption.Algorithm);
+                writeString(stream, encryption.ContentId);
+            }
+        }
+    }
+
+    private static FileInfo readFileInfo(DataInputStream stream) throws IOException {
+        if (!stream.readBoolean()) {
+            return null;
+        }
+        final String path = stream.readUTF();
+        FileEncryptionInfo encryption = null;
+        if (stream.readBoolean()) {
+            encryption = new FileEncryptionInfo(
+                    readString(stream), readString(stream), readString(stream), readString(stream)
+            );
+        }
+        return new FileInfo(path, encryption);
+    }
+}
@@ -29,6 +29,7 @@ import org.geometerplus.fbreader.book.BookmarkQuery;
 import org.geometerplus.fbreader.book.BookmarkUtil;
 import org.geometerplus.fbreader.book.IBookCollection;
 import org.geometerplus.fbreader.bookmodel.BookModel;
+import org.geometerplus.fbreader.bookmodel.BookModelCache;
 import org.geometerplus.fbreader.bookmodel.TOCTree;
 import org.geometerplus.fbreader.fbreader.options.CancelMenuHelper;
 import org.geometerplus.fbreader.fbreader.options.ImageOptions;
@@ -51,6 +52,8 @@ import org.geometerplus.zlibrary.core.util.RationalNumber;
 import org.geometerplus.zlibrary.core.util.SystemInfo;
 import org.geometerplus.zlibrary.text.hyphenation.ZLTextHyphenator;
 import org.geometerplus.zlibrary.text.model.ZLTextModel;
+import org.geometerplus.zlibrary.text.model.ZLTextPlainModel;
+import org.geometerplus.zlibrary.text.model.ZLTextSearchIndex;
 import org.geometerplus.zlibrary.text.view.ZLTextFixedPosition;
 import org.geometerplus.zlibrary.text.view.ZLTextParagraphCursor;
 import org.geometerplus.zlibrary.text.view.ZLTextPosition;
@@ -58,6 +61,7 @@ import org.geometerplus.zlibrary.text.view.ZLTextPositionWithTimestamp;
 import org.geometerplus.zlibrary.text.view.ZLTextView;
 import org.geometerplus.zlibrary.text.view.ZLTextWordCursor;
 
+import java.io.File;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -65,6 +69,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public final class FBReaderApp extends ZLApplication implements IBookCollection.Listener<Book> {
     public final MiscOptions MiscOptions = new MiscOptions();
@@ -79,6 +85,15 @@ public final class FBReaderApp extends ZLApplication implements IBookCollection.
     private final ZLKeyBindings myBindings = new ZLKeyBindings();
     private final SyncData mySyncData = new SyncData();
     private final ExecutorService mySaver = Executors.newSingleThreadExecutor();
+    private final ExecutorService mySearchIndexer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "FBReaderApp.searchIndex");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private Future<?> mySearchIndexTask;
     public volatile BookModel Model;
     public volatile Book ExternalBook;
     private ExternalFileOpener myExternalFileOpener;
@@ -341,7 +356,9 @@ public final class FBReaderApp extends ZLApplication implements IBookCollection.
         try {
             try {
                 myOpenInProgress = true;
-                Model = BookModel.createModel(book, plugin);
+                final BookModelCache modelCache = createModelCache(book, plugin);
+                Model = BookModel.createModel(book, plugin, modelCache);
+                startSearchIndexing(Model, modelCache);
                 Collection.saveBook(book);
                 ZLTextHyphenator.Instance().load(book.getLanguage());
                 BookTextView.setModel(Model.getTextModel());
@@ -395,6 +412,49 @@ public final class FBReaderApp extends ZLApplication implements IBookCollection.
         }
     }
 
+    private BookModelCache createModelCache(Book book, FormatPlugin plugin) {
+        if (!book.isLocal() || BookUtil.fileByBook(book).getPhysicalFile() == null) {
+            return null;
+        }
+        final String hash = Collection.getHash(book, false);
+        return hash != null
+                ? new BookModelCache(SystemInfo.tempDirectory() + "/models", hash, plugin)
+                : null;
+    }
+
+    /**
+     * Loads or builds the search index of the book text in background;
+     * until it is ready, text search scans all paragraphs.
+     * Indexing of the previously opened book is cancelled. Books without a model cache
+     * are not indexed: the index would be rebuilt on every open.
+     */
+    private synchronized void startSearchIndexing(BookModel model, BookModelCache cache) {
+        if (mySearchIndexTask != null) {
+            mySearchIndexTask.cancel(true);
+            mySearchIndexTask = null;
+        }
+        if (cache == null || model.getCacheDirectory() == null ||
+                !(model.getTextModel() instanceof ZLTextPlainModel)) {
+            return;
+        }
+        final ZLTextPlainModel textModel = (ZLTextPlainModel) model.getTextModel();
+        final File indexFile = cache.searchIndexFile();
+        mySearchIndexTask = mySearchIndexer.submit(new Runnable() {
+            public void run() {
+                ZLTextSearchIndex index = ZLTextSearchIndex.read(indexFile, textModel.getParagraphsNumber());
+                if (index == null) {
+                    index = textModel.buildSearchIndex();
+                    if (index == null) {
+                        // cancelled
+                        return;
+                    }
+                    index.write(indexFile);
+                }
+                textModel.setSearchIndex(index);
+            }
+        });
+    }
+
     private List<Bookmark> invisibleBookmarks() {
         final List<Bookmark> bookmarks = Collection.bookmarks(
                 new BookmarkQuery(Model.Book, false, 10)
@@ -54,6 +54,7 @@ import org.geometerplus.zlibrary.text.view.ZLTextView;
 import org.geometerplus.zlibrary.text.view.ZLTextWordRegionSoul;
 import org.geometerplus.zlibrary.text.view.style.ZLTextStyleCollection;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -81,6 +82,11 @@ public final class FBView extends ZLTextView {
         myBookElementManager = new BookElementManager(this);
     }
 
+    @Override
+    protected ZLTextView createLayoutView() {
+        return new FBView(myReader);
+    }
+
     @Override
     public void setModel(ZLTextModel model) {
         super.setModel(model);
@@ -574,6 +580,18 @@ public final class FBView extends ZLTextView {
         return myBookElementManager;
     }
 
+    @Override
+    protected File getPageMapFile() {
+        final BookModel model = myReader.Model;
+        final String directory = model != null ? model.getCacheDirectory() : null;
+        final ZLTextModel textModel = getModel();
+        if (directory == null || textModel == null) {
+            return null;
+        }
+        final String id = textModel.getId();
+        return new File(directory, id == null ? "pages" : "pages-" + Integer.toHexString(id.hashCode()));
+    }
+
     private abstract class Footer implements FooterArea {
         protected ArrayList<TOCTree> myTOCMarks;
         private Runnable UpdateTask = new Runnable() {
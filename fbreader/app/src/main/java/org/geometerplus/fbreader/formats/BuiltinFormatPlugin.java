@@ -28,4 +28,11 @@ public abstract class BuiltinFormatPlugin extends FormatPlugin {
     }
 
     public abstract void readModel(BookModel model) throws BookReadingException;
+
+    /**
+     * Sets up the model state that is not recorded into the model cache (e.g., the label resolver);
+     * called after readModel() and after restoring the model from the cache.
+     */
+    public void initModel(BookModel model) {
+    }
 }
@@ -109,15 +109,9 @@ public class NativeFormatPlugin extends BuiltinFormatPlugin {
     @Override
     synchronized public void readModel(BookModel model) throws BookReadingException {
         final int code;
-        String tempDirectory = SystemInfo.tempDirectory();
-        // add file directory for local book.
-        String path = model.Book.getPath();
-        if (model.Book.isLocal()) {
-            tempDirectory = tempDirectory + "/" + path.substring(path.lastIndexOf("/") + 1, path.lastIndexOf("."));
-            File dir = new File(tempDirectory);
-            if (!dir.exists()) {
-                dir.mkdir();
-            }
+        String tempDirectory = model.getRecordingDirectory();
+        if (tempDirectory == null) {
+            tempDirectory = bookTempDirectory(model);
         }
         synchronized (ourNativeLock) {
             code = readModelNative(model, tempDirectory);
@@ -138,6 +132,20 @@ public class NativeFormatPlugin extends BuiltinFormatPlugin {
         }
     }
 
+    private String bookTempDirectory(BookModel model) {
+        String tempDirectory = SystemInfo.tempDirectory();
+        // add file directory for local book.
+        String path = model.Book.getPath();
+        if (model.Book.isLocal()) {
+            tempDirectory = tempDirectory + "/" + path.substring(path.lastIndexOf("/") + 1, path.lastIndexOf("."));
+            File dir = new File(tempDirectory);
+            if (!dir.exists()) {
+                dir.mkdir();
+            }
+        }
+        return tempDirectory;
+    }
+
     private native int readModelNative(BookModel model, String cacheDir);
 
     @Override
@@ -61,8 +61,7 @@ public class FB2NativePlugin extends NativeFormatPlugin {
     }
 
     @Override
-    public void readModel(BookModel model) throws BookReadingException {
-        super.readModel(model);
+    public void initModel(BookModel model) {
         model.setLabelResolver(new BookModel.LabelResolver() {
             public List<String> getCandidates(String id) {
                 final List<String> candidates = new ArrayList<String>();
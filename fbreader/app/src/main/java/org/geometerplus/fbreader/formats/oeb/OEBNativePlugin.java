@@ -43,19 +43,23 @@ public class OEBNativePlugin extends NativeFormatPlugin {
         file.setCached(true);
         try {
             super.readModel(model);
-            model.setLabelResolver(new BookModel.LabelResolver() {
-                public List<String> getCandidates(String id) {
-                    final int index = id.indexOf("#");
-                    return index > 0
-                            ? Collections.<String>singletonList(id.substring(0, index))
-                            : Collections.<String>emptyList();
-                }
-            });
         } finally {
             file.setCached(false);
         }
     }
 
+    @Override
+    public void initModel(BookModel model) {
+        model.setLabelResolver(new BookModel.LabelResolver() {
+            public List<String> getCandidates(String id) {
+                final int index = id.indexOf("#");
+                return index > 0
+                        ? Collections.<String>singletonList(id.substring(0, index))
+                        : Collections.<String>emptyList();
+            }
+        });
+    }
+
     @Override
     public EncodingCollection supportedEncodings() {
         return new AutoEncodingCollection();
@@ -24,10 +24,17 @@ import org.geometerplus.fbreader.book.Book;
 import org.geometerplus.fbreader.book.Filter;
 import org.geometerplus.zlibrary.core.resources.ZLResource;
 
+import java.util.HashSet;
+import java.util.Set;
+
 public class SearchResultsTree extends FilteredTree {
     public final String Pattern;
     private final String myId;
     private final ZLResource myResource;
+    /**
+     * Ids of the books in the subtrees; keeps the duplicate check constant-time.
+     */
+    private final Set<Long> myBookIds = new HashSet<Long>();
 
     SearchResultsTree(RootTree root, String id, String pattern, int position) {
         super(root, new Filter.ByPattern(pattern), position);
@@ -61,8 +68,28 @@ public class SearchResultsTree extends FilteredTree {
         return myResource.getResource("summary").getValue().replace("%s", Pattern);
     }
 
+    /**
+     * Search results come from the collection best ranked first,
+     * so they are appended in that order instead of being sorted by title.
+     */
     @Override
     protected boolean createSubtree(Book book) {
-        return createBookWithAuthorsSubtree(book);
+        if (!myBookIds.add(book.getId())) {
+            return false;
+        }
+        new BookWithAuthorsTree(this, book, -1);
+        return true;
+    }
+
+    @Override
+    public void waitForOpening() {
+        myBookIds.clear();
+        super.waitForOpening();
+    }
+
+    @Override
+    public boolean removeBook(Book book) {
+        myBookIds.remove(book.getId());
+        return super.removeBook(book);
     }
 }
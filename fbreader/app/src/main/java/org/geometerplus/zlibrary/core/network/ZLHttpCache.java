@@ -0,0 +1,568 @@
+/*
+ * Copyright (C) 2010-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.core.network;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Disk cache for GET responses.
+ * A stored response is used as is until its max-age (or Expires) is over;
+ * after that it is revalidated with If-None-Match / If-Modified-Since.
+ * Least recently used entries are removed when the cache is over its size limit.
+ */
+public final class ZLHttpCache {
+    private static final int VERSION = 1;
+    private static final String META_SUFFIX = ".meta";
+    private static final String BODY_SUFFIX = ".body";
+    // larger responses (e.g. downloaded books) are not stored
+    private static final long MAX_ENTRY_SIZE = 1024 * 1024;
+    // a handler may stop reading just before the end of the stream,
+    // the rest is read when the entry is committed if it is not longer than that
+    private static final int MAX_UNREAD_TAIL = 8192;
+
+    private final File myDirectory;
+    private final long myMaxSize;
+    private long mySize = -1;
+
+    private int myLookups;
+    private int myFreshHits;
+    private int myRevalidatedHits;
+    private int myStores;
+    private int myEvictions;
+    private long myBytesServed;
+
+    ZLHttpCache(File directory, long maxSize) {
+        myDirectory = directory;
+        myMaxSize = maxSize;
+    }
+
+    static String key(ZLNetworkRequest request, String language) {
+        final StringBuilder key = new StringBuilder(request.URL);
+        key.append('\n').append(language);
+        for (Map.Entry<String, String> header : new TreeMap<String, String>(request.Headers).entrySet()) {
+            key.append('\n').append(header.getKey()).append(':').append(header.getValue());
+        }
+        return key.toString();
+    }
+
+    synchronized Entry lookup(String key) {
+        ++myLookups;
+        final String name = fileName(key);
+        final File meta = new File(myDirectory, name + META_SUFFIX);
+        final File body = new File(myDirectory, name + BODY_SUFFIX);
+        if (!meta.exists()) {
+            return null;
+        }
+        if (!body.exists()) {
+            meta.delete();
+            return null;
+        }
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(meta)));
+            if (is.readInt() != VERSION || !key.equals(is.readUTF())) {
+                return null;
+            }
+            final String eTag = readString(is);
+            final String lastModified = readString(is);
+            final long freshUntil = is.readLong();
+            return new Entry(key, eTag, lastModified, freshUntil, body);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(is);
+        }
+    }
+
+    /**
+     * @return stored response body, or null if the entry has been removed
+     */
+    synchronized InputStream openBody(Entry entry, boolean revalidated) {
+        final InputStream stream;
+        try {
+            stream = new FileInputStream(entry.Body);
+        } catch (IOException e) {
+            return null;
+        }
+        if (revalidated) {
+            ++myRevalidatedHits;
+        } else {
+            ++myFreshHits;
+        }
+        myBytesServed += entry.Body.length();
+        entry.Body.setLastModified(System.currentTimeMillis());
+        return stream;
+    }
+
+    /**
+     * Updates the entry after 304 Not Modified response.
+     */
+    synchronized Entry refresh(Entry entry, HttpResponse response) {
+        final String eTag = headerValue(response, "ETag");
+        final String lastModified = headerValue(response, "Last-Modified");
+        final Entry refreshed = new Entry(
+                entry.Key,
+                eTag != null ? eTag : entry.ETag,
+                lastModified != null ? lastModified : entry.LastModified,
+                freshUntil(response, System.currentTimeMillis()),
+                entry.Body
+        );
+        try {
+            writeMeta(fileName(entry.Key), refreshed);
+        } catch (IOException e) {
+            // the entry will be revalidated once more next time
+        }
+        return refreshed;
+    }
+
+    /**
+     * @return writer for the response body, or null if the response should not be stored
+     */
+    Writer startStore(String key, HttpResponse response) {
+        if (response.getStatusLine().getStatusCode() != 200) {
+            return null;
+        }
+        for (Header h : response.getHeaders("Cache-Control")) {
+            for (HeaderElement elt : h.getElements()) {
+                if ("no-store".equalsIgnoreCase(elt.getName())) {
+                    return null;
+                }
+            }
+        }
+        for (Header h : response.getHeaders("Vary")) {
+            for (HeaderElement elt : h.getElements()) {
+                final String name = elt.getName();
+                // language is a part of the key; the body is stored decoded
+                if (!"Accept-Language".equalsIgnoreCase(name) && !"Accept-Encoding".equalsIgnoreCase(name)) {
+                    return null;
+                }
+            }
+        }
+        final long length = response.getEntity() != null ? response.getEntity().getContentLength() : -1;
+        if (length > MAX_ENTRY_SIZE) {
+            return null;
+        }
+        final Entry entry = new Entry(
+                key,
+                headerValue(response, "ETag"),
+                headerValue(response, "Last-Modified"),
+                freshUntil(response, System.currentTimeMillis()),
+                null
+        );
+        if (!entry.canRevalidate() && !entry.isFresh(System.currentTimeMillis())) {
+            // such entry could never be used
+            return null;
+        }
+        try {
+            myDirectory.mkdirs();
+            return new Writer(entry, File.createTempFile("http", ".tmp", myDirectory));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private synchronized void store(Entry entry, File tmpFile) throws IOException {
+        final String name = fileName(entry.Key);
+        final File body = new File(myDirectory, name + BODY_SUFFIX);
+        ensureSizeIsKnown();
+        final long oldLength = body.length();
+        if (!tmpFile.renameTo(body)) {
+            tmpFile.delete();
+            return;
+        }
+        writeMeta(name, entry);
+        ++myStores;
+        mySize += body.length() - oldLength;
+        if (mySize > myMaxSize) {
+            evict();
+        }
+    }
+
+    private void ensureSizeIsKnown() {
+        if (mySize >= 0) {
+            return;
+        }
+        mySize = 0;
+        final File[] files = myDirectory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().endsWith(BODY_SUFFIX)) {
+                    mySize += f.length();
+                }
+            }
+        }
+    }
+
+    private void evict() {
+        final File[] files = myDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        for (int i = 0; i < files.length; ++i) {
+            lastModified[i] = files[i].lastModified();
+        }
+        final Integer[] order = new Integer[files.length];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i0, Integer i1) {
+                final long diff = lastModified[i0] - lastModified[i1];
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+
+        // some files could be removed by NetworkLibrary.clearExpiredCache()
+        mySize = 0;
+        for (File f : files) {
+            if (f.getName().endsWith(BODY_SUFFIX)) {
+                mySize += f.length();
+            }
+        }
+        // evict a bit more than necessary not to do it on every store
+        final long target = myMaxSize / 4 * 3;
+        for (Integer i : order) {
+            if (mySize <= target) {
+                break;
+            }
+            final File body = files[i];
+            final String name = body.getName();
+            if (!name.endsWith(BODY_SUFFIX)) {
+                continue;
+            }
+            final long length = body.length();
+            if (body.delete()) {
+                new File(myDirectory, name.substring(0, name.length() - BODY_SUFFIX.length()) + META_SUFFIX).delete();
+                mySize -= length;
+                ++myEvictions;
+            }
+        }
+    }
+
+    private void writeMeta(String name, Entry entry) throws IOException {
+        final File tmp = new File(myDirectory, name + META_SUFFIX + ".tmp");
+        final DataOutputStream os =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            os.writeInt(VERSION);
+            os.writeUTF(entry.Key);
+            writeString(os, entry.ETag);
+            writeString(os, entry.LastModified);
+            os.writeLong(entry.FreshUntil);
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(new File(myDirectory, name + META_SUFFIX))) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp);
+        }
+    }
+
+    public synchronized int lookups() {
+        return myLookups;
+    }
+
+    /**
+     * @return number of responses served from the cache without network access
+     */
+    public synchronized int freshHits() {
+        return myFreshHits;
+    }
+
+    /**
+     * @return number of responses served from the cache after 304 Not Modified
+     */
+    public synchronized int revalidatedHits() {
+        return myRevalidatedHits;
+    }
+
+    public synchronized float hitRate() {
+        return myLookups > 0 ? (float) (myFreshHits + myRevalidatedHits) / myLookups : 0;
+    }
+
+    public synchronized long bytesServed() {
+        return myBytesServed;
+    }
+
+    public synchronized int stores() {
+        return myStores;
+    }
+
+    public synchronized int evictions() {
+        return myEvictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ZLHttpCache[lookups=" + myLookups
+                + ", fresh=" + myFreshHits
+                + ", revalidated=" + myRevalidatedHits
+                + ", stores=" + myStores
+                + ", evictions=" + myEvictions
+                + ", bytesServed=" + myBytesServed
+                + "]";
+    }
+
+    private static long freshUntil(HttpResponse response, long now) {
+        long maxAge = -1;
+        for (Header h : response.getHeaders("Cache-Control")) {
+            for (HeaderElement elt : h.getElements()) {
+                final String name = elt.getName();
+                if ("no-cache".equalsIgnoreCase(name)) {
+                    return 0;
+                } else if ("max-age".equalsIgnoreCase(name)) {
+                    try {
+                        maxAge = Long.parseLong(elt.getValue());
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+        }
+        if (maxAge >= 0) {
+            return now + maxAge * 1000;
+        }
+
+        final String expires = headerValue(response, "Expires");
+        if (expires == null) {
+            return 0;
+        }
+        try {
+            final String date = headerValue(response, "Date");
+            final long serverNow = date != null ? DateUtils.parseDate(date).getTime() : now;
+            return now + DateUtils.parseDate(expires).getTime() - serverNow;
+        } catch (DateParseException e) {
+            return 0;
+        }
+    }
+
+    private static String headerValue(HttpResponse response, String name) {
+        final Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    private static String fileName(String key) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            final StringBuilder name = new StringBuilder(2 * hash.length);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16));
+                name.append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream os, String value) throws IOException {
+        os.writeBoolean(value != null);
+        if (value != null) {
+            os.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream is) throws IOException {
+        return is.readBoolean() ? is.readUTF() : null;
+    }
+
+    private static void closeQuietly(InputStream stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    static final class Entry {
+        final String Key;
+        final String ETag;
+        final String LastModified;
+        final long FreshUntil;
+        final File Body;
+
+        Entry(String key, String eTag, String lastModified, long freshUntil, File body) {
+            Key = key;
+            ETag = eTag;
+            LastModified = lastModified;
+            FreshUntil = freshUntil;
+            Body = body;
+        }
+
+        boolean isFresh(long now) {
+            return now < FreshUntil;
+        }
+
+        boolean canRevalidate() {
+            return ETag != null || LastModified != null;
+        }
+
+        int length() {
+            return (int) Body.length();
+        }
+    }
+
+    /**
+     * Copies the response body to a temporary file while the request reads it.
+     */
+    final class Writer {
+        private final Entry myEntry;
+        private final File myTmpFile;
+        private OutputStream myOutput;
+        private long myLength;
+        private boolean myEndReached;
+        private boolean myIsCommitted;
+
+        private Writer(Entry entry, File tmpFile) throws IOException {
+            myEntry = entry;
+            myTmpFile = tmpFile;
+            myOutput = new BufferedOutputStream(new FileOutputStream(tmpFile));
+        }
+
+        InputStream tee(InputStream stream) {
+            return new FilterInputStream(stream) {
+                @Override
+                public int read() throws IOException {
+                    final int b = super.read();
+                    if (b == -1) {
+                        myEndReached = true;
+                    } else {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    final int size = super.read(buffer, offset, count);
+                    if (size == -1) {
+                        myEndReached = true;
+                    } else {
+                        write(buffer, offset, size);
+                    }
+                    return size;
+                }
+
+                @Override
+                public long skip(long count) throws IOException {
+                    // skipped bytes are not stored, so the copy is incomplete
+                    abort();
+                    return super.skip(count);
+                }
+
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+            };
+        }
+
+        private void write(byte[] buffer, int offset, int count) {
+            if (myOutput == null) {
+                return;
+            }
+            myLength += count;
+            if (myLength > MAX_ENTRY_SIZE) {
+                abort();
+                return;
+            }
+            try {
+                myOutput.write(buffer, offset, count);
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        /**
+         * Stores the copy if the whole body has been read;
+         * the stream returned by tee() should not be closed yet.
+         */
+        void commit(InputStream stream) {
+            if (myOutput == null) {
+                return;
+            }
+            try {
+                if (!myEndReached) {
+                    final byte[] buffer = new byte[MAX_UNREAD_TAIL];
+                    int total = 0;
+                    while (!myEndReached && total < MAX_UNREAD_TAIL) {
+                        final int size = stream.read(buffer, 0, MAX_UNREAD_TAIL - total);
+                        if (size > 0) {
+                            total += size;
+                        }
+                    }
+                    if (!myEndReached) {
+                        // probably the request has been interrupted
+                        abort();
+                        return;
+                    }
+                }
+                if (myOutput == null) {
+                    return;
+                }
+                myOutput.close();
+                myOutput = null;
+                myIsCommitted = true;
+                store(myEntry, myTmpFile);
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        void abort() {
+            if (myOutput != null) {
+                try {
+                    myOutput.close();
+                } catch (IOException e) {
+                }
+                myOutput = null;
+            }
+            if (!myIsCommitted) {
+                myTmpFile.delete();
+            }
+        }
+    }
+}
@@ -53,6 +53,7 @@ import org.apache.http.protocol.HttpContext;
 import org.fbreader.util.ComparisonUtil;
 import org.geometerplus.zlibrary.core.options.ZLStringOption;
 import org.geometerplus.zlibrary.core.resources.ZLResource;
+import org.geometerplus.zlibrary.core.util.SystemInfo;
 import org.geometerplus.zlibrary.core.util.ZLNetworkUtil;
 
 import java.io.File;
@@ -71,6 +72,7 @@ import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
 public class ZLNetworkManager {
+    private static final long HTTP_CACHE_SIZE = 8 * 1024 * 1024;
     private static ZLNetworkManager ourManager;
     final CookieStore CookieStore = new CookieStore() {
         private volatile Map<Key, Cookie> myCookies;
@@ -135,6 +137,7 @@ public class ZLNetworkManager {
         }
     };
     volatile CredentialsCreator myCredentialsCreator;
+    private volatile ZLHttpCache myHttpCache;
 
     public static ZLNetworkManager Instance() {
         if (ourManager == null) {
@@ -151,6 +154,24 @@ public class ZLNetworkManager {
         myCredentialsCreator = creator;
     }
 
+    /**
+     * Enables disk cache for GET requests; see ZLHttpCache.
+     */
+    public void enableHttpCache(SystemInfo systemInfo) {
+        if (myHttpCache == null) {
+            myHttpCache = new ZLHttpCache(
+                    new File(systemInfo.networkCacheDirectory(), "http-cache"), HTTP_CACHE_SIZE
+            );
+        }
+    }
+
+    /**
+     * @return the cache (e.g. for hit rate statistics), or null if it is not enabled
+     */
+    public ZLHttpCache getHttpCache() {
+        return myHttpCache;
+    }
+
     void perform(ZLNetworkRequest request, BearerAuthenticator authenticator, int socketTimeout, int connectionTimeout) throws ZLNetworkException {
         boolean success = false;
         DefaultHttpClient httpClient = null;
@@ -160,6 +181,24 @@ public class ZLNetworkManager {
             httpContext.setAttribute(ClientContext.COOKIE_STORE, CookieStore);
 
             request.doBefore();
+
+            final ZLHttpCache cache = request instanceof ZLNetworkRequest.Get ? myHttpCache : null;
+            final String cacheKey;
+            final ZLHttpCache.Entry cached;
+            if (cache != null) {
+                cacheKey = ZLHttpCache.key(request, ZLResource.getLanguage());
+                cached = cache.lookup(cacheKey);
+                if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+                    if (handleCached(request, cache, cached, false)) {
+                        success = true;
+                        return;
+                    }
+                }
+            } else {
+                cacheKey = null;
+                cached = null;
+            }
+
             final HttpParams params = new BasicHttpParams();
             HttpConnectionParams.setSoTimeout(params, socketTimeout);
             HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
@@ -245,6 +284,14 @@ public class ZLNetworkManager {
             for (Map.Entry<String, String> header : request.Headers.entrySet()) {
                 httpRequest.setHeader(header.getKey(), header.getValue());
             }
+            if (cached != null) {
+                if (cached.ETag != null && !httpRequest.containsHeader("If-None-Match")) {
+                    httpRequest.setHeader("If-None-Match", cached.ETag);
+                }
+                if (cached.LastModified != null && !httpRequest.containsHeader("If-Modified-Since")) {
+                    httpRequest.setHeader("If-Modified-Since", cached.LastModified);
+                }
+            }
             httpClient.setCredentialsProvider(new MyCredentialsProvider(httpRequest, request.isQuiet()));
             final HttpResponse response = execute(httpClient, httpRequest, httpContext, authenticator);
             entity = response.getEntity();
@@ -259,6 +306,13 @@ public class ZLNetworkManager {
             }
             final int responseCode = response.getStatusLine().getStatusCode();
 
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                if (handleCached(request, cache, cache.refresh(cached, response), true)) {
+                    success = true;
+                    return;
+                }
+            }
+
             InputStream stream = null;
             if (entity != null &&
                     (responseCode == HttpURLConnection.HTTP_OK ||
@@ -272,7 +326,19 @@ public class ZLNetworkManager {
                     if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
                         stream = new GZIPInputStream(stream);
                     }
-                    request.handleStream(stream, (int) entity.getContentLength());
+                    final ZLHttpCache.Writer writer =
+                            cache != null ? cache.startStore(cacheKey, response) : null;
+                    if (writer != null) {
+                        stream = writer.tee(stream);
+                        try {
+                            request.handleStream(stream, (int) entity.getContentLength());
+                            writer.commit(stream);
+                        } finally {
+                            writer.abort();
+                        }
+                    } else {
+                        request.handleStream(stream, (int) entity.getContentLength());
+                    }
                 } finally {
                     stream.close();
                 }
@@ -312,6 +378,19 @@ public class ZLNetworkManager {
         }
     }
 
+    private boolean handleCached(ZLNetworkRequest request, ZLHttpCache cache, ZLHttpCache.Entry entry, boolean revalidated) throws IOException, ZLNetworkException {
+        final InputStream stream = cache.openBody(entry, revalidated);
+        if (stream == null) {
+            return false;
+        }
+        try {
+            request.handleStream(stream, entry.length());
+        } finally {
+            stream.close();
+        }
+        return true;
+    }
+
     private HttpResponse execute(DefaultHttpClient client, HttpRequestBase request, HttpContext context, BearerAuthenticator authenticator) throws IOException, ZLNetworkException {
         try {
             return client.execute(request, context);
@@ -152,4 +152,9 @@ final class DummyPaintContext extends ZLPaintContext {
     @Override
     public void fillCircle(int x, int y, int radius) {
     }
+
+    @Override
+    public ZLPaintContext createMeasuringContext() {
+        return new DummyPaintContext();
+    }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.hyphenation;
+
+import org.fbreader.util.CharArrayKey;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Hyphenation infos of the most recently used words, keyed by the word characters.
+ * The entries are valid for one language; the cache is reset when the hyphenator loads another one.
+ */
+public final class ZLTextHyphenationCache {
+    private final int myMaxSize;
+    private final LinkedHashMap<CharArrayKey, ZLTextHyphenationInfo> myInfos;
+    // reused for lookups, so a hit allocates nothing
+    private final CharArrayKey myProbe = new CharArrayKey();
+    private String myLanguage;
+    private int myGeneration;
+
+    private int myHits;
+    private int myMisses;
+
+    ZLTextHyphenationCache(int maxSize) {
+        myMaxSize = maxSize;
+        myInfos = new LinkedHashMap<CharArrayKey, ZLTextHyphenationInfo>(16, .75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CharArrayKey, ZLTextHyphenationInfo> eldest) {
+                return size() > myMaxSize;
+            }
+        };
+    }
+
+    synchronized void reset(String language) {
+        myInfos.clear();
+        myLanguage = language;
+        ++myGeneration;
+    }
+
+    /**
+     * The generation is changed on every reset; infos computed before a reset are not stored.
+     */
+    synchronized int generation() {
+        return myGeneration;
+    }
+
+    synchronized ZLTextHyphenationInfo get(char[] data, int offset, int length) {
+        myProbe.set(data, offset, length);
+        final ZLTextHyphenationInfo info = myInfos.get(myProbe);
+        myProbe.clear();
+        if (info != null) {
+            ++myHits;
+        } else {
+            ++myMisses;
+        }
+        return info;
+    }
+
+    synchronized void put(char[] data, int offset, int length, ZLTextHyphenationInfo info, int generation) {
+        if (generation != myGeneration) {
+            return;
+        }
+        myInfos.put(CharArrayKey.copyOf(data, offset, length), info);
+    }
+
+    public synchronized int size() {
+        return myInfos.size();
+    }
+
+    public synchronized int hits() {
+        return myHits;
+    }
+
+    public synchronized int misses() {
+        return myMisses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ZLTextHyphenationCache[" + myLanguage + ", " + myInfos.size() + "/" + myMaxSize + " words; "
+                + "hits = " + myHits + ", misses = " + myMisses + "]";
+    }
+}
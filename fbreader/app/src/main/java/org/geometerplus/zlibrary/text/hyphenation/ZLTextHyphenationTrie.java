@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.hyphenation;
+
+import org.fbreader.util.IOUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * TeX hyphenation patterns compiled into a packed trie with Aho-Corasick links,
+ * so all the patterns matching a word are found in one pass over the word.
+ *
+ * Nodes are numbered in breadth-first order. Transitions of node n are
+ * myLabels/myTargets[myFirstChild[n] .. myFirstChild[n + 1]), sorted by label.
+ * Values of the pattern ending in node n are
+ * myPositions/myLevels[myFirstValue[n] .. myFirstValue[n + 1]),
+ * positions are counted from the first symbol of the pattern; zero values are not stored.
+ */
+final class ZLTextHyphenationTrie {
+    private static final int VERSION = 0x48545201;
+
+    private final int[] myFirstChild;
+    private final char[] myLabels;
+    private final int[] myTargets;
+    // the longest proper suffix of the node that is also a node
+    private final int[] myFailure;
+    // the node itself or the nearest node on the failure chain having values, or -1
+    private final int[] myOutput;
+    private final int[] myDepth;
+    private final int[] myFirstValue;
+    private final byte[] myPositions;
+    private final byte[] myLevels;
+
+    private ZLTextHyphenationTrie(int[] firstChild, char[] labels, int[] targets, int[] failure, int[] output, int[] depth, int[] firstValue, byte[] positions, byte[] levels) {
+        myFirstChild = firstChild;
+        myLabels = labels;
+        myTargets = targets;
+        myFailure = failure;
+        myOutput = output;
+        myDepth = depth;
+        myFirstValue = firstValue;
+        myPositions = positions;
+        myLevels = levels;
+    }
+
+    boolean isEmpty() {
+        return myPositions.length == 0;
+    }
+
+    private int child(int node, char symbol) {
+        int low = myFirstChild[node];
+        int high = myFirstChild[node + 1] - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final char label = myLabels[middle];
+            if (label < symbol) {
+                low = middle + 1;
+            } else if (label > symbol) {
+                high = middle - 1;
+            } else {
+                return myTargets[middle];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Applies all the patterns found in symbols[0 .. length) to levels;
+     * levels[i] is the level before symbols[i], levels must be zeroed by the caller.
+     */
+    void apply(char[] symbols, int length, byte[] levels) {
+        int state = 0;
+        for (int i = 0; i < length; ++i) {
+            final char symbol = symbols[i];
+            int next = child(state, symbol);
+            while (next < 0 && state != 0) {
+                state = myFailure[state];
+                next = child(state, symbol);
+            }
+            state = next < 0 ? 0 : next;
+
+            for (int node = myOutput[state]; node >= 0; node = myOutput[myFailure[node]]) {
+                final int start = i + 1 - myDepth[node];
+                // patterns starting at the last symbol were never applied
+                if (start == length - 1) {
+                    continue;
+                }
+                for (int v = myFirstValue[node]; v < myFirstValue[node + 1]; ++v) {
+                    final int position = start + myPositions[v];
+                    if (levels[position] < myLevels[v]) {
+                        levels[position] = myLevels[v];
+                    }
+                }
+            }
+        }
+    }
+
+    static ZLTextHyphenationTrie read(File file, String key) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream stream = null;
+        try {
+            stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (stream.readInt() != VERSION || !key.equals(stream.readUTF())) {
+                return null;
+            }
+            final int nodes = stream.readInt();
+            final int transitions = stream.readInt();
+            final int values = stream.readInt();
+            final int[] firstChild = readInts(stream, nodes + 1);
+            final char[] labels = new char[transitions];
+            for (int i = 0; i < transitions; ++i) {
+                labels[i] = stream.readChar();
+            }
+            final int[] targets = readInts(stream, transitions);
+            final int[] failure = readInts(stream, nodes);
+            final int[] output = readInts(stream, nodes);
+            final int[] depth = readInts(stream, nodes);
+            final int[] firstValue = readInts(stream, nodes + 1);
+            final byte[] positions = new byte[values];
+            stream.readFully(positions);
+            final byte[] levels = new byte[values];
+            stream.readFully(levels);
+            return new ZLTextHyphenationTrie(
+                    firstChild, labels, targets, failure, output, depth, firstValue, positions, levels
+            );
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtil.closeQuietly(stream);
+        }
+    }
+
+    private static int[] readInts(DataInputStream stream, int count) throws IOException {
+        final int[] array = new int[count];
+        for (int i = 0; i < count; ++i) {
+            array[i] = stream.readInt();
+        }
+        return array;
+    }
+
+    void write(File file, String key) {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream stream = null;
+        try {
+            file.getParentFile().mkdirs();
+            stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            stream.writeInt(VERSION);
+            stream.writeUTF(key);
+            stream.writeInt(myDepth.length);
+            stream.writeInt(myLabels.length);
+            stream.writeInt(myPositions.length);
+            writeInts(stream, myFirstChild);
+            for (char label : myLabels) {
+                stream.writeChar(label);
+            }
+            writeInts(stream, myTargets);
+            writeInts(stream, myFailure);
+            writeInts(stream, myOutput);
+            writeInts(stream, myDepth);
+            writeInts(stream, myFirstValue);
+            stream.write(myPositions);
+            stream.write(myLevels);
+            stream.close();
+            stream = null;
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            IOUtil.closeQuietly(stream);
+            tempFile.delete();
+        }
+    }
+
+    private static void writeInts(DataOutputStream stream, int[] array) throws IOException {
+        for (int value : array) {
+            stream.writeInt(value);
+        }
+    }
+
+    static final class Builder {
+        private static final class Node {
+            final TreeMap<Character, Node> Children = new TreeMap<Character, Node>();
+            final int Depth;
+            byte[] Values;
+            int Id;
+            Node Failure;
+
+            Node(int depth) {
+                Depth = depth;
+            }
+        }
+
+        private final Node myRoot = new Node(0);
+
+        void addPattern(ZLTextTeXHyphenationPattern pattern) {
+            final char[] symbols = pattern.symbols();
+            Node node = myRoot;
+            for (int i = 0; i < pattern.length(); ++i) {
+                Node child = node.Children.get(symbols[i]);
+                if (child == null) {
+                    child = new Node(node.Depth + 1);
+                    node.Children.put(symbols[i], child);
+                }
+                node = child;
+            }
+            // as in a map, a repeated pattern replaces the previous one
+            node.Values = pattern.values();
+        }
+
+        ZLTextHyphenationTrie build() {
+            // breadth-first numbering; failure links of a level depend on the previous levels only
+            final ArrayList<Node> nodes = new ArrayList<Node>();
+            myRoot.Failure = myRoot;
+            nodes.add(myRoot);
+            int transitions = 0;
+            int values = 0;
+            for (int i = 0; i < nodes.size(); ++i) {
+                final Node node = nodes.get(i);
+                node.Id = i;
+                values += countValues(node.Values);
+                for (Map.Entry<Character, Node> entry : node.Children.entrySet()) {
+                    final Node child = entry.getValue();
+                    child.Failure = node == myRoot ? myRoot : findFailure(node.Failure, entry.getKey());
+                    nodes.add(child);
+                    ++transitions;
+                }
+            }
+
+            final int count = nodes.size();
+            final int[] firstChild = new int[count + 1];
+            final char[] labels = new char[transitions];
+            final int[] targets = new int[transitions];
+            final int[] failure = new int[count];
+            final int[] output = new int[count];
+            final int[] depth = new int[count];
+            final int[] firstValue = new int[count + 1];
+            final byte[] positions = new byte[values];
+            final byte[] levels = new byte[values];
+            int t = 0;
+            int v = 0;
+            for (int i = 0; i < count; ++i) {
+                final Node node = nodes.get(i);
+                firstChild[i] = t;
+                for (Map.Entry<Character, Node> entry : node.Children.entrySet()) {
+                    labels[t] = entry.getKey();
+                    targets[t] = entry.getValue().Id;
+                    ++t;
+                }
+                failure[i] = node.Failure.Id;
+                depth[i] = node.Depth;
+                firstValue[i] = v;
+                final byte[] nodeValues = node.Values;
+                if (nodeValues != null) {
+                    for (int p = 0; p < nodeValues.length; ++p) {
+                        if (nodeValues[p] != 0) {
+                            positions[v] = (byte) p;
+                            levels[v] = nodeValues[p];
+                            ++v;
+                        }
+                    }
+                }
+                // failure nodes are always numbered before the node
+                if (v > firstValue[i]) {
+                    output[i] = i;
+                } else {
+                    output[i] = i == 0 ? -1 : output[failure[i]];
+                }
+            }
+            firstChild[count] = t;
+            firstValue[count] = v;
+
+            return new ZLTextHyphenationTrie(
+                    firstChild, labels, targets, failure, output, depth, firstValue, positions, levels
+            );
+        }
+
+        private Node findFailure(Node node, char symbol) {
+            while (true) {
+                final Node child = node.Children.get(symbol);
+                if (child != null) {
+                    return child;
+                }
+                if (node == myRoot) {
+                    return myRoot;
+                }
+                node = node.Failure;
+            }
+        }
+
+        private static int countValues(byte[] values) {
+            int count = 0;
+            if (values != null) {
+                for (byte value : values) {
+                    if (value != 0) {
+                        ++count;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -19,6 +19,7 @@
 
 package org.geometerplus.zlibrary.text.hyphenation;
 
+import org.geometerplus.zlibrary.core.util.SystemInfo;
 import org.geometerplus.zlibrary.text.view.ZLTextWord;
 
 import java.util.List;
@@ -26,6 +27,9 @@ import java.util.List;
 public abstract class ZLTextHyphenator {
     private static ZLTextHyphenator ourInstance;
 
+    private final ZLTextHyphenationCache myCache = new ZLTextHyphenationCache(4096);
+    private volatile String myLanguage;
+
     protected ZLTextHyphenator() {
     }
 
@@ -36,6 +40,14 @@ public abstract class ZLTextHyphenator {
         return ourInstance;
     }
 
+    /**
+     * Enables persistent compiled patterns;
+     * they are stored in the temporary directory
+     */
+    public static void enablePatternCache(SystemInfo systemInfo) {
+        ZLTextTeXHyphenator.ourTrieDirectory = systemInfo.tempDirectory() + "/hyphenation";
+    }
+
     public static void deleteInstance() {
         if (ourInstance != null) {
             ourInstance.unload();
@@ -49,7 +61,37 @@ public abstract class ZLTextHyphenator {
 
     public abstract void unload();
 
+    public final ZLTextHyphenationCache cache() {
+        return myCache;
+    }
+
+    /**
+     * @return the language of the loaded patterns, or null if nothing is loaded
+     */
+    public final String getLanguage() {
+        return myLanguage;
+    }
+
+    /**
+     * Drops the cached infos; called when another language is loaded.
+     */
+    protected final void resetCache(String language) {
+        myLanguage = language;
+        myCache.reset(language);
+    }
+
     public ZLTextHyphenationInfo getInfo(final ZLTextWord word) {
+        final ZLTextHyphenationCache cache = myCache;
+        ZLTextHyphenationInfo info = cache.get(word.Data, word.Offset, word.Length);
+        if (info == null) {
+            final int generation = cache.generation();
+            info = computeInfo(word);
+            cache.put(word.Data, word.Offset, word.Length, info, generation);
+        }
+        return info;
+    }
+
+    private ZLTextHyphenationInfo computeInfo(final ZLTextWord word) {
         final int len = word.Length;
         final boolean[] isLetter = new boolean[len];
         final char[] pattern = new char[len + 2];
@@ -59,33 +59,16 @@ public final class ZLTextTeXHyphenationPattern {
         }
     }
 
-    void update(char[] pattern, int offset, int length) {
-        // We assert
-        // 		1. this pattern doesn't use values
-        // 		length <= original pattern length
-        System.arraycopy(pattern, offset, mySymbols, 0, length);
-        myLength = length;
-        myHashCode = 0;
-    }
-
-    void apply(byte[] mask, int position) {
-        final int patternLength = myLength;
-        final byte[] values = myValues;
-        for (int i = 0, j = position; i <= patternLength; ++i, ++j) {
-            final byte val = values[i];
-            if (mask[j] < val) {
-                mask[j] = val;
-            }
-        }
+    int length() {
+        return myLength;
     }
 
-    void reset(int length) {
-        myLength = length;
-        myHashCode = 0;
+    char[] symbols() {
+        return mySymbols;
     }
 
-    int length() {
-        return myLength;
+    byte[] values() {
+        return myValues;
     }
 
     public boolean equals(Object o) {
@@ -23,25 +23,27 @@ import org.geometerplus.zlibrary.core.filesystem.ZLFile;
 import org.geometerplus.zlibrary.core.filesystem.ZLResourceFile;
 import org.geometerplus.zlibrary.core.language.Language;
 import org.geometerplus.zlibrary.core.language.ZLLanguageUtil;
+import org.geometerplus.zlibrary.core.library.ZLibrary;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.TreeSet;
 
 final class ZLTextTeXHyphenator extends ZLTextHyphenator {
-    private final HashMap<ZLTextTeXHyphenationPattern, ZLTextTeXHyphenationPattern> myPatternTable =
-            new HashMap<ZLTextTeXHyphenationPattern, ZLTextTeXHyphenationPattern>();
-    private int myMaxPatternLength;
+    static volatile String ourTrieDirectory;
+
+    // null if there are no patterns for the language
+    private ZLTextHyphenationTrie myTrie;
+    private ZLTextHyphenationTrie.Builder myBuilder;
+    private byte[] myLevels = new byte[64];
     private String myLanguage;
     private List<String> myLanguageCodes;
 
     void addPattern(ZLTextTeXHyphenationPattern pattern) {
-        myPatternTable.put(pattern, pattern);
-        if (myMaxPatternLength < pattern.length()) {
-            myMaxPatternLength = pattern.length();
-        }
+        myBuilder.addPattern(pattern);
     }
 
     public List<String> languageCodes() {
@@ -62,7 +64,7 @@ final class ZLTextTeXHyphenator extends ZLTextHyphenator {
         return Collections.unmodifiableList(myLanguageCodes);
     }
 
-    public void load(String language) {
+    public synchronized void load(String language) {
         if (language == null || Language.OTHER_CODE.equals(language)) {
             language = ZLLanguageUtil.defaultLanguageCode();
         }
@@ -73,43 +75,62 @@ final class ZLTextTeXHyphenator extends ZLTextHyphenator {
         unload();
 
         if (language != null) {
-            new ZLTextHyphenationReader(this).readQuietly(ZLResourceFile.createResourceFile(
-                    "hyphenationPatterns/" + language + ".pattern"
-            ));
+            myTrie = loadTrie(language);
         }
+        resetCache(language);
     }
 
-    public void unload() {
-        myPatternTable.clear();
-        myMaxPatternLength = 0;
+    /**
+     * Reads the compiled patterns from the trie cache, or compiles the pattern file
+     * and stores the result; the assets change with the application version only.
+     */
+    private ZLTextHyphenationTrie loadTrie(String language) {
+        final String directory = ourTrieDirectory;
+        final File file = directory != null ? new File(directory, language + ".trie") : null;
+        final String key = language + ":" + ZLibrary.Instance().getVersionName();
+
+        ZLTextHyphenationTrie trie = file != null ? ZLTextHyphenationTrie.read(file, key) : null;
+        if (trie == null) {
+            myBuilder = new ZLTextHyphenationTrie.Builder();
+            try {
+                new ZLTextHyphenationReader(this).readQuietly(ZLResourceFile.createResourceFile(
+                        "hyphenationPatterns/" + language + ".pattern"
+                ));
+                trie = myBuilder.build();
+            } finally {
+                myBuilder = null;
+            }
+            if (file != null && !trie.isEmpty()) {
+                trie.write(file, key);
+            }
+        }
+        return trie.isEmpty() ? null : trie;
     }
 
-    public void hyphenate(char[] stringToHyphenate, boolean[] mask, int length) {
-        if (myPatternTable.isEmpty()) {
+    public synchronized void unload() {
+        myTrie = null;
+        resetCache(null);
+    }
+
+    public synchronized void hyphenate(char[] stringToHyphenate, boolean[] mask, int length) {
+        final ZLTextHyphenationTrie trie = myTrie;
+        if (trie == null) {
             for (int i = 0; i < length - 1; i++) {
                 mask[i] = false;
             }
             return;
         }
 
-        byte[] values = new byte[length + 1];
-
-        final HashMap<ZLTextTeXHyphenationPattern, ZLTextTeXHyphenationPattern> table = myPatternTable;
-        ZLTextTeXHyphenationPattern pattern =
-                new ZLTextTeXHyphenationPattern(stringToHyphenate, 0, length, false);
-        for (int offset = 0; offset < length - 1; offset++) {
-            int len = Math.min(length - offset, myMaxPatternLength) + 1;
-            pattern.update(stringToHyphenate, offset, len - 1);
-            while (--len > 0) {
-                pattern.reset(len);
-                ZLTextTeXHyphenationPattern toApply =
-                        (ZLTextTeXHyphenationPattern) table.get(pattern);
-                if (toApply != null) {
-                    toApply.apply(values, offset);
-                }
-            }
+        byte[] values = myLevels;
+        if (values.length < length + 1) {
+            values = new byte[Math.max(length + 1, values.length * 2)];
+            myLevels = values;
+        } else {
+            Arrays.fill(values, 0, length + 1, (byte) 0);
         }
 
+        trie.apply(stringToHyphenate, length, values);
+
         for (int i = 0; i < length - 1; i++) {
             mask[i] = (values[i + 1] % 2) == 1;
         }
@@ -19,34 +19,99 @@
 
 package org.geometerplus.zlibrary.text.model;
 
+import org.fbreader.util.IOUtil;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Provide the char array data of the specified ncache file by reading file.
  */
 public final class CachedCharStorage {
+    /**
+     * Memory budget of the block cache shared by all the storages of the process, in bytes.
+     */
+    public static final long DEFAULT_CACHE_BUDGET = 4L << 20;
+    /**
+     * Number of blocks read ahead of the block being iterated.
+     */
+    private static final int PREFETCH_BLOCKS_NUMBER = 2;
+
+    private static final ExecutorService ourPrefetchService =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "CachedCharStorage.prefetch");
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final CharBlockCache ourSharedCache = new LruCharBlockCache(DEFAULT_CACHE_BUDGET);
+    private static final AtomicInteger ourNextId = new AtomicInteger();
 
     /**
      * Cache the char array data of any index ncache file.
      */
-    protected final ArrayList<WeakReference<char[]>> myArray =
-            new ArrayList<WeakReference<char[]>>();
+    private final CharBlockCache myCache;
+    /**
+     * The storage id in the upper half of the cache keys.
+     */
+    private final long myKeyBase = (long) ourNextId.getAndIncrement() << 32;
+    /**
+     * Memory-mapped UTF-16LE views of the ncache files; mapping does not use the java heap.
+     */
+    private final CharBuffer[] myBuffers;
+    /**
+     * Files that might be rewritten while the storage is alive must not be mapped:
+     * truncating a mapped file kills the process on the next access.
+     */
+    private final boolean myMapFiles;
 
     private final String myDirectoryName;
     private final String myName;
     private final String myFileExtension;
 
+    /**
+     * The last block prefetch() was called for; kept per storage, unlike the cache.
+     */
+    private volatile int myLastPrefetchedIndex = -1;
+
     public CachedCharStorage(String directoryName, String name, String fileExtension, int blocksNumber) {
+        this(directoryName, name, fileExtension, blocksNumber, false);
+    }
+
+    /**
+     * @param mapFiles true if the ncache files are never rewritten, so they can be memory-mapped
+     */
+    public CachedCharStorage(String directoryName, String name, String fileExtension, int blocksNumber, boolean mapFiles) {
+        this(directoryName, name, fileExtension, blocksNumber, mapFiles, ourSharedCache);
+    }
+
+    public CachedCharStorage(String directoryName, String name, String fileExtension, int blocksNumber, boolean mapFiles, CharBlockCache cache) {
         myDirectoryName = directoryName + '/';
         myName = name + "_";
         myFileExtension = '.' + fileExtension;
-        myArray.addAll(Collections.nCopies(blocksNumber, new WeakReference<char[]>(null)));
+        myBuffers = new CharBuffer[blocksNumber];
+        myMapFiles = mapFiles;
+        myCache = cache;
+    }
+
+    public CharBlockCache cache() {
+        return myCache;
+    }
+
+    private long key(int index) {
+        return myKeyBase | index;
     }
 
     private String fileName(int index) {
@@ -54,7 +119,39 @@ public final class CachedCharStorage {
     }
 
     public int size() {
-        return myArray.size();
+        return myBuffers.length;
+    }
+
+    /**
+     * Obtain the read-only view of the specified index ncache file's data.
+     * If the files are mapped, scanning the view does not allocate char arrays;
+     * use absolute get() methods or duplicate() the buffer before relative reads.
+     *
+     * @param index the index of ncache file.
+     */
+    public CharBuffer buffer(int index) {
+        if (index < 0 || index >= myBuffers.length) {
+            return null;
+        }
+        if (!myMapFiles) {
+            return CharBuffer.wrap(block(index)).asReadOnlyBuffer();
+        }
+        CharBuffer buffer = myBuffers[index];
+        if (buffer == null) {
+            FileInputStream stream = null;
+            try {
+                stream = new FileInputStream(fileName(index));
+                final FileChannel channel = stream.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                        .order(ByteOrder.LITTLE_ENDIAN).asCharBuffer().asReadOnlyBuffer();
+            } catch (IOException e) {
+                throw new CachedCharStorageException("Error during mapping " + fileName(index), e);
+            } finally {
+                IOUtil.closeQuietly(stream);
+            }
+            myBuffers[index] = buffer;
+        }
+        return buffer;
     }
 
     /**
@@ -63,33 +160,89 @@ public final class CachedCharStorage {
      * @param index the index of ncache file.
      */
     public char[] block(int index) {
-        if (index < 0 || index >= myArray.size()) {
+        if (index < 0 || index >= myBuffers.length) {
             return null;
         }
-        char[] block = myArray.get(index).get();
+        char[] block = myCache.get(key(index));
         if (block == null) {
-            try {
-                File file = new File(fileName(index));
-                int size = (int) file.length();
-                if (size < 0) {
-                    throw new CachedCharStorageException("Error during reading " + fileName(index) + "; size = " + size);
-                }
-                block = new char[size / 2];
-                InputStreamReader reader =
-                        new InputStreamReader(
-                                new FileInputStream(file),
-                                "UTF-16LE"
-                        );
-                final int rd = reader.read(block);
-                if (rd != block.length) {
-                    throw new CachedCharStorageException("Error during reading " + fileName(index) + "; " + rd + " != " + block.length);
+            block = readBlock(index);
+        }
+        return block;
+    }
+
+    /**
+     * Obtain the specified index ncache file's data without putting it into the cache;
+     * used by one-pass scans of the whole text, which must not evict the blocks being read.
+     *
+     * @param index the index of ncache file.
+     */
+    public char[] uncachedBlock(int index) {
+        if (index < 0 || index >= myBuffers.length) {
+            return null;
+        }
+        final char[] block = myCache.get(key(index));
+        return block != null ? block : decodeBlock(index);
+    }
+
+    private char[] readBlock(int index) {
+        final char[] block = decodeBlock(index);
+        myCache.put(key(index), block);
+        return block;
+    }
+
+    private char[] decodeBlock(int index) {
+        final CharBuffer buffer = myMapFiles ? buffer(index).duplicate() : readFile(index);
+        final char[] block = new char[buffer.remaining()];
+        buffer.get(block);
+        return block;
+    }
+
+    private CharBuffer readFile(int index) {
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(fileName(index));
+            final FileChannel channel = stream.getChannel();
+            final ByteBuffer bytes = ByteBuffer.allocate((int) channel.size());
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes) < 0) {
+                    throw new CachedCharStorageException("Unexpected end of " + fileName(index));
                 }
-                reader.close();
-            } catch (IOException e) {
-                throw new CachedCharStorageException("Error during reading " + fileName(index), e);
             }
-            myArray.set(index, new WeakReference<char[]>(block));
+            bytes.flip();
+            return bytes.order(ByteOrder.LITTLE_ENDIAN).asCharBuffer();
+        } catch (IOException e) {
+            throw new CachedCharStorageException("Error during reading " + fileName(index), e);
+        } finally {
+            IOUtil.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Asynchronously loads the blocks following the specified one into the cache.
+     *
+     * @param index the index of ncache file being read.
+     */
+    public void prefetch(final int index) {
+        if (index == myLastPrefetchedIndex) {
+            return;
+        }
+        myLastPrefetchedIndex = index;
+        final int end = Math.min(index + PREFETCH_BLOCKS_NUMBER, myBuffers.length - 1);
+        for (int i = index + 1; i <= end; ++i) {
+            if (!myCache.contains(key(i))) {
+                final int blockIndex = i;
+                ourPrefetchService.execute(new Runnable() {
+                    public void run() {
+                        if (!myCache.contains(key(blockIndex))) {
+                            try {
+                                readBlock(blockIndex);
+                            } catch (CachedCharStorageException e) {
+                                // will be reported when the block is really requested
+                            }
+                        }
+                    }
+                });
+            }
         }
-        return block;
     }
 }
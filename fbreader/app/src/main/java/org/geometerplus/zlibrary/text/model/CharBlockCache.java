@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.text.model;
+
+/**
+ * Keeps the decoded blocks of {@link CachedCharStorage}s.
+ * A key combines the storage id and the block index, so one cache can serve all the storages.
+ */
+public interface CharBlockCache {
+    /**
+     * @return the cached block or null; the call is counted as a hit or a miss.
+     */
+    char[] get(long key);
+
+    boolean contains(long key);
+
+    void put(long key, char[] block);
+
+    void clear();
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.text.model;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Strongly retains the most recently used blocks while their total size fits the memory budget.
+ */
+public final class LruCharBlockCache implements CharBlockCache {
+    private final LinkedHashMap<Long, char[]> myBlocks =
+            new LinkedHashMap<Long, char[]>(16, .75f, true);
+    private final long myBudget;
+    private long mySize;
+
+    private int myHits;
+    private int myMisses;
+    private int myEvictions;
+
+    /**
+     * @param budget the maximal total size of cached blocks, in bytes.
+     */
+    public LruCharBlockCache(long budget) {
+        myBudget = budget;
+    }
+
+    @Override
+    public synchronized char[] get(long key) {
+        final char[] block = myBlocks.get(key);
+        if (block != null) {
+            ++myHits;
+        } else {
+            ++myMisses;
+        }
+        return block;
+    }
+
+    @Override
+    public synchronized boolean contains(long key) {
+        return myBlocks.containsKey(key);
+    }
+
+    @Override
+    public synchronized void put(long key, char[] block) {
+        final char[] old = myBlocks.put(key, block);
+        if (old != null) {
+            mySize -= sizeOf(old);
+        }
+        mySize += sizeOf(block);
+
+        // the most recently added block is kept even if it is larger than the budget
+        for (Iterator<Map.Entry<Long, char[]>> it = myBlocks.entrySet().iterator();
+             mySize > myBudget && myBlocks.size() > 1; ) {
+            final char[] evicted = it.next().getValue();
+            it.remove();
+            mySize -= sizeOf(evicted);
+            ++myEvictions;
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        myBlocks.clear();
+        mySize = 0;
+    }
+
+    private static long sizeOf(char[] block) {
+        return 2L * block.length;
+    }
+
+    public synchronized long size() {
+        return mySize;
+    }
+
+    public synchronized int hits() {
+        return myHits;
+    }
+
+    public synchronized int misses() {
+        return myMisses;
+    }
+
+    public synchronized int evictions() {
+        return myEvictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LruCharBlockCache[" + myBlocks.size() + " blocks, " + mySize + "/" + myBudget + " bytes; "
+                + "hits = " + myHits + ", misses = " + myMisses + ", evictions = " + myEvictions + "]";
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sorted search marks kept in parallel int arrays.
+ *
+ * An instance is an immutable snapshot: appending creates a new list which
+ * may share the arrays, but never changes the elements visible to older snapshots.
+ */
+public final class ZLTextMarkList {
+    public static final ZLTextMarkList EMPTY = new ZLTextMarkList(new int[0], new int[0], new int[0], 0);
+
+    private final int[] myParagraphs;
+    private final int[] myOffsets;
+    private final int[] myLengths;
+    private final int mySize;
+
+    private ZLTextMarkList(int[] paragraphs, int[] offsets, int[] lengths, int size) {
+        myParagraphs = paragraphs;
+        myOffsets = offsets;
+        myLengths = lengths;
+        mySize = size;
+    }
+
+    /**
+     * Must be called for the latest snapshot only; the marks must follow all the existing ones.
+     */
+    ZLTextMarkList append(List<ZLTextMark> marks) {
+        if (marks.isEmpty()) {
+            return this;
+        }
+        final int newSize = mySize + marks.size();
+        int[] paragraphs = myParagraphs;
+        int[] offsets = myOffsets;
+        int[] lengths = myLengths;
+        if (newSize > paragraphs.length) {
+            final int capacity = Math.max(newSize, paragraphs.length * 2);
+            paragraphs = Arrays.copyOf(paragraphs, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        for (int i = mySize; i < newSize; ++i) {
+            final ZLTextMark mark = marks.get(i - mySize);
+            paragraphs[i] = mark.ParagraphIndex;
+            offsets[i] = mark.Offset;
+            lengths[i] = mark.Length;
+        }
+        return new ZLTextMarkList(paragraphs, offsets, lengths, newSize);
+    }
+
+    public int size() {
+        return mySize;
+    }
+
+    public boolean isEmpty() {
+        return mySize == 0;
+    }
+
+    public int getParagraphIndex(int index) {
+        return myParagraphs[index];
+    }
+
+    public int getOffset(int index) {
+        return myOffsets[index];
+    }
+
+    public int getLength(int index) {
+        return myLengths[index];
+    }
+
+    public ZLTextMark getMark(int index) {
+        return new ZLTextMark(myParagraphs[index], myOffsets[index], myLengths[index]);
+    }
+
+    /**
+     * @return index of the first mark not less than the given position, or size() if there is none
+     */
+    public int lowerBound(int paragraphIndex, int offset) {
+        int low = 0;
+        int high = mySize;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            final int p = myParagraphs[middle];
+            if (p < paragraphIndex || (p == paragraphIndex && myOffsets[middle] < offset)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return index of the first mark of the paragraph; marks of the paragraph
+     * are the ones from paragraphStart(index) to paragraphStart(index + 1)
+     */
+    public int paragraphStart(int paragraphIndex) {
+        return lowerBound(paragraphIndex, Integer.MIN_VALUE);
+    }
+
+    public ZLTextMark getFirstMark() {
+        return mySize == 0 ? null : getMark(0);
+    }
+
+    public ZLTextMark getLastMark() {
+        return mySize == 0 ? null : getMark(mySize - 1);
+    }
+
+    /**
+     * @return the first mark not less than position
+     */
+    public ZLTextMark getNextMark(ZLTextMark position) {
+        final int index = lowerBound(position.ParagraphIndex, position.Offset);
+        return index < mySize ? getMark(index) : null;
+    }
+
+    /**
+     * @return the last mark less than position
+     */
+    public ZLTextMark getPreviousMark(ZLTextMark position) {
+        final int index = lowerBound(position.ParagraphIndex, position.Offset) - 1;
+        return index >= 0 ? getMark(index) : null;
+    }
+}
@@ -42,10 +42,21 @@ public interface ZLTextModel {
 
     List<ZLTextMark> getMarks();
 
+    /**
+     * Current marks as a sorted snapshot, suitable for binary search.
+     */
+    ZLTextMarkList getMarkList();
+
     // text length for paragraphs from 0 to index
     int getTextLength(int index);
 
     int findParagraphByTextLength(int length);
 
     int search(final String text, int startIndex, int endIndex, boolean ignoreCase);
+
+    /**
+     * Starts the search in background; previous marks are removed immediately,
+     * new marks become available as soon as they are found.
+     */
+    ZLTextSearchTask startSearch(String text, int startIndex, int endIndex, boolean ignoreCase, ZLTextSearchTask.Listener listener);
 }
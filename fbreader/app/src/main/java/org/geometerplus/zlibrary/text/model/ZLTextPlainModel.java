@@ -25,8 +25,8 @@ import org.geometerplus.zlibrary.core.util.CSSUtil;
 import org.geometerplus.zlibrary.core.util.ZLSearchPattern;
 import org.geometerplus.zlibrary.core.util.ZLSearchUtil;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -74,9 +74,18 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
     private int myParagraphsNumber;
 
     /**
-     * Save the marks results of searching word.
+     * Save the marks results of searching word; marks are sorted and only appended.
      */
-    private ArrayList<ZLTextMark> myMarks;
+    private volatile ZLTextMarkList myMarks = ZLTextMarkList.EMPTY;
+    /**
+     * The search task allowed to append marks; null for synchronous search results.
+     */
+    private ZLTextSearchTask myMarksOwner;
+    private final Object myMarksLock = new Object();
+    /**
+     * Optional index used to skip paragraphs that cannot match the search pattern.
+     */
+    private volatile ZLTextSearchIndex mySearchIndex;
 
     public ZLTextPlainModel(
             String id,
@@ -91,6 +100,7 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
             String fileName,
             String fileExtension,
             int blocksNumber,
+            boolean mapFiles,
             Map<String, ZLImage> imageMap,
             FontManager fontManager
     ) {
@@ -102,7 +112,7 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
         myParagraphLengths = paragraphLengths;
         myTextSizes = textSizes;
         myParagraphKinds = paragraphKinds;
-        myStorage = new CachedCharStorage(directoryName, fileName, fileExtension, blocksNumber);
+        myStorage = new CachedCharStorage(directoryName, fileName, fileExtension, blocksNumber, mapFiles);
         myImageMap = imageMap;
         myFontManager = fontManager;
     }
@@ -138,6 +148,13 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
         return -lowIndex - 1;
     }
 
+    /**
+     * Gives access to the ncache block cache (shared by all the models), e.g., to its hit/miss statistics.
+     */
+    public final CharBlockCache getBlockCache() {
+        return myStorage.cache();
+    }
+
     @Override
     public final String getId() {
         return myId;
@@ -150,62 +167,114 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
 
     @Override
     public final ZLTextMark getFirstMark() {
-        return (myMarks == null || myMarks.isEmpty()) ? null : myMarks.get(0);
+        return myMarks.getFirstMark();
     }
 
     @Override
     public final ZLTextMark getLastMark() {
-        return (myMarks == null || myMarks.isEmpty()) ? null : myMarks.get(myMarks.size() - 1);
+        return myMarks.getLastMark();
     }
 
     @Override
     public final ZLTextMark getNextMark(ZLTextMark position) {
-        if (position == null || myMarks == null) {
-            return null;
-        }
-
-        ZLTextMark mark = null;
-        for (ZLTextMark current : myMarks) {
-            if (current.compareTo(position) >= 0) {
-                if ((mark == null) || (mark.compareTo(current) > 0)) {
-                    mark = current;
-                }
-            }
-        }
-        return mark;
+        return position != null ? myMarks.getNextMark(position) : null;
     }
 
     @Override
     public final ZLTextMark getPreviousMark(ZLTextMark position) {
-        if ((position == null) || (myMarks == null)) {
-            return null;
-        }
+        return position != null ? myMarks.getPreviousMark(position) : null;
+    }
 
-        ZLTextMark mark = null;
-        for (ZLTextMark current : myMarks) {
-            if (current.compareTo(position) < 0) {
-                if ((mark == null) || (mark.compareTo(current) < 0)) {
-                    mark = current;
-                }
-            }
-        }
-        return mark;
+    private long[] candidateGroups(String text) {
+        final ZLTextSearchIndex searchIndex = mySearchIndex;
+        return searchIndex != null ? searchIndex.candidateGroups(text) : null;
     }
 
     @Override
     public final int search(final String text, int startIndex, int endIndex, boolean ignoreCase) {
-        int count = 0;
-        ZLSearchPattern pattern = new ZLSearchPattern(text, ignoreCase);
-        myMarks = new ArrayList<ZLTextMark>();
+        final ZLSearchPattern pattern = new ZLSearchPattern(text, ignoreCase);
         if (startIndex > myParagraphsNumber) {
             startIndex = myParagraphsNumber;
         }
         if (endIndex > myParagraphsNumber) {
             endIndex = myParagraphsNumber;
         }
-        int index = startIndex;
-        final EntryIteratorImpl it = new EntryIteratorImpl(index);
-        while (true) {
+        final List<ZLTextMark> marks =
+                searchParagraphs(pattern, candidateGroups(text), startIndex, endIndex, null);
+        synchronized (myMarksLock) {
+            myMarksOwner = null;
+            myMarks = ZLTextMarkList.EMPTY.append(marks);
+        }
+        return marks.size();
+    }
+
+    @Override
+    public final ZLTextSearchTask startSearch(String text, int startIndex, int endIndex, boolean ignoreCase, ZLTextSearchTask.Listener listener) {
+        if (startIndex > myParagraphsNumber) {
+            startIndex = myParagraphsNumber;
+        }
+        if (endIndex > myParagraphsNumber) {
+            endIndex = myParagraphsNumber;
+        }
+        final ZLTextSearchTask task = new ZLTextSearchTask(
+                this, new ZLSearchPattern(text, ignoreCase), candidateGroups(text),
+                startIndex, endIndex, listener
+        );
+        synchronized (myMarksLock) {
+            if (myMarksOwner != null) {
+                myMarksOwner.cancel();
+            }
+            myMarksOwner = task;
+            myMarks = ZLTextMarkList.EMPTY;
+        }
+        task.start();
+        return task;
+    }
+
+    /**
+     * Appends marks found by the search task; the marks must follow all the marks already added.
+     *
+     * @return false if the task is not the current search of the model
+     */
+    final boolean appendMarks(ZLTextSearchTask owner, List<ZLTextMark> marks) {
+        synchronized (myMarksLock) {
+            if (owner != myMarksOwner) {
+                return false;
+            }
+            myMarks = myMarks.append(marks);
+            return true;
+        }
+    }
+
+    /**
+     * Searches the pattern in paragraphs [startIndex, endIndex).
+     *
+     * @param groups candidate paragraph groups from the search index, null to scan all paragraphs
+     * @param task   the task to check for cancellation, might be null
+     */
+    final List<ZLTextMark> searchParagraphs(ZLSearchPattern pattern, long[] groups, int startIndex, int endIndex, ZLTextSearchTask task) {
+        final ArrayList<ZLTextMark> marks = new ArrayList<ZLTextMark>();
+        final ZLTextSearchIndex searchIndex = mySearchIndex;
+        if (searchIndex == null) {
+            groups = null;
+        }
+        EntryIteratorImpl it = null;
+        for (int index = startIndex; index < endIndex; ++index) {
+            if (groups != null) {
+                // paragraphs of groups without pattern trigrams are skipped unread
+                index = searchIndex.nextCandidate(groups, index);
+                if (index >= endIndex) {
+                    break;
+                }
+            }
+            if (task != null && task.isCancelled()) {
+                break;
+            }
+            if (it == null) {
+                it = new EntryIteratorImpl(index);
+            } else {
+                it.reset(index);
+            }
             int offset = 0;
             while (it.next()) {
                 if (it.getType() == ZLTextParagraph.Entry.TEXT) {
@@ -214,28 +283,81 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
                     int textLength = it.getTextLength();
                     for (ZLSearchUtil.Result res = ZLSearchUtil.find(textData, textOffset, textLength, pattern); res != null;
                          res = ZLSearchUtil.find(textData, textOffset, textLength, pattern, res.Start + 1)) {
-                        myMarks.add(new ZLTextMark(index, offset + res.Start, res.Length));
-                        ++count;
+                        marks.add(new ZLTextMark(index, offset + res.Start, res.Length));
                     }
                     offset += textLength;
                 }
             }
-            if (++index >= endIndex) {
-                break;
+        }
+        return marks;
+    }
+
+    /**
+     * Builds the trigram index of the model text; this reads the whole model,
+     * so it should be called from a background thread.
+     * The blocks are read past the block cache, so the text being read stays cached.
+     *
+     * @return null if the calling thread has been interrupted
+     */
+    public final ZLTextSearchIndex buildSearchIndex() {
+        final ZLTextSearchIndex searchIndex = new ZLTextSearchIndex(myParagraphsNumber);
+        if (myParagraphsNumber == 0) {
+            return searchIndex;
+        }
+        final EntryIteratorImpl it = new EntryIteratorImpl(0, true);
+        for (int index = 0; index < myParagraphsNumber; ++index) {
+            if (Thread.currentThread().isInterrupted()) {
+                return null;
             }
             it.reset(index);
+            while (it.next()) {
+                if (it.getType() == ZLTextParagraph.Entry.TEXT) {
+                    searchIndex.addText(index, it.getTextData(), it.getTextOffset(), it.getTextLength());
+                }
+            }
+        }
+        return searchIndex;
+    }
+
+    /**
+     * Installs the search index; until it is set, search() scans all paragraphs.
+     */
+    public final void setSearchIndex(ZLTextSearchIndex searchIndex) {
+        if (searchIndex == null || searchIndex.getParagraphsNumber() == myParagraphsNumber) {
+            mySearchIndex = searchIndex;
         }
-        return count;
     }
 
     @Override
     public final List<ZLTextMark> getMarks() {
-        return myMarks != null ? myMarks : Collections.<ZLTextMark>emptyList();
+        final ZLTextMarkList marks = myMarks;
+        return new AbstractList<ZLTextMark>() {
+            @Override
+            public ZLTextMark get(int index) {
+                return marks.getMark(index);
+            }
+
+            @Override
+            public int size() {
+                return marks.size();
+            }
+        };
+    }
+
+    @Override
+    public final ZLTextMarkList getMarkList() {
+        return myMarks;
     }
 
     @Override
     public final void removeAllMarks() {
-        myMarks = null;
+        synchronized (myMarksLock) {
+            if (myMarksOwner != null) {
+                myMarksOwner.cancel();
+                myMarksOwner = null;
+            }
+            myMarks = ZLTextMarkList.EMPTY;
+        }
     }
 
     @Override
@@ -308,7 +430,18 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
         // FixedHSpaceEntry data
         private short myFixedHSpaceLength;
 
+        // true for one-pass scans that bypass the block cache;
+        // such a scan keeps the current block itself
+        private final boolean myScan;
+        private int myScanBlockIndex = -1;
+        private char[] myScanBlock;
+
         EntryIteratorImpl(int index) {
+            this(index, false);
+        }
+
+        EntryIteratorImpl(int index, boolean scan) {
+            myScan = scan;
             reset(index);
         }
 
@@ -317,6 +450,20 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
             myLength = myParagraphLengths[index];
             myDataIndex = myStartEntryIndices[index];
             myDataOffset = myStartEntryOffsets[index];
+            if (!myScan) {
+                myStorage.prefetch(myDataIndex);
+            }
+        }
+
+        private char[] block(int index) {
+            if (!myScan) {
+                return myStorage.block(index);
+            }
+            if (index != myScanBlockIndex) {
+                myScanBlock = myStorage.uncachedBlock(index);
+                myScanBlockIndex = index;
+            }
+            return myScanBlock;
         }
 
         @Override
@@ -391,12 +538,12 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
             }
 
             int dataOffset = myDataOffset;
-            char[] data = myStorage.block(myDataIndex);
+            char[] data = block(myDataIndex);
             if (data == null) {
                 return false;
             }
             if (dataOffset >= data.length) {
-                data = myStorage.block(++myDataIndex);
+                data = block(++myDataIndex);
                 if (data == null) {
                     return false;
                 }
@@ -405,7 +552,7 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
             short first = (short) data[dataOffset];
             byte type = (byte) first;
             if (type == 0) {
-                data = myStorage.block(++myDataIndex);
+                data = block(++myDataIndex);
                 if (data == null) {
                     return false;
                 }
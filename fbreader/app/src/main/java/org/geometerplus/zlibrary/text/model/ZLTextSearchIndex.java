@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.text.model;
+
+import org.fbreader.util.IOUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Trigram signature index of a text model.
+ *
+ * Paragraphs are split into groups of {@link #myGroupSize} consecutive paragraphs;
+ * for every (hashed) trigram of the case-folded text the index keeps a bit set of
+ * the groups containing it. A group that lacks any trigram of the pattern cannot
+ * contain a match, so the search skips its paragraphs without reading them.
+ * Hash collisions only produce extra candidates, matches are always verified.
+ */
+public final class ZLTextSearchIndex {
+    private static final int VERSION = 1;
+    private static final int BUCKETS_BITS = 14;
+    private static final int BUCKETS_NUMBER = 1 << BUCKETS_BITS;
+    private static final int MIN_GROUP_SIZE = 8;
+    private static final int MAX_GROUPS_NUMBER = 2048;
+
+    private final int myParagraphsNumber;
+    private final int myGroupSize;
+    private final int myWordsPerBucket;
+    private final long[] myBits;
+
+    private char myChar0;
+    private char myChar1;
+    private int myCharsNumber;
+
+    ZLTextSearchIndex(int paragraphsNumber) {
+        myParagraphsNumber = paragraphsNumber;
+        myGroupSize = Math.max(MIN_GROUP_SIZE, (paragraphsNumber + MAX_GROUPS_NUMBER - 1) / MAX_GROUPS_NUMBER);
+        final int groupsNumber = (paragraphsNumber + myGroupSize - 1) / myGroupSize;
+        myWordsPerBucket = Math.max(1, (groupsNumber + 63) / 64);
+        myBits = new long[BUCKETS_NUMBER * myWordsPerBucket];
+    }
+
+    private ZLTextSearchIndex(int paragraphsNumber, int groupSize, int wordsPerBucket, long[] bits) {
+        myParagraphsNumber = paragraphsNumber;
+        myGroupSize = groupSize;
+        myWordsPerBucket = wordsPerBucket;
+        myBits = bits;
+    }
+
+    private static int bucket(char c0, char c1, char c2) {
+        final int hash = (c0 << 20) ^ (c1 << 10) ^ c2;
+        return (hash * 0x9E3779B1) >>> (32 - BUCKETS_BITS);
+    }
+
+    /**
+     * Adds text of an entry; trigrams never span entries, same as search results.
+     */
+    void addText(int paragraphIndex, char[] data, int offset, int length) {
+        myCharsNumber = 0;
+
+        final int group = paragraphIndex / myGroupSize;
+        final int word = group >> 6;
+        final long mask = 1L << (group & 63);
+        final int end = offset + length;
+        for (int i = offset; i < end; ++i) {
+            final char ch = data[i];
+            if (ch == '\u200b') {
+                continue;
+            }
+            final char folded = Character.toLowerCase(ch);
+            if (myCharsNumber >= 2) {
+                myBits[bucket(myChar0, myChar1, folded) * myWordsPerBucket + word] |= mask;
+            } else {
+                ++myCharsNumber;
+            }
+            myChar0 = myChar1;
+            myChar1 = folded;
+        }
+    }
+
+    public int getParagraphsNumber() {
+        return myParagraphsNumber;
+    }
+
+    /**
+     * @return bit set of paragraph groups that might contain the pattern;
+     * null if the index cannot help (pattern shorter than 3 chars, or unusual case folding).
+     */
+    long[] candidateGroups(String pattern) {
+        pattern = pattern.replace("\u200b", "");
+        final int length = pattern.length();
+        if (length < 3) {
+            return null;
+        }
+        final String lower = pattern.toLowerCase();
+        final String upper = pattern.toUpperCase();
+        if (lower.length() != length || upper.length() != length) {
+            return null;
+        }
+        final char[] folded = new char[length];
+        for (int i = 0; i < length; ++i) {
+            final char ch = Character.toLowerCase(lower.charAt(i));
+            if (ch != Character.toLowerCase(upper.charAt(i)) ||
+                    ch != Character.toLowerCase(pattern.charAt(i))) {
+                return null;
+            }
+            folded[i] = ch;
+        }
+
+        final long[] groups = new long[myWordsPerBucket];
+        Arrays.fill(groups, -1L);
+        for (int i = 2; i < length; ++i) {
+            final int start = bucket(folded[i - 2], folded[i - 1], folded[i]) * myWordsPerBucket;
+            for (int w = 0; w < myWordsPerBucket; ++w) {
+                groups[w] &= myBits[start + w];
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * @return the first paragraph index not less than paragraphIndex that belongs
+     * to a candidate group, or Integer.MAX_VALUE if there is no such paragraph.
+     */
+    int nextCandidate(long[] groups, int paragraphIndex) {
+        int group = paragraphIndex / myGroupSize;
+        int word = group >> 6;
+        if (word >= groups.length) {
+            return Integer.MAX_VALUE;
+        }
+        long bits = groups[word] & (-1L << (group & 63));
+        while (bits == 0) {
+            if (++word >= groups.length) {
+                return Integer.MAX_VALUE;
+            }
+            bits = groups[word];
+        }
+        group = (word << 6) + Long.numberOfTrailingZeros(bits);
+        return Math.max(paragraphIndex, group * myGroupSize);
+    }
+
+    int groupSize() {
+        return myGroupSize;
+    }
+
+    public static ZLTextSearchIndex read(File file, int paragraphsNumber) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream stream = null;
+        try {
+            stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+            if (stream.readInt() != VERSION || stream.readInt() != paragraphsNumber) {
+                return null;
+            }
+            final int groupSize = stream.readInt();
+            final int wordsPerBucket = stream.readInt();
+            final long[] bits = new long[BUCKETS_NUMBER * wordsPerBucket];
+            for (int i = 0; i < bits.length; ++i) {
+                bits[i] = stream.readLong();
+            }
+            return new ZLTextSearchIndex(paragraphsNumber, groupSize, wordsPerBucket, bits);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtil.closeQuietly(stream);
+        }
+    }
+
+    public void write(File file) {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream stream = null;
+        try {
+            stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 65536));
+            stream.writeInt(VERSION);
+            stream.writeInt(myParagraphsNumber);
+            stream.writeInt(myGroupSize);
+            stream.writeInt(myWordsPerBucket);
+            for (long word : myBits) {
+                stream.writeLong(word);
+            }
+            stream.close();
+            stream = null;
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            IOUtil.closeQuietly(stream);
+            tempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.text.model;
+
+import org.geometerplus.zlibrary.core.util.ZLSearchPattern;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Text search running in background.
+ *
+ * The paragraph range is split into chunks that are scanned in parallel;
+ * found marks are added to the model and passed to the listener in document order,
+ * as soon as all the preceding chunks are done.
+ */
+public final class ZLTextSearchTask {
+    public interface Listener {
+        /**
+         * Called from a worker thread for every non-empty portion of marks, in document order.
+         * The marks are already available via the model's mark methods.
+         */
+        void onMarksFound(List<ZLTextMark> marks);
+
+        /**
+         * Called from a worker thread when the whole range is searched;
+         * not called if the task is cancelled.
+         */
+        void onSearchFinished(int count);
+    }
+
+    private static final int CHUNK_SIZE = 64;
+
+    private static final ExecutorService ourPool = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "ZLTextSearchTask");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }
+    );
+
+    private final ZLTextPlainModel myModel;
+    private final ZLSearchPattern myPattern;
+    private final long[] myGroups;
+    private final int myStartIndex;
+    private final int myEndIndex;
+    private final Listener myListener;
+
+    private final Object myStateLock = new Object();
+    private final Object myPublishLock = new Object();
+    private final List<ZLTextMark>[] myResults;
+    private final List<Future<?>> myFutures = new ArrayList<Future<?>>();
+    private int myNextChunkToPublish;
+    private int myCount;
+    private volatile boolean myIsCancelled;
+    private volatile boolean myIsFinished;
+
+    @SuppressWarnings("unchecked")
+    ZLTextSearchTask(ZLTextPlainModel model, ZLSearchPattern pattern, long[] groups, int startIndex, int endIndex, Listener listener) {
+        myModel = model;
+        myPattern = pattern;
+        myGroups = groups;
+        myStartIndex = startIndex;
+        myEndIndex = Math.max(startIndex, endIndex);
+        myListener = listener;
+        myResults = new List[(myEndIndex - myStartIndex + CHUNK_SIZE - 1) / CHUNK_SIZE];
+    }
+
+    void start() {
+        if (myResults.length == 0) {
+            finish();
+            return;
+        }
+        synchronized (myStateLock) {
+            for (int i = 0; i < myResults.length; ++i) {
+                final int chunk = i;
+                myFutures.add(ourPool.submit(new Runnable() {
+                    public void run() {
+                        final int from = myStartIndex + chunk * CHUNK_SIZE;
+                        final int to = Math.min(from + CHUNK_SIZE, myEndIndex);
+                        final List<ZLTextMark> marks =
+                                myModel.searchParagraphs(myPattern, myGroups, from, to, ZLTextSearchTask.this);
+                        onChunkDone(chunk, marks);
+                    }
+                }));
+            }
+        }
+    }
+
+    private void onChunkDone(int chunk, List<ZLTextMark> marks) {
+        synchronized (myStateLock) {
+            if (myIsCancelled) {
+                return;
+            }
+            myResults[chunk] = marks;
+        }
+        // the publishing lock keeps portions in order; the state lock is not held
+        // while the listener is called, so cancel() never waits for the listener
+        synchronized (myPublishLock) {
+            while (true) {
+                final List<ZLTextMark> ready;
+                synchronized (myStateLock) {
+                    if (myIsCancelled || myNextChunkToPublish == myResults.length ||
+                            myResults[myNextChunkToPublish] == null) {
+                        break;
+                    }
+                    ready = myResults[myNextChunkToPublish];
+                    myResults[myNextChunkToPublish++] = null;
+                    myCount += ready.size();
+                }
+                if (!ready.isEmpty() && myModel.appendMarks(this, ready)) {
+                    myListener.onMarksFound(ready);
+                }
+            }
+            synchronized (myStateLock) {
+                if (myIsCancelled || myNextChunkToPublish < myResults.length) {
+                    return;
+                }
+            }
+            finish();
+        }
+    }
+
+    private void finish() {
+        synchronized (myStateLock) {
+            myIsFinished = true;
+            myStateLock.notifyAll();
+        }
+        myListener.onSearchFinished(myCount);
+    }
+
+    /**
+     * Stops the search; marks that are already published stay in the model.
+     */
+    public void cancel() {
+        synchronized (myStateLock) {
+            myIsCancelled = true;
+            for (Future<?> f : myFutures) {
+                f.cancel(false);
+            }
+            myFutures.clear();
+            myStateLock.notifyAll();
+        }
+    }
+
+    public boolean isCancelled() {
+        return myIsCancelled;
+    }
+
+    public boolean isFinished() {
+        return myIsFinished;
+    }
+
+    /**
+     * Blocks until the search is finished or cancelled.
+     *
+     * @return the number of found marks
+     */
+    public int waitForResult() {
+        synchronized (myStateLock) {
+            while (!myIsFinished && !myIsCancelled) {
+                try {
+                    myStateLock.wait();
+                } catch (InterruptedException e) {
+                    cancel();
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return myCount;
+        }
+    }
+}
@@ -20,9 +20,11 @@
 package org.geometerplus.zlibrary.text.model;
 
 import org.fbreader.util.Boolean3;
+import org.fbreader.util.ComparisonUtil;
 import org.geometerplus.zlibrary.core.fonts.FontEntry;
 import org.geometerplus.zlibrary.core.fonts.FontManager;
 
+import java.util.Arrays;
 import java.util.List;
 
 public abstract class ZLTextStyleEntry {
@@ -167,6 +169,46 @@ public abstract class ZLTextStyleEntry {
         myVerticalAlignCode = code;
     }
 
+    /**
+     * Entries are compared by value: the model re-creates them for every
+     * paragraph, the view uses the value to share decorated styles.
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (other == this) {
+            return true;
+        }
+        if (other == null || other.getClass() != getClass()) {
+            return false;
+        }
+        final ZLTextStyleEntry entry = (ZLTextStyleEntry) other;
+        return
+                Depth == entry.Depth &&
+                myFeatureMask == entry.myFeatureMask &&
+                myAlignmentType == entry.myAlignmentType &&
+                mySupportedFontModifiers == entry.mySupportedFontModifiers &&
+                myFontModifiers == entry.myFontModifiers &&
+                myVerticalAlignCode == entry.myVerticalAlignCode &&
+                Arrays.equals(myLengths, entry.myLengths) &&
+                ComparisonUtil.equal(myFontEntries, entry.myFontEntries) &&
+                ComparisonUtil.equal(mColor, entry.mColor) &&
+                ComparisonUtil.equal(mBgColor, entry.mBgColor);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = getClass().hashCode();
+        hash = 31 * hash + Depth;
+        hash = 31 * hash + myFeatureMask;
+        hash = 31 * hash + myAlignmentType;
+        hash = 31 * hash + ((mySupportedFontModifiers & 0xFF) << 8 | myFontModifiers & 0xFF);
+        hash = 31 * hash + myVerticalAlignCode;
+        hash = 31 * hash + Arrays.hashCode(myLengths);
+        hash = 31 * hash + ComparisonUtil.hashCode(myFontEntries);
+        hash = 31 * hash + ComparisonUtil.hashCode(mColor);
+        return 31 * hash + ComparisonUtil.hashCode(mBgColor);
+    }
+
     @Override
     public String toString() {
         final StringBuilder buffer = new StringBuilder("StyleEntry[");
@@ -232,6 +274,23 @@ public abstract class ZLTextStyleEntry {
             Unit = unit;
         }
 
+        @Override
+        public boolean equals(Object other) {
+            if (other == this) {
+                return true;
+            }
+            if (!(other instanceof Length)) {
+                return false;
+            }
+            final Length length = (Length) other;
+            return Size == length.Size && Unit == length.Unit;
+        }
+
+        @Override
+        public int hashCode() {
+            return Size * 8 + Unit;
+        }
+
         @Override
         public String toString() {
             return Size + "." + Unit;
@@ -67,6 +67,29 @@ final class ZLTextLineInfo {
         StartStyle = style;
     }
 
+    ZLTextLineInfo(ZLTextLineInfo info) {
+        ParagraphCursor = info.ParagraphCursor;
+        ParagraphCursorLength = info.ParagraphCursorLength;
+
+        StartElementIndex = info.StartElementIndex;
+        StartCharIndex = info.StartCharIndex;
+        RealStartElementIndex = info.RealStartElementIndex;
+        RealStartCharIndex = info.RealStartCharIndex;
+        EndElementIndex = info.EndElementIndex;
+        EndCharIndex = info.EndCharIndex;
+
+        mIsVisible = info.mIsVisible;
+        mLeftIndent = info.mLeftIndent;
+        mWidth = info.mWidth;
+        mHeight = info.mHeight;
+        mDescent = info.mDescent;
+        mVSpaceBefore = info.mVSpaceBefore;
+        mVSpaceAfter = info.mVSpaceAfter;
+        PreviousInfoUsed = info.PreviousInfoUsed;
+        SpaceCounter = info.SpaceCounter;
+        StartStyle = info.StartStyle;
+    }
+
     boolean isEndOfParagraph() {
         return EndElementIndex == ParagraphCursorLength;
     }
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.view;
+
+import android.util.LruCache;
+
+import org.geometerplus.zlibrary.text.model.ZLTextMetrics;
+
+import java.util.ArrayList;
+
+/**
+ * Line infos of recently laid out paragraphs, so turning pages back and forth
+ * and measuring paragraphs do not break the same lines again.
+ *
+ * Entries are valid for one layout signature (text area size and metrics);
+ * style changes are handled by clear(). Cached infos are never adjusted
+ * to the previous line, the adjustment is made on copies.
+ */
+final class ZLTextLineInfoCache extends LruCache<Integer, ZLTextLineInfoCache.Paragraph> {
+    static final class Paragraph {
+        final ZLTextParagraphCursor Cursor;
+        final ArrayList<ZLTextLineInfo> Lines = new ArrayList<ZLTextLineInfo>();
+
+        Paragraph(ZLTextParagraphCursor cursor) {
+            Cursor = cursor;
+        }
+    }
+
+    private int myWidth = -1;
+    private int myHeight = -1;
+    private ZLTextMetrics myMetrics;
+
+    ZLTextLineInfoCache() {
+        super(200); // the same number as for paragraph cursors
+    }
+
+    /**
+     * Drops all the entries if the layout signature is changed.
+     */
+    void checkSignature(int width, int height, ZLTextMetrics metrics) {
+        if (width != myWidth || height != myHeight || metrics != myMetrics) {
+            evictAll();
+            myWidth = width;
+            myHeight = height;
+            myMetrics = metrics;
+        }
+    }
+
+    ZLTextLineInfo get(ZLTextParagraphCursor cursor, int elementIndex, int charIndex) {
+        final Paragraph paragraph = get(cursor.Index);
+        // the paragraph cursor can be re-created after rebuild, old lines refer to the old one
+        if (paragraph == null || paragraph.Cursor != cursor) {
+            return null;
+        }
+        for (ZLTextLineInfo info : paragraph.Lines) {
+            if (info.StartElementIndex == elementIndex && info.StartCharIndex == charIndex) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    void put(ZLTextLineInfo info) {
+        final ZLTextParagraphCursor cursor = info.ParagraphCursor;
+        Paragraph paragraph = get(cursor.Index);
+        if (paragraph == null || paragraph.Cursor != cursor) {
+            paragraph = new Paragraph(cursor);
+            put(cursor.Index, paragraph);
+        }
+        paragraph.Lines.add(info);
+    }
+
+    void clear() {
+        evictAll();
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.view;
+
+import org.fbreader.util.IOUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Lays out the whole text in background and remembers where every page starts,
+ * so page numbers and page navigation are exact.
+ *
+ * Pages are built by a layout view created by the view (see ZLTextView.createLayoutView()):
+ * the same layout code and settings, but its own paragraph cursors and measuring context,
+ * so the pagination neither holds the view lock nor evicts the reader's cursors.
+ * All the fields are accessed under the paginator lock; the view may call
+ * the paginator under its own lock, the paginator never takes the view lock.
+ */
+final class ZLTextPaginator {
+    private static final int VERSION = 0x50474d01;
+
+    private final ZLTextView myView;
+
+    private String myKey;
+    private int myGeneration;
+    private int[] myParagraphs = new int[256];
+    private int[] myElements = new int[256];
+    private int[] myChars = new int[256];
+    private int myPagesNumber;
+    private boolean myIsComplete;
+
+    ZLTextPaginator(ZLTextView view) {
+        myView = view;
+    }
+
+    /**
+     * Forgets the page map; the next update() starts the pagination again.
+     */
+    synchronized void invalidate() {
+        ++myGeneration;
+        myKey = null;
+        myPagesNumber = 0;
+        myIsComplete = false;
+    }
+
+    /**
+     * Starts the pagination if the layout key differs from the one of the current page map.
+     * Called under the view lock.
+     *
+     * @param key describes everything the layout depends on
+     * @param file the page map file, or null if the page map should not be persisted
+     */
+    void update(final String key, final File file) {
+        final int generation;
+        synchronized (this) {
+            if (key.equals(myKey)) {
+                return;
+            }
+            invalidate();
+            myKey = key;
+            generation = myGeneration;
+        }
+        final ZLTextView layout = myView.createPaginatorLayout();
+        if (layout == null) {
+            return;
+        }
+        final Thread thread = new Thread("ZLTextPaginator") {
+            public void run() {
+                paginate(generation, key, file, layout);
+            }
+        };
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized boolean isComplete() {
+        return myIsComplete;
+    }
+
+    synchronized int getPagesNumber() {
+        return myPagesNumber;
+    }
+
+    /**
+     * @return 1-based number of the page containing the position, or 0 if the page map is not ready
+     */
+    synchronized int getPageNumber(int paragraphIndex, int elementIndex, int charIndex) {
+        if (!myIsComplete) {
+            return 0;
+        }
+        int low = 0;
+        int high = myPagesNumber;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (compare(middle, paragraphIndex, elementIndex, charIndex) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return Math.max(low, 1);
+    }
+
+    synchronized int getParagraphIndex(int pageNumber) {
+        return myParagraphs[pageNumber - 1];
+    }
+
+    synchronized int getElementIndex(int pageNumber) {
+        return myElements[pageNumber - 1];
+    }
+
+    synchronized int getCharIndex(int pageNumber) {
+        return myChars[pageNumber - 1];
+    }
+
+    private int compare(int page, int paragraphIndex, int elementIndex, int charIndex) {
+        if (myParagraphs[page] != paragraphIndex) {
+            return myParagraphs[page] < paragraphIndex ? -1 : 1;
+        }
+        if (myElements[page] != elementIndex) {
+            return myElements[page] < elementIndex ? -1 : 1;
+        }
+        return myChars[page] - charIndex;
+    }
+
+    private void addPage(ZLTextWordCursor start) {
+        if (myPagesNumber == myParagraphs.length) {
+            final int capacity = myPagesNumber * 2;
+            myParagraphs = Arrays.copyOf(myParagraphs, capacity);
+            myElements = Arrays.copyOf(myElements, capacity);
+            myChars = Arrays.copyOf(myChars, capacity);
+        }
+        myParagraphs[myPagesNumber] = start.getParagraphIndex();
+        myElements[myPagesNumber] = start.getElementIndex();
+        myChars[myPagesNumber] = start.getCharIndex();
+        ++myPagesNumber;
+    }
+
+    private void paginate(int generation, String key, File file, ZLTextView layout) {
+        if (file != null && readFile(generation, key, file)) {
+            return;
+        }
+
+        final ZLTextPage page = new ZLTextPage();
+        final ZLTextWordCursor start = new ZLTextWordCursor();
+        final ZLTextWordCursor end = new ZLTextWordCursor();
+        int paragraphIndex = 0;
+        int elementIndex = 0;
+        int charIndex = 0;
+        while (true) {
+            if (!layout.startPaginatorCursor(start, paragraphIndex, elementIndex, charIndex)) {
+                return;
+            }
+            synchronized (this) {
+                if (generation != myGeneration) {
+                    return;
+                }
+                addPage(start);
+            }
+            final boolean hasNext = layout.buildPaginatorPage(page, start, end);
+            if (!hasNext) {
+                synchronized (this) {
+                    if (generation != myGeneration) {
+                        return;
+                    }
+                    myIsComplete = true;
+                }
+                break;
+            }
+            paragraphIndex = end.getParagraphIndex();
+            elementIndex = end.getElementIndex();
+            charIndex = end.getCharIndex();
+        }
+
+        if (file != null) {
+            final int[] paragraphs;
+            final int[] elements;
+            final int[] chars;
+            synchronized (this) {
+                if (generation != myGeneration) {
+                    return;
+                }
+                paragraphs = Arrays.copyOf(myParagraphs, myPagesNumber);
+                elements = Arrays.copyOf(myElements, myPagesNumber);
+                chars = Arrays.copyOf(myChars, myPagesNumber);
+            }
+            writeFile(file, key, paragraphs, elements, chars);
+        }
+    }
+
+    private boolean readFile(int generation, String key, File file) {
+        if (!file.exists()) {
+            return false;
+        }
+
+        DataInputStream stream = null;
+        try {
+            stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (stream.readInt() != VERSION || !key.equals(stream.readUTF())) {
+                return false;
+            }
+            final int count = stream.readInt();
+            if (count <= 0) {
+                return false;
+            }
+            final int[] paragraphs = new int[count];
+            final int[] elements = new int[count];
+            final int[] chars = new int[count];
+            for (int i = 0; i < count; ++i) {
+                paragraphs[i] = stream.readInt();
+                elements[i] = stream.readInt();
+                chars[i] = stream.readInt();
+            }
+            synchronized (this) {
+                if (generation == myGeneration) {
+                    myParagraphs = paragraphs;
+                    myElements = elements;
+                    myChars = chars;
+                    myPagesNumber = count;
+                    myIsComplete = true;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            IOUtil.closeQuietly(stream);
+        }
+    }
+
+    private static void writeFile(File file, String key, int[] paragraphs, int[] elements, int[] chars) {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream stream = null;
+        try {
+            file.getParentFile().mkdirs();
+            stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            stream.writeInt(VERSION);
+            stream.writeUTF(key);
+            stream.writeInt(paragraphs.length);
+            for (int i = 0; i < paragraphs.length; ++i) {
+                stream.writeInt(paragraphs[i]);
+                stream.writeInt(elements[i]);
+                stream.writeInt(chars[i]);
+            }
+            stream.close();
+            stream = null;
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            IOUtil.closeQuietly(stream);
+            tempFile.delete();
+        }
+    }
+}
@@ -24,7 +24,7 @@ import org.geometerplus.zlibrary.core.image.ZLImageData;
 import org.geometerplus.zlibrary.core.image.ZLImageManager;
 import org.geometerplus.zlibrary.core.resources.ZLResource;
 import org.geometerplus.zlibrary.text.model.ZLImageEntry;
-import org.geometerplus.zlibrary.text.model.ZLTextMark;
+import org.geometerplus.zlibrary.text.model.ZLTextMarkList;
 import org.geometerplus.zlibrary.text.model.ZLTextModel;
 import org.geometerplus.zlibrary.text.model.ZLTextOtherStyleEntry;
 import org.geometerplus.zlibrary.text.model.ZLTextParagraph;
@@ -32,7 +32,6 @@ import org.geometerplus.zlibrary.text.model.ZLTextStyleEntry;
 import org.vimgadgets.linebreak.LineBreaker;
 
 import java.util.ArrayList;
-import java.util.List;
 
 /**
  * The paragraph data which will be filled according to the specified format.
@@ -77,7 +76,7 @@ public final class ZLTextParagraphCursor {
         switch (paragraph.getKind()) {
             case ZLTextParagraph.Kind.TEXT_PARAGRAPH:
                 // major implementation to fill data.
-                new Processor(paragraph, CursorManager.ExtensionManager, new LineBreaker(Model.getLanguage()), Model.getMarks(), Index, myElements).fill();
+                new Processor(paragraph, CursorManager.ExtensionManager, new LineBreaker(Model.getLanguage()), Model.getMarkList(), Index, myElements).fill();
                 break;
             case ZLTextParagraph.Kind.EMPTY_LINE_PARAGRAPH:
                 myElements.add(new ZLTextWord(SPACE_ARRAY, 0, 1, 0));
@@ -158,33 +157,22 @@ public final class ZLTextParagraphCursor {
         private final ExtensionElementManager myExtManager;
         private final LineBreaker myLineBreaker;
         private final ArrayList<ZLTextElement> myElements;
-        private final List<ZLTextMark> myMarks;
+        private final ZLTextMarkList myMarks;
         private int myOffset;
         private int myFirstMark;
         private int myLastMark;
 
-        private Processor(ZLTextParagraph paragraph, ExtensionElementManager extManager, LineBreaker lineBreaker, List<ZLTextMark> marks, int paragraphIndex, ArrayList<ZLTextElement> elements) {
+        private Processor(ZLTextParagraph paragraph, ExtensionElementManager extManager, LineBreaker lineBreaker, ZLTextMarkList marks, int paragraphIndex, ArrayList<ZLTextElement> elements) {
             myExtManager = extManager;
             myParagraph = paragraph;
             myLineBreaker = lineBreaker;
             myElements = elements;
             myMarks = marks;
 
-            // Here is the processing of search results.
-            final ZLTextMark mark = new ZLTextMark(paragraphIndex, 0, 0);
-            int i;
-            for (i = 0; i < myMarks.size(); i++) {
-                // get the first mark (included) after the beginning element of this paragraph
-                if (((ZLTextMark) myMarks.get(i)).compareTo(mark) >= 0) {
-                    break;
-                }
-            }
-            // save first mark location.
-            myFirstMark = i;
-            myLastMark = myFirstMark;
-            // loop to find the last mark in this paragraph.
-            for (; myLastMark != myMarks.size() && ((ZLTextMark) myMarks.get(myLastMark)).ParagraphIndex == paragraphIndex; myLastMark++)
-                ;
+            // Here is the processing of search results:
+            // the marks of this paragraph are [myFirstMark, myLastMark).
+            myFirstMark = marks.paragraphStart(paragraphIndex);
+            myLastMark = marks.paragraphStart(paragraphIndex + 1);
             myOffset = 0;
         }
 
@@ -367,9 +355,10 @@ public final class ZLTextParagraphCursor {
         private final void addWord(char[] data, int offset, int len, int paragraphOffset, ZLTextHyperlink hyperlink) {
             ZLTextWord word = new ZLTextWord(data, offset, len, paragraphOffset);
             for (int i = myFirstMark; i < myLastMark; ++i) {
-                final ZLTextMark mark = (ZLTextMark) myMarks.get(i);
-                if ((mark.Offset < paragraphOffset + len) && (mark.Offset + mark.Length > paragraphOffset)) {
-                    word.addMark(mark.Offset - paragraphOffset, mark.Length);
+                final int markOffset = myMarks.getOffset(i);
+                final int markLength = myMarks.getLength(i);
+                if ((markOffset < paragraphOffset + len) && (markOffset + markLength > paragraphOffset)) {
+                    word.addMark(markOffset - paragraphOffset, markLength);
                 }
             }
             if (hyperlink != null) {
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.view;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.geometerplus.zlibrary.text.model.ZLTextMetrics;
+import org.geometerplus.zlibrary.text.view.style.ZLTextStyleCollection;
+
+/**
+ * Interned decorated styles, so paragraphs sharing a style chain share the
+ * style objects and their lazily computed values.
+ *
+ * A style is keyed by its parent (by identity) and by the NG description
+ * (by identity) or the explicit style entry (by value). Styles carrying a
+ * hyperlink are never interned.
+ */
+final class ZLTextStyleCache {
+    private static final int MAX_SIZE = 1024;
+
+    private static final class Key {
+        ZLTextStyle Parent;
+        Object Source;
+
+        Key() {
+        }
+
+        Key(ZLTextStyle parent, Object source) {
+            Parent = parent;
+            Source = source;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) other;
+            return Parent == key.Parent && Source.equals(key.Source);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(Parent) * 31 + Source.hashCode();
+        }
+    }
+
+    private final Map<Key, ZLTextStyle> myStyles =
+            new LinkedHashMap<Key, ZLTextStyle>(64, .75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, ZLTextStyle> eldest) {
+                    return size() > MAX_SIZE;
+                }
+            };
+    private final Key myProbe = new Key();
+    private ZLTextStyleCollection myCollection;
+    private ZLTextMetrics myMetrics;
+
+    /**
+     * Drop all styles if they were built for another style collection or metrics.
+     */
+    void check(ZLTextStyleCollection collection, ZLTextMetrics metrics) {
+        if (collection != myCollection || metrics != myMetrics) {
+            myStyles.clear();
+            myCollection = collection;
+            myMetrics = metrics;
+        }
+    }
+
+    ZLTextStyle get(ZLTextStyle parent, Object source) {
+        myProbe.Parent = parent;
+        myProbe.Source = source;
+        final ZLTextStyle style = myStyles.get(myProbe);
+        myProbe.Parent = null;
+        myProbe.Source = null;
+        return style;
+    }
+
+    void put(ZLTextStyle parent, Object source, ZLTextStyle style) {
+        myStyles.put(new Key(parent, source), style);
+    }
+
+    void clear() {
+        myStyles.clear();
+    }
+}
@@ -24,6 +24,7 @@ import android.graphics.Rect;
 import org.LogUtils;
 import org.geometerplus.zlibrary.core.application.ZLApplication;
 import org.geometerplus.zlibrary.core.filesystem.ZLFile;
+import org.geometerplus.zlibrary.core.library.ZLibrary;
 import org.geometerplus.zlibrary.core.util.RationalNumber;
 import org.geometerplus.zlibrary.core.util.ZLColor;
 import org.geometerplus.zlibrary.core.view.Hull;
@@ -35,11 +36,19 @@ import org.geometerplus.zlibrary.text.model.ZLTextAlignmentType;
 import org.geometerplus.zlibrary.text.model.ZLTextMark;
 import org.geometerplus.zlibrary.text.model.ZLTextModel;
 import org.geometerplus.zlibrary.text.model.ZLTextParagraph;
-
+import org.geometerplus.zlibrary.text.model.ZLTextMetrics;
+import org.geometerplus.zlibrary.text.model.ZLTextSearchTask;
+import org.geometerplus.zlibrary.text.view.style.ZLTextBaseStyle;
+import org.geometerplus.zlibrary.text.view.style.ZLTextNGStyleDescription;
+import org.geometerplus.zlibrary.text.view.style.ZLTextStyleCollection;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -55,8 +64,10 @@ public abstract class ZLTextView extends ZLTextViewBase {
 
     private static final char[] ourDefaultLetters = "System developers have used modeling languages for decades to specify, visualize, construct, and document systems. The Unified Modeling Language (UML) is one of those languages. UML makes it possible for team members to collaborate by providing a common language that applies to a multitude of different systems. Essentially, it enables you to communicate solutions in a consistent, tool-supported language.".toCharArray();
     private static final char[] SPACE = new char[]{' '};
-    private final HashMap<ZLTextLineInfo, ZLTextLineInfo> myLineInfoCache = new HashMap<ZLTextLineInfo, ZLTextLineInfo>();
+    private final ZLTextLineInfoCache myLineInfoCache = new ZLTextLineInfoCache();
+    private boolean myUseLineInfoCache = true;
     private final ZLTextSelection mySelection = new ZLTextSelection(this);
+    private final ZLTextPaginator myPaginator = new ZLTextPaginator(this);
     private final Set<ZLTextHighlighting> myHighlightings =
             Collections.synchronizedSet(new TreeSet<ZLTextHighlighting>());
     private final char[] myLettersBuffer = new char[512];
@@ -74,6 +85,15 @@ public abstract class ZLTextView extends ZLTextViewBase {
     private float myCharWidth = -1f;
     private volatile ZLTextWord myCachedWord;
     private volatile ZLTextHyphenationInfo myCachedInfo;
+    // increased for every new search, so results of a replaced search are ignored
+    private int mySearchGeneration;
+    // the layout key is rebuilt only when the model, the metrics or the page size change
+    private String myLayoutKey;
+    private ZLTextMetrics myLayoutKeyMetrics;
+    private int myLayoutKeyWidth;
+    private int myLayoutKeyHeight;
+    private boolean myLayoutKeyTwoColumns;
+    private String myLayoutKeyLanguage;
 
     public ZLTextView(ZLApplication application) {
         super(application);
@@ -90,6 +110,8 @@ public abstract class ZLTextView extends ZLTextViewBase {
         myHighlightings.clear();
 
         myModel = model;
+        myLayoutKey = null;
+        myPaginator.invalidate();
         myCurrentPage.reset();
         myPreviousPage.reset();
         myNextPage.reset();
@@ -212,6 +234,73 @@ public abstract class ZLTextView extends ZLTextViewBase {
         return count;
     }
 
+    /**
+     * Starts a background search; the view jumps to the first suitable mark
+     * as soon as it is found (for backward search, when the search is finished).
+     *
+     * @return the running task or null if there is nothing to search
+     */
+    public synchronized ZLTextSearchTask startSearch(final String text, boolean ignoreCase,
+                                                     final boolean wholeText, final boolean backward,
+                                                     final ZLTextSearchTask.Listener listener) {
+        if (myModel == null || text.length() == 0) {
+            return null;
+        }
+        final int generation = ++mySearchGeneration;
+        final ZLTextMark start =
+                myCurrentPage.StartCursor.isNull() ? null : myCurrentPage.StartCursor.getMark();
+        myPreviousPage.reset();
+        myNextPage.reset();
+        return myModel.startSearch(text, 0, myModel.getParagraphsNumber(), ignoreCase, new ZLTextSearchTask.Listener() {
+            private boolean myNavigated;
+
+            public void onMarksFound(List<ZLTextMark> marks) {
+                if (!myNavigated && !backward) {
+                    myNavigated = showSearchResult(generation, start, wholeText, false, false);
+                }
+                listener.onMarksFound(marks);
+            }
+
+            public void onSearchFinished(int count) {
+                if (!myNavigated) {
+                    showSearchResult(generation, start, wholeText, backward, true);
+                } else {
+                    repaintSearchResults(generation);
+                }
+                listener.onSearchFinished(count);
+            }
+        });
+    }
+
+    private synchronized boolean showSearchResult(int generation, ZLTextMark start, boolean wholeText, boolean backward, boolean finished) {
+        if (generation != mySearchGeneration || myModel == null || myCurrentPage.StartCursor.isNull()) {
+            return false;
+        }
+        ZLTextMark mark = null;
+        if (wholeText) {
+            mark = backward ? myModel.getLastMark() : myModel.getFirstMark();
+        } else if (start != null) {
+            mark = backward ? myModel.getPreviousMark(start) : myModel.getNextMark(start);
+        }
+        if (mark == null && !finished) {
+            // marks after the start position may still be coming
+            return false;
+        }
+        repaintSearchResults(generation);
+        gotoMark(mark);
+        return mark != null;
+    }
+
+    private synchronized void repaintSearchResults(int generation) {
+        if (generation != mySearchGeneration || myModel == null || myCurrentPage.StartCursor.isNull()) {
+            return;
+        }
+        // rebuild the page to highlight the found marks
+        rebuildPaintInfo();
+        Application.getViewWidget().reset();
+        Application.getViewWidget().repaint();
+    }
+
     public boolean canFindNext() {
         final ZLTextWordCursor end = myCurrentPage.EndCursor;
         return !end.isNull() && (myModel != null) && (myModel.getNextMark(end.getMark()) != null);
@@ -237,6 +326,9 @@ public abstract class ZLTextView extends ZLTextViewBase {
     }
 
     public void clearFindResults() {
+        synchronized (this) {
+            ++mySearchGeneration;
+        }
         if (!findResultsAreEmpty()) {
             myModel.removeAllMarks();
             rebuildPaintInfo();
@@ -246,7 +338,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
     }
 
     public boolean findResultsAreEmpty() {
-        return myModel == null || myModel.getMarks().isEmpty();
+        return myModel == null || myModel.getMarkList().isEmpty();
     }
 
     @Override
@@ -437,6 +529,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
         if (myModel == null || myModel.getParagraphsNumber() == 0) {
             return;
         }
+        myPaginator.update(layoutKey(), getPageMapFile());
 
         ZLTextPage page;
         switch (pageIndex) {
@@ -706,6 +799,18 @@ public abstract class ZLTextView extends ZLTextViewBase {
      * Calculate the number of pages read and the number of total pages.
      */
     public final synchronized PagePosition pagePosition() {
+        if (myPaginator.isComplete()) {
+            preparePaintInfo(myCurrentPage);
+            final ZLTextWordCursor start = myCurrentPage.StartCursor;
+            if (!start.isNull()) {
+                final int total = myPaginator.getPagesNumber();
+                final int current = myCurrentPage.EndCursor.isEndOfText() ? total : myPaginator.getPageNumber(
+                        start.getParagraphIndex(), start.getElementIndex(), start.getCharIndex()
+                );
+                return new PagePosition(current, total);
+            }
+        }
+
         int current = computeTextPageNumber(getCurrentCharNumber(PageIndex.current, false));
         int total = computeTextPageNumber(sizeOfFullText());
 
@@ -761,6 +866,16 @@ public abstract class ZLTextView extends ZLTextViewBase {
             return;
         }
 
+        if (myPaginator.isComplete()) {
+            final int number = Math.max(1, Math.min(page, myPaginator.getPagesNumber()));
+            gotoPosition(
+                    myPaginator.getParagraphIndex(number),
+                    myPaginator.getElementIndex(number),
+                    myPaginator.getCharIndex(number)
+            );
+            return;
+        }
+
         final float factor = computeCharsPerPage();
         final float textSize = page * factor;
 
@@ -1086,17 +1201,20 @@ public abstract class ZLTextView extends ZLTextViewBase {
             ZLTextLineInfo previousInfo
     ) {
         final ZLPaintContext context = getContext();
-        // construct the new text-line info according to some params.
-        final ZLTextLineInfo info = new ZLTextLineInfo(paragraphCursor, startIndex, startCharIndex, getTextStyle());
-
         // firstly obtain result from cached.
-        final ZLTextLineInfo cachedInfo = myLineInfoCache.get(info);
-        if (cachedInfo != null) {
-            cachedInfo.adjust(previousInfo);
-            applyStyleChanges(paragraphCursor, startIndex, cachedInfo.EndElementIndex);
-            return cachedInfo;
+        final ZLTextLineInfoCache cache = myUseLineInfoCache ? myLineInfoCache : null;
+        if (cache != null) {
+            cache.checkSignature(page.getTextWidth(), page.getTextHeight(), metrics());
+            final ZLTextLineInfo cachedInfo = cache.get(paragraphCursor, startIndex, startCharIndex);
+            if (cachedInfo != null) {
+                applyStyleChanges(paragraphCursor, startIndex, cachedInfo.EndElementIndex);
+                return adjustToPrevious(cachedInfo, previousInfo);
+            }
         }
 
+        // construct the new text-line info according to some params.
+        final ZLTextLineInfo info = new ZLTextLineInfo(paragraphCursor, startIndex, startCharIndex, getTextStyle());
+
         int currentElementIndex = startIndex;
         int currentCharIndex = startCharIndex;
         // judge whether it is first line or not.
@@ -1458,16 +1576,12 @@ public abstract class ZLTextView extends ZLTextViewBase {
 
         setTextStyle(storedStyle);
 
-        // handle with the first line in this page.
+        // handle with the first line in this paragraph;
+        // the space shared with the previous line is subtracted in adjustToPrevious().
         if (isFirstLine) {
             info.setVSpaceBefore(info.StartStyle.getSpaceBefore(metrics()));
-            if (previousInfo != null) {
-                info.PreviousInfoUsed = true;
-                info.setHeight(info.getHeight() + Math.max(0, info.getVSpaceBefore() - previousInfo.getVSpaceAfter()));
-            } else {
-                info.PreviousInfoUsed = false;
-                info.setHeight(info.getHeight() + info.getVSpaceBefore());
-            }
+            info.PreviousInfoUsed = false;
+            info.setHeight(info.getHeight() + info.getVSpaceBefore());
         }
 
         // handle with the end of paragraph.
@@ -1476,11 +1590,24 @@ public abstract class ZLTextView extends ZLTextViewBase {
         }
 
         // save this ZLTextLineInfo into cache to avoid the next repeating computing.
-        if (info.EndElementIndex != endIndex || endIndex == info.ParagraphCursorLength) {
-            myLineInfoCache.put(info, info);
+        if (cache != null && (info.EndElementIndex != endIndex || endIndex == info.ParagraphCursorLength)) {
+            cache.put(info);
         }
 
-        return info;
+        return adjustToPrevious(info, previousInfo);
+    }
+
+    /**
+     * Cached line infos are shared between pages, so the first line of a paragraph
+     * is adjusted to the previous line on a copy.
+     */
+    private static ZLTextLineInfo adjustToPrevious(ZLTextLineInfo info, ZLTextLineInfo previousInfo) {
+        if (previousInfo == null || info.StartElementIndex != 0 || info.StartCharIndex != 0) {
+            return info;
+        }
+        final ZLTextLineInfo adjusted = new ZLTextLineInfo(info);
+        adjusted.adjust(previousInfo);
+        return adjusted;
     }
 
     private void prepareTextLine(ZLTextPage page, ZLTextLineInfo info, int x, int y, int columnIndex) {
@@ -1665,11 +1792,6 @@ public abstract class ZLTextView extends ZLTextViewBase {
         }
         final int oldState = page.PaintState;
 
-        final HashMap<ZLTextLineInfo, ZLTextLineInfo> cache = myLineInfoCache;
-        for (ZLTextLineInfo info : page.LineInfos) {
-            cache.put(info, info);
-        }
-
         switch (page.PaintState) {
             default:
                 break;
@@ -1762,8 +1884,6 @@ public abstract class ZLTextView extends ZLTextViewBase {
                 break;
         }
         page.PaintState = PaintStateEnum.READY;
-        // TODO: cache?
-        myLineInfoCache.clear();
 
         if (page == myCurrentPage) {
             if (oldState != PaintStateEnum.START_IS_KNOWN) {
@@ -1776,12 +1896,172 @@ public abstract class ZLTextView extends ZLTextViewBase {
     }
 
     public void clearCaches() {
+        synchronized (this) {
+            myLayoutKey = null;
+            myPaginator.invalidate();
+        }
         resetMetrics();
         rebuildPaintInfo();
         Application.getViewWidget().reset();
         myCharWidth = -1;
     }
 
+    /**
+     * File to keep the page map of the current model between sessions,
+     * or null if the page map should not be stored.
+     */
+    protected File getPageMapFile() {
+        return null;
+    }
+
+    /**
+     * A view with the same settings as this one, used to lay out pages in background.
+     * It is never painted and gets its own paragraph cursors and measuring context.
+     *
+     * @return null if background pagination is not supported
+     */
+    protected ZLTextView createLayoutView() {
+        return null;
+    }
+
+    /**
+     * Called by the paginator under the view lock.
+     */
+    ZLTextView createPaginatorLayout() {
+        final ZLTextView layout = createLayoutView();
+        if (layout != null) {
+            synchronized (layout) {
+                layout.myModel = myModel;
+                layout.myCursorManager = new CursorManager(myModel, layout.getExtensionManager());
+                layout.myUseLineInfoCache = false;
+                layout.setContext(getContext().createMeasuringContext());
+            }
+        }
+        return layout;
+    }
+
+    /**
+     * Describes all the settings the page layout depends on.
+     */
+    private String layoutKey() {
+        final ZLTextMetrics metrics = metrics();
+        final int width = getTextColumnWidth();
+        final int height = getTextAreaHeight();
+        final boolean twoColumns = twoColumnView();
+        final String language = ZLTextHyphenator.Instance().getLanguage();
+        if (myLayoutKey == null ||
+                !(language == null ? myLayoutKeyLanguage == null : language.equals(myLayoutKeyLanguage)) ||
+                metrics != myLayoutKeyMetrics ||
+                width != myLayoutKeyWidth ||
+                height != myLayoutKeyHeight ||
+                twoColumns != myLayoutKeyTwoColumns) {
+            myLayoutKey = buildLayoutKey(metrics, width, height, twoColumns, language);
+            myLayoutKeyLanguage = language;
+            myLayoutKeyMetrics = metrics;
+            myLayoutKeyWidth = width;
+            myLayoutKeyHeight = height;
+            myLayoutKeyTwoColumns = twoColumns;
+        }
+        return myLayoutKey;
+    }
+
+    /**
+     * The style options are many, so the key contains their digest;
+     * the application version covers the layout code and the hyphenation patterns.
+     */
+    private String buildLayoutKey(ZLTextMetrics metrics, int width, int height, boolean twoColumns, String language) {
+        final ZLTextStyleCollection collection = getTextStyleCollection();
+        final ZLTextBaseStyle base = collection.getBaseStyle();
+        final StringBuilder styles = new StringBuilder()
+                .append(base.FontFamilyOption.getValue()).append(':')
+                .append(base.FontSizeOption.getValue()).append(':')
+                .append(base.getFontSize(metrics)).append(':')
+                .append(base.LineSpaceOption.getValue()).append(':')
+                .append(base.AlignmentOption.getValue()).append(':')
+                .append(base.BoldOption.getValue()).append(base.ItalicOption.getValue()).append(':')
+                .append(base.AutoHyphenationOption.getValue()).append(':')
+                .append(base.UseCSSFontSizeOption.getValue())
+                .append(base.UseCSSFontFamilyOption.getValue())
+                .append(base.UseCSSMarginsOption.getValue())
+                .append(base.UseCSSTextAlignmentOption.getValue());
+        for (ZLTextNGStyleDescription d : collection.getDescriptionList()) {
+            styles.append('|').append(d.Name)
+                    .append(':').append(d.FontFamilyOption.getValue())
+                    .append(':').append(d.FontSizeOption.getValue())
+                    .append(':').append(d.FontWeightOption.getValue())
+                    .append(':').append(d.FontStyleOption.getValue())
+                    .append(':').append(d.TextDecorationOption.getValue())
+                    .append(':').append(d.HyphenationOption.getValue())
+                    .append(':').append(d.MarginTopOption.getValue())
+                    .append(':').append(d.MarginBottomOption.getValue())
+                    .append(':').append(d.MarginLeftOption.getValue())
+                    .append(':').append(d.MarginRightOption.getValue())
+                    .append(':').append(d.TextIndentOption.getValue())
+                    .append(':').append(d.AlignmentOption.getValue())
+                    .append(':').append(d.VerticalAlignOption.getValue())
+                    .append(':').append(d.LineHeightOption.getValue());
+        }
+        return new StringBuilder()
+                .append(myModel.getId()).append(':')
+                .append(myModel.getParagraphsNumber()).append(':')
+                .append(width).append('x').append(height).append(':')
+                .append(twoColumns).append(':')
+                .append(metrics.DPI).append(':')
+                .append(ZLibrary.Instance().getVersionName()).append(':')
+                .append(language).append(':')
+                .append(digest(styles.toString()))
+                .toString();
+    }
+
+    private static String digest(String text) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+            final StringBuilder hex = new StringBuilder(2 * hash.length);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sets the cursor to the page start for the paginator.
+     *
+     * @return false if there is no such position in the current model
+     */
+    synchronized boolean startPaginatorCursor(ZLTextWordCursor cursor, int paragraphIndex, int elementIndex, int charIndex) {
+        if (myCursorManager == null || paragraphIndex >= myModel.getParagraphsNumber()) {
+            return false;
+        }
+        cursor.setCursor(myCursorManager.get(paragraphIndex));
+        cursor.moveTo(elementIndex, charIndex);
+        return true;
+    }
+
+    /**
+     * Lays out the page starting at start exactly like the visible pages are laid out.
+     *
+     * @param end receives the start of the next page
+     * @return false if the page is the last one
+     */
+    synchronized boolean buildPaginatorPage(ZLTextPage page, ZLTextWordCursor start, ZLTextWordCursor end) {
+        page.setSize(getTextColumnWidth(), getTextAreaHeight(), twoColumnView(), false);
+        buildInfos(page, start, end);
+        if (end.isNull() || end.isEndOfText()) {
+            return false;
+        }
+        if (end.samePositionAs(start)) {
+            // nothing fits the page; go on with the next paragraph
+            return end.nextParagraph();
+        }
+        return true;
+    }
+
     protected synchronized void rebuildPaintInfo() {
         myPreviousPage.reset();
         myNextPage.reset();
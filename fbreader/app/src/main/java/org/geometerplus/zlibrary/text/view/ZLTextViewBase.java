@@ -26,6 +26,7 @@ import org.geometerplus.zlibrary.core.util.ZLColor;
 import org.geometerplus.zlibrary.core.view.ZLPaintContext;
 import org.geometerplus.zlibrary.core.view.ZLView;
 import org.geometerplus.zlibrary.text.model.ZLTextMetrics;
+import org.geometerplus.zlibrary.text.model.ZLTextStyleEntry;
 import org.geometerplus.zlibrary.text.view.style.ZLTextExplicitlyDecoratedStyle;
 import org.geometerplus.zlibrary.text.view.style.ZLTextNGStyle;
 import org.geometerplus.zlibrary.text.view.style.ZLTextNGStyleDescription;
@@ -37,6 +38,7 @@ abstract class ZLTextViewBase extends ZLView {
     private ZLTextMetrics myMetrics;
     private int myMaxSelectionDistance = 0;
     private char[] myWordPartArray = new char[20];
+    private final ZLTextStyleCache myStyleCache = new ZLTextStyleCache();
 
     ZLTextViewBase(ZLApplication application) {
         super(application);
@@ -54,6 +56,9 @@ abstract class ZLTextViewBase extends ZLView {
 
     protected void resetMetrics() {
         myMetrics = null;
+        synchronized (myStyleCache) {
+            myStyleCache.clear();
+        }
     }
 
     protected ZLTextMetrics metrics() {
@@ -200,7 +205,9 @@ abstract class ZLTextViewBase extends ZLView {
             final ZLTextNGStyleDescription description =
                     getTextStyleCollection().getDescription(control.Kind);
             if (description != null) {
-                setTextStyle(new ZLTextNGStyle(myTextStyle, description, hyperlink));
+                setTextStyle(hyperlink == null
+                        ? internedStyle(description)
+                        : new ZLTextNGStyle(myTextStyle, description, hyperlink));
             }
         } else {
             setTextStyle(myTextStyle.Parent);
@@ -208,7 +215,33 @@ abstract class ZLTextViewBase extends ZLView {
     }
 
     private void applyStyle(ZLTextStyleElement element) {
-        setTextStyle(new ZLTextExplicitlyDecoratedStyle(myTextStyle, element.Entry));
+        setTextStyle(internedStyle(element.Entry));
+    }
+
+    /**
+     * Return the shared child of the current style for the given NG description
+     * or style entry; children of hyperlink styles are created per element.
+     */
+    private ZLTextStyle internedStyle(Object source) {
+        final ZLTextStyle parent = myTextStyle;
+        if (parent.Hyperlink != ZLTextHyperlink.NO_LINK) {
+            return createStyle(parent, source);
+        }
+        synchronized (myStyleCache) {
+            myStyleCache.check(getTextStyleCollection(), metrics());
+            ZLTextStyle style = myStyleCache.get(parent, source);
+            if (style == null) {
+                style = createStyle(parent, source);
+                myStyleCache.put(parent, source, style);
+            }
+            return style;
+        }
+    }
+
+    private static ZLTextStyle createStyle(ZLTextStyle parent, Object source) {
+        return source instanceof ZLTextNGStyleDescription
+                ? new ZLTextNGStyle(parent, (ZLTextNGStyleDescription) source, null)
+                : new ZLTextExplicitlyDecoratedStyle(parent, (ZLTextStyleEntry) source);
     }
 
     private void applyStyleClose() {
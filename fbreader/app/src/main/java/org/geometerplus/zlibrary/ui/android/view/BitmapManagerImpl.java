@@ -26,52 +26,65 @@ import android.graphics.Paint;
 import org.geometerplus.zlibrary.core.view.ZLView;
 import org.geometerplus.zlibrary.ui.android.view.animation.BitmapManager;
 
+import java.util.ArrayList;
+
+/**
+ * Rasterized previous, current and next pages. A page that is not ready is drawn
+ * on demand in the UI thread; the neighbours of the current page are pre-rendered
+ * by the widget's PrepareService into pooled bitmaps and published unless the pages
+ * have been reset, shifted or resized in the meantime.
+ */
 final class BitmapManagerImpl implements BitmapManager {
-    private final int SIZE = 2;
+    private static final int SIZE = ZLView.PageIndex.values().length;
+    private static final int MAX_SPARE_BITMAPS = 2;
+
+    // slots are indexed by PageIndex.ordinal()
     private final Bitmap[] myBitmaps = new Bitmap[SIZE];
-    private final ZLView.PageIndex[] myIndexes = new ZLView.PageIndex[SIZE];
+    private final boolean[] myIsReady = new boolean[SIZE];
+    private final boolean[] myIsScheduled = new boolean[SIZE];
+    private final ArrayList<Bitmap> mySpareBitmaps = new ArrayList<Bitmap>(MAX_SPARE_BITMAPS);
     private final ZLAndroidWidget myWidget;
     private int myWidth;
     private int myHeight;
+    // changed on every reset, shift or resize
+    private int myGeneration;
+    // the bitmap the UI thread is drawing on, it must not get to the spare ones
+    private Bitmap myDrawnBitmap;
 
     BitmapManagerImpl(ZLAndroidWidget widget) {
         myWidget = widget;
     }
 
-    void setSize(int w, int h) {
+    synchronized void setSize(int w, int h) {
         if (myWidth != w || myHeight != h) {
             myWidth = w;
             myHeight = h;
-            for (int i = 0; i < SIZE; ++i) {
-                myBitmaps[i] = null;
-                myIndexes[i] = null;
-            }
-            System.gc();
-            System.gc();
-            System.gc();
+            // bitmaps are kept and reconfigured to the new size on the next use
+            reset();
         }
     }
 
     @Override
     public Bitmap getBitmap(ZLView.PageIndex index) {
-        for (int i = 0; i < SIZE; ++i) {
-            if (index == myIndexes[i]) {
+        final int i = index.ordinal();
+        final Bitmap bitmap;
+        synchronized (this) {
+            if (myIsReady[i]) {
                 return myBitmaps[i];
             }
+            bitmap = fitToSize(myBitmaps[i]);
+            myBitmaps[i] = bitmap;
+            // a ready slot is not overwritten by pre-rendered pages
+            myIsReady[i] = true;
+            myDrawnBitmap = bitmap;
         }
-        final int iIndex = getInternalIndex(index);
-        myIndexes[iIndex] = index;
-        if (myBitmaps[iIndex] == null) {
-            try {
-                myBitmaps[iIndex] = Bitmap.createBitmap(myWidth, myHeight, Bitmap.Config.RGB_565);
-            } catch (OutOfMemoryError e) {
-                System.gc();
-                System.gc();
-                myBitmaps[iIndex] = Bitmap.createBitmap(myWidth, myHeight, Bitmap.Config.RGB_565);
-            }
+        // the view is painted without holding this lock: the view calls reset()
+        // from its own synchronized methods
+        myWidget.drawOnBitmap(bitmap, index);
+        synchronized (this) {
+            myDrawnBitmap = null;
         }
-        myWidget.drawOnBitmap(myBitmaps[iIndex], index);
-        return myBitmaps[iIndex];
+        return bitmap;
     }
 
     @Override
@@ -79,32 +92,116 @@ final class BitmapManagerImpl implements BitmapManager {
         canvas.drawBitmap(getBitmap(index), x, y, paint);
     }
 
-    private int getInternalIndex(ZLView.PageIndex index) {
-        for (int i = 0; i < SIZE; ++i) {
-            if (myIndexes[i] == null) {
-                return i;
+    /**
+     * Schedule pre-rendering of the neighbour pages that are not ready yet.
+     */
+    void prefetch(ZLView view) {
+        prefetch(view, ZLView.PageIndex.next);
+        prefetch(view, ZLView.PageIndex.previous);
+    }
+
+    private void prefetch(ZLView view, final ZLView.PageIndex index) {
+        if (!view.canScroll(index)) {
+            return;
+        }
+        final int generation;
+        synchronized (this) {
+            final int i = index.ordinal();
+            if (myIsReady[i] || myIsScheduled[i]) {
+                return;
             }
+            myIsScheduled[i] = true;
+            generation = myGeneration;
         }
-        for (int i = 0; i < SIZE; ++i) {
-            if (myIndexes[i] != ZLView.PageIndex.current) {
-                return i;
+        myWidget.PrepareService.execute(new Runnable() {
+            public void run() {
+                render(index, generation);
             }
+        });
+    }
+
+    private void render(ZLView.PageIndex index, int generation) {
+        final Bitmap bitmap;
+        synchronized (this) {
+            if (generation != myGeneration) {
+                return;
+            }
+            bitmap = obtainBitmap();
+        }
+        myWidget.drawOnBitmap(bitmap, index);
+        synchronized (this) {
+            final int i = index.ordinal();
+            if (generation != myGeneration || myIsReady[i]) {
+                releaseBitmap(bitmap);
+                return;
+            }
+            releaseBitmap(myBitmaps[i]);
+            myBitmaps[i] = bitmap;
+            myIsReady[i] = true;
+            myIsScheduled[i] = false;
+        }
+    }
+
+    private Bitmap obtainBitmap() {
+        final int size = mySpareBitmaps.size();
+        return fitToSize(size > 0 ? mySpareBitmaps.remove(size - 1) : null);
+    }
+
+    private void releaseBitmap(Bitmap bitmap) {
+        if (bitmap != null && bitmap != myDrawnBitmap && mySpareBitmaps.size() < MAX_SPARE_BITMAPS) {
+            mySpareBitmaps.add(bitmap);
+        }
+    }
+
+    private Bitmap fitToSize(Bitmap bitmap) {
+        if (bitmap != null) {
+            if (bitmap.getWidth() == myWidth && bitmap.getHeight() == myHeight) {
+                return bitmap;
+            }
+            if (bitmap.getAllocationByteCount() >= myWidth * myHeight * 2) {
+                bitmap.reconfigure(myWidth, myHeight, Bitmap.Config.RGB_565);
+                return bitmap;
+            }
+        }
+        try {
+            return Bitmap.createBitmap(myWidth, myHeight, Bitmap.Config.RGB_565);
+        } catch (OutOfMemoryError e) {
+            mySpareBitmaps.clear();
+            return Bitmap.createBitmap(myWidth, myHeight, Bitmap.Config.RGB_565);
         }
-        throw new RuntimeException("That's impossible");
     }
 
-    void reset() {
+    synchronized void reset() {
+        ++myGeneration;
         for (int i = 0; i < SIZE; ++i) {
-            myIndexes[i] = null;
+            myIsReady[i] = false;
+            myIsScheduled[i] = false;
         }
     }
 
-    void shift(boolean forward) {
+    /**
+     * Called after scrolling to the next (forward) or previous page:
+     * the page bitmaps move one slot back or forth, the freed slot gets the bitmap
+     * that has fallen out on the other side.
+     */
+    synchronized void shift(boolean forward) {
+        ++myGeneration;
+        final int last = SIZE - 1;
+        if (forward) {
+            final Bitmap bitmap = myBitmaps[0];
+            System.arraycopy(myBitmaps, 1, myBitmaps, 0, last);
+            System.arraycopy(myIsReady, 1, myIsReady, 0, last);
+            myBitmaps[last] = bitmap;
+            myIsReady[last] = false;
+        } else {
+            final Bitmap bitmap = myBitmaps[last];
+            System.arraycopy(myBitmaps, 0, myBitmaps, 1, last);
+            System.arraycopy(myIsReady, 0, myIsReady, 1, last);
+            myBitmaps[0] = bitmap;
+            myIsReady[0] = false;
+        }
         for (int i = 0; i < SIZE; ++i) {
-            if (myIndexes[i] == null) {
-                continue;
-            }
-            myIndexes[i] = forward ? myIndexes[i].getPrevious() : myIndexes[i].getNext();
+            myIsScheduled[i] = false;
         }
     }
 }
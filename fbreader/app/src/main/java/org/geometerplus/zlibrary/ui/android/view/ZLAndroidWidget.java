@@ -309,32 +309,10 @@ public class ZLAndroidWidget extends MainView implements ZLViewWidget, View.OnLo
         }
     }
 
-    private void onDrawStatic(final Canvas canvas) {
+    private void onDrawStatic(Canvas canvas) {
         canvas.drawBitmap(myBitmapManager.getBitmap(ZLView.PageIndex.current), 0, 0, myPaint);
         drawFooter(canvas, null);
-        post(new Runnable() {
-            public void run() {
-                PrepareService.execute(new Runnable() {
-                    public void run() {
-                        final ZLView view = ZLApplication.Instance().getCurrentView();
-                        final ZLAndroidPaintContext context = new ZLAndroidPaintContext(
-                                mySystemInfo,
-                                canvas,
-                                new ZLAndroidPaintContext.Geometry(
-                                        getWidth(),
-                                        getHeight(),
-                                        getWidth(),
-                                        getMainAreaHeight(),
-                                        0,
-                                        0
-                                ),
-                                view.isScrollbarShown() ? getVerticalScrollbarWidth() : 0
-                        );
-                        view.preparePage(context, ZLView.PageIndex.next);
-                    }
-                });
-            }
-        });
+        myBitmapManager.prefetch(ZLApplication.Instance().getCurrentView());
     }
 
     @Override
@@ -20,6 +20,7 @@
 package org.geometerplus.zlibrary.core.filesystem;
 
 import org.geometerplus.zlibrary.core.filesystem.tar.ZLTarEntryFile;
+import org.geometerplus.zlibrary.core.util.SystemInfo;
 
 import java.util.Collections;
 import java.util.List;
@@ -75,6 +76,14 @@ public abstract class ZLArchiveEntryFile extends ZLFile {
         }
     }
 
+    /**
+     * Enables persistent entry indices for zip archives;
+     * index files are stored in the temporary directory
+     */
+    public static void enableIndexCache(SystemInfo systemInfo) {
+        ZLZipEntryFile.setSystemInfo(systemInfo);
+    }
+
     static List<ZLFile> archiveEntries(ZLFile archive) {
         switch (archive.myArchiveType & ArchiveType.ARCHIVE) {
             case ArchiveType.ZIP:
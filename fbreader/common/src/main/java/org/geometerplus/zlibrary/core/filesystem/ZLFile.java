@@ -29,9 +29,12 @@ import java.io.InputStream;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public abstract class ZLFile implements InputStreamHolder {
-    private final static HashMap<String, ZLFile> ourCachedFiles = new HashMap<String, ZLFile>();
+    // files are cached from several library scanner threads at once
+    private final static Map<String, ZLFile> ourCachedFiles =
+            Collections.synchronizedMap(new HashMap<String, ZLFile>());
     protected int myArchiveType;
 
     ;
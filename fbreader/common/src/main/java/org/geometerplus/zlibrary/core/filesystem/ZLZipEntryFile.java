@@ -21,17 +21,32 @@ package org.geometerplus.zlibrary.core.filesystem;
 
 import org.amse.ys.zip.LocalFileHeader;
 import org.amse.ys.zip.ZipFile;
+import org.geometerplus.zlibrary.core.util.SystemInfo;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 
 final class ZLZipEntryFile extends ZLArchiveEntryFile {
-    private static HashMap<ZLFile, ZipFile> ourZipFileMap = new HashMap<ZLFile, ZipFile>();
+    private static final HashMap<ZLFile, ZipFile> ourZipFileMap = new HashMap<ZLFile, ZipFile>();
+    private static volatile SystemInfo ourSystemInfo;
+
+    /**
+     * Total size of the zip index files; least recently used ones are removed above it.
+     */
+    private static final long MAX_INDEX_DIRECTORY_SIZE = 4L << 20;
+    /**
+     * The index directory is checked once per this number of opened archives.
+     */
+    private static final int INDEX_TRIM_PERIOD = 32;
+    private static int ourIndexFilesSinceTrim = INDEX_TRIM_PERIOD;
 
     ZLZipEntryFile(ZLFile parent, String name) {
         super(parent, name);
@@ -58,6 +73,7 @@ final class ZLZipEntryFile extends ZLArchiveEntryFile {
             ZipFile zf = file.isCached() ? ourZipFileMap.get(file) : null;
             if (zf == null) {
                 zf = new ZipFile(file);
+                setupIndexFile(zf, file);
                 if (file.isCached()) {
                     zf.setCacheable(true);
                     ourZipFileMap.put(file, zf);
@@ -67,8 +83,66 @@ final class ZLZipEntryFile extends ZLArchiveEntryFile {
         }
     }
 
+    static void setSystemInfo(SystemInfo systemInfo) {
+        ourSystemInfo = systemInfo;
+    }
+
+    private static void setupIndexFile(ZipFile zf, ZLFile file) {
+        final SystemInfo systemInfo = ourSystemInfo;
+        if (systemInfo == null || !(file instanceof ZLPhysicalFile)) {
+            return;
+        }
+        final String path = file.getPath();
+        final File directory = new File(systemInfo.tempDirectory() + "/zipindex");
+        final File indexFile = new File(directory, Integer.toHexString(path.hashCode()));
+        zf.setIndexFile(indexFile, path + ":" + file.size() + ":" + file.lastModified());
+        // called under ourZipFileMap lock
+        if (++ourIndexFilesSinceTrim >= INDEX_TRIM_PERIOD) {
+            ourIndexFilesSinceTrim = 0;
+            trimIndexDirectory(directory);
+        }
+    }
+
+    /**
+     * Removes the least recently used index files if their total size exceeds the limit.
+     */
+    private static void trimIndexDirectory(File directory) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] times = new long[files.length];
+        long totalSize = 0;
+        for (int i = 0; i < files.length; ++i) {
+            times[i] = files[i].lastModified();
+            totalSize += files[i].length();
+        }
+        if (totalSize <= MAX_INDEX_DIRECTORY_SIZE) {
+            return;
+        }
+        final Integer[] order = new Integer[files.length];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i0, Integer i1) {
+                return times[i0] < times[i1] ? -1 : (times[i0] > times[i1] ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < order.length && totalSize > MAX_INDEX_DIRECTORY_SIZE; ++i) {
+            final File file = files[order[i]];
+            final long size = file.length();
+            if (file.delete()) {
+                totalSize -= size;
+            }
+        }
+    }
+
     static void removeFromCache(ZLFile file) {
-        final ZipFile zipFile = ourZipFileMap.remove(file);
+        final ZipFile zipFile;
+        synchronized (ourZipFileMap) {
+            zipFile = ourZipFileMap.remove(file);
+        }
         if (zipFile != null) {
             zipFile.setCacheable(false);
         }
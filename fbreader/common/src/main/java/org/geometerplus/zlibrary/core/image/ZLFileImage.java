@@ -91,6 +91,10 @@ public class ZLFileImage implements ZLStreamImage {
         return result;
     }
 
+    public FileEncryptionInfo encryptionInfo() {
+        return myEncryptionInfo;
+    }
+
     private InputStream baseInputStream() throws IOException {
         if (myOffsets.length == 1) {
             final int offset = myOffsets[0];
@@ -199,6 +199,12 @@ abstract public class ZLPaintContext {
 
     abstract public void fillCircle(int x, int y, int radius);
 
+    /**
+     * A context with the same size and settings, for measuring text in another thread.
+     * Nothing is drawn through it.
+     */
+    abstract public ZLPaintContext createMeasuringContext();
+
     public enum FillMode {
         tile,
         tileMirror,
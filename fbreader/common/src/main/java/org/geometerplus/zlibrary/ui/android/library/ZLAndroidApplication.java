@@ -22,6 +22,8 @@ package org.geometerplus.zlibrary.ui.android.library;
 import android.app.Application;
 
 import org.geometerplus.android.fbreader.config.ConfigShadow;
+import org.geometerplus.fbreader.Paths;
+import org.geometerplus.zlibrary.core.filesystem.ZLArchiveEntryFile;
 import org.geometerplus.zlibrary.ui.android.image.ZLAndroidImageManager;
 
 public abstract class ZLAndroidApplication extends Application {
@@ -41,6 +43,7 @@ public abstract class ZLAndroidApplication extends Application {
 
         myConfig = new ConfigShadow(this);
         new ZLAndroidImageManager();
+        ZLArchiveEntryFile.enableIndexCache(Paths.systemInfo(this));
         myLibrary = new ZLAndroidLibrary(this);
     }
 
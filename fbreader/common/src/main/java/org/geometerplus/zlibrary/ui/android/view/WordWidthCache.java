@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.ui.android.view;
+
+import android.graphics.Paint;
+import android.graphics.Typeface;
+
+import org.fbreader.util.CharArrayKey;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measured widths of the most recently used words, one table per font
+ * (typeface, size and the paint flags that affect measuring).
+ * Paint contexts are created for every repaint, so the tables are static.
+ */
+final class WordWidthCache {
+    private static final int MAX_FONTS = 16;
+    private static final int MAX_WORDS = 2048;
+    // longer strings are (parts of) lines, they are hardly ever measured twice
+    static final int MAX_WORD_LENGTH = 32;
+    private static final int IGNORED_FLAGS =
+            Paint.UNDERLINE_TEXT_FLAG | Paint.STRIKE_THRU_TEXT_FLAG;
+
+    private static final class Font {
+        final Typeface Face;
+        final float Size;
+        final int Flags;
+
+        Font(Typeface typeface, float size, int flags) {
+            Face = typeface;
+            Size = size;
+            Flags = flags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            final Font font = (Font) o;
+            return
+                    Size == font.Size &&
+                    Flags == font.Flags &&
+                    (Face == null ? font.Face == null : Face.equals(font.Face));
+        }
+
+        @Override
+        public int hashCode() {
+            return (Face == null ? 0 : Face.hashCode()) * 31 * 31
+                    + Float.floatToIntBits(Size) * 31 + Flags;
+        }
+    }
+
+    private static final Map<Font, WordWidthCache> ourCaches =
+            new LinkedHashMap<Font, WordWidthCache>(16, .75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Font, WordWidthCache> eldest) {
+                    return size() > MAX_FONTS;
+                }
+            };
+
+    /**
+     * Return the table for the current font of the given paint.
+     */
+    static WordWidthCache forPaint(Paint paint) {
+        final Font font = new Font(
+                paint.getTypeface(), paint.getTextSize(), paint.getFlags() & ~IGNORED_FLAGS
+        );
+        synchronized (ourCaches) {
+            WordWidthCache cache = ourCaches.get(font);
+            if (cache == null) {
+                cache = new WordWidthCache();
+                ourCaches.put(font, cache);
+            }
+            return cache;
+        }
+    }
+
+    private final LinkedHashMap<CharArrayKey, Integer> myWidths =
+            new LinkedHashMap<CharArrayKey, Integer>(256, .75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CharArrayKey, Integer> eldest) {
+                    return size() > MAX_WORDS;
+                }
+            };
+    // reused for lookups, so a hit allocates nothing
+    private final CharArrayKey myProbe = new CharArrayKey();
+
+    private WordWidthCache() {
+    }
+
+    /**
+     * @return the stored width, or -1 if the word has not been measured with this font
+     */
+    synchronized int get(char[] data, int offset, int length) {
+        myProbe.set(data, offset, length);
+        final Integer width = myWidths.get(myProbe);
+        myProbe.clear();
+        return width != null ? width : -1;
+    }
+
+    synchronized void put(char[] data, int offset, int length, int width) {
+        myWidths.put(CharArrayKey.copyOf(data, offset, length), width);
+    }
+}
@@ -63,6 +63,9 @@ public final class ZLAndroidPaintContext extends ZLPaintContext {
     private final Geometry myGeometry;
     private final int myScrollbarWidth;
     private ZLColor myBackgroundColor = new ZLColor(0, 0, 0);
+    private WordWidthCache myWidthCache;
+    // soft hyphens are removed into this buffer before measuring or drawing
+    private char[] myCorrectedText = new char[32];
 
     public ZLAndroidPaintContext(SystemInfo systemInfo, Canvas canvas, Geometry geometry, int scrollbarWidth) {
         super(systemInfo);
@@ -286,6 +289,7 @@ public final class ZLAndroidPaintContext extends ZLPaintContext {
         myTextPaint.setTextSize(size);
         myTextPaint.setUnderlineText(underline);
         myTextPaint.setStrikeThruText(strikeThrought);
+        myWidthCache = WordWidthCache.forPaint(myTextPaint);
         try {
             if (!TextUtils.isEmpty(color)) {
                 myTextPaint.setColor(Color.parseColor(color));
@@ -332,26 +336,57 @@ public final class ZLAndroidPaintContext extends ZLPaintContext {
 
     @Override
     public int getStringWidth(char[] string, int offset, int length) {
-        boolean containsSoftHyphen = false;
+        final int len = removeSoftHyphens(string, offset, length);
+        if (len == -1) {
+            return measure(string, offset, length);
+        } else {
+            return measure(myCorrectedText, 0, len);
+        }
+    }
+
+    private int measure(char[] text, int offset, int length) {
+        final WordWidthCache cache = myWidthCache;
+        if (cache == null || length > WordWidthCache.MAX_WORD_LENGTH) {
+            return (int) (myTextPaint.measureText(text, offset, length) + 0.5f);
+        }
+        int width = cache.get(text, offset, length);
+        if (width == -1) {
+            width = (int) (myTextPaint.measureText(text, offset, length) + 0.5f);
+            cache.put(text, offset, length, width);
+        }
+        return width;
+    }
+
+    /**
+     * Copy the text without soft hyphens into myCorrectedText.
+     *
+     * @return the corrected length, or -1 if the text contains no soft hyphens
+     */
+    private int removeSoftHyphens(char[] string, int offset, int length) {
+        int start = -1;
         for (int i = offset; i < offset + length; ++i) {
             if (string[i] == (char) 0xAD) {
-                containsSoftHyphen = true;
+                start = i;
                 break;
             }
         }
-        if (!containsSoftHyphen) {
-            return (int) (myTextPaint.measureText(new String(string, offset, length)) + 0.5f);
-        } else {
-            final char[] corrected = new char[length];
-            int len = 0;
-            for (int o = offset; o < offset + length; ++o) {
-                final char chr = string[o];
-                if (chr != (char) 0xAD) {
-                    corrected[len++] = chr;
-                }
+        if (start == -1) {
+            return -1;
+        }
+        char[] corrected = myCorrectedText;
+        if (corrected.length < length) {
+            corrected = new char[length];
+            myCorrectedText = corrected;
+        }
+        int len = start - offset;
+        System.arraycopy(string, offset, corrected, 0, len);
+        for (int o = start + 1; o < offset + length; ++o) {
+            final char chr = string[o];
+            if (chr != (char) 0xAD) {
+                corrected[len++] = chr;
             }
-            return (int) (myTextPaint.measureText(corrected, 0, len) + 0.5f);
         }
+        return len;
     }
 
     @Override
@@ -380,25 +415,11 @@ public final class ZLAndroidPaintContext extends ZLPaintContext {
 
     @Override
     public void drawString(int x, int y, char[] string, int offset, int length) {
-        boolean containsSoftHyphen = false;
-        for (int i = offset; i < offset + length; ++i) {
-            if (string[i] == (char) 0xAD) {
-                containsSoftHyphen = true;
-                break;
-            }
-        }
-        if (!containsSoftHyphen) {
+        final int len = removeSoftHyphens(string, offset, length);
+        if (len == -1) {
             myCanvas.drawText(string, offset, length, x, y, myTextPaint);
         } else {
-            final char[] corrected = new char[length];
-            int len = 0;
-            for (int o = offset; o < offset + length; ++o) {
-                final char chr = string[o];
-                if (chr != (char) 0xAD) {
-                    corrected[len++] = chr;
-                }
-            }
-            myCanvas.drawText(corrected, 0, len, x, y, myTextPaint);
+            myCanvas.drawText(myCorrectedText, 0, len, x, y, myTextPaint);
         }
     }
 
@@ -477,4 +498,9 @@ public final class ZLAndroidPaintContext extends ZLPaintContext {
             TopMargin = topMargin;
         }
     }
+
+    @Override
+    public ZLPaintContext createMeasuringContext() {
+        return new ZLAndroidPaintContext(getSystemInfo(), myCanvas, myGeometry, myScrollbarWidth);
+    }
 }
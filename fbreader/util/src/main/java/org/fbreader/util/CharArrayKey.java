@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2007-2017 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.fbreader.util;
+
+/**
+ * Hash key for a range of a char array, e.g., a word in a text block.
+ * A mutable instance can be reused as a lookup probe, so a cache hit allocates nothing;
+ * keys stored in a map should own their data, see {@link #copyOf(char[], int, int)}.
+ */
+public final class CharArrayKey {
+    private char[] myData;
+    private int myOffset;
+    private int myLength;
+    private int myHash;
+
+    public static CharArrayKey copyOf(char[] data, int offset, int length) {
+        final char[] copy = new char[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        final CharArrayKey key = new CharArrayKey();
+        key.set(copy, 0, length);
+        return key;
+    }
+
+    public void set(char[] data, int offset, int length) {
+        myData = data;
+        myOffset = offset;
+        myLength = length;
+        int hash = length;
+        for (int i = offset + length - 1; i >= offset; --i) {
+            hash = 31 * hash + data[i];
+        }
+        myHash = hash;
+    }
+
+    /**
+     * Drops the reference to the data, so a probe does not keep the text block alive.
+     */
+    public void clear() {
+        myData = null;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof CharArrayKey)) {
+            return false;
+        }
+        final CharArrayKey key = (CharArrayKey) other;
+        if (myHash != key.myHash || myLength != key.myLength) {
+            return false;
+        }
+        for (int i = 0; i < myLength; ++i) {
+            if (myData[myOffset + i] != key.myData[key.myOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return myHash;
+    }
+}
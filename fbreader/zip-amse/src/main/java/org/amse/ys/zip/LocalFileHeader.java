@@ -5,6 +5,8 @@ package org.amse.ys.zip;
  * construcor, all fields are final.
  */
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 public class LocalFileHeader {
@@ -25,6 +27,7 @@ public class LocalFileHeader {
     int NameLength;
     int ExtraLength;
     int DataOffset;
+    int LocalHeaderOffset;
 
     LocalFileHeader() {
     }
@@ -55,11 +58,14 @@ public class LocalFileHeader {
                 NameLength = stream.read2Bytes();
                 ExtraLength = stream.read2Bytes();
                 int comment = stream.read2Bytes();
-                stream.skip(12);
+                stream.skip(8);
+                LocalHeaderOffset = stream.read4Bytes();
                 FileName = stream.readString(NameLength);
                 stream.skip(ExtraLength);
                 stream.skip(comment);
-                break;
+                // data offset is known only after reading the local header
+                DataOffset = -1;
+                return;
             }
             case FILE_HEADER_SIGNATURE:
                 Version = stream.read2Bytes();
@@ -86,4 +92,30 @@ public class LocalFileHeader {
         }
         DataOffset = stream.offset();
     }
+
+    /**
+     * Reads the header fields stored by writeTo(); used for the persistent entry index
+     */
+    void readFrom(DataInputStream stream) throws IOException {
+        FileName = stream.readUTF();
+        Flags = stream.readInt();
+        CompressionMethod = stream.readInt();
+        CRC32 = stream.readInt();
+        CompressedSize = stream.readInt();
+        UncompressedSize = stream.readInt();
+        LocalHeaderOffset = stream.readInt();
+        DataOffset = stream.readInt();
+        Signature = FILE_HEADER_SIGNATURE;
+    }
+
+    void writeTo(DataOutputStream stream) throws IOException {
+        stream.writeUTF(FileName);
+        stream.writeInt(Flags);
+        stream.writeInt(CompressionMethod);
+        stream.writeInt(CRC32);
+        stream.writeInt(CompressedSize);
+        stream.writeInt(UncompressedSize);
+        stream.writeInt(LocalHeaderOffset);
+        stream.writeInt(DataOffset);
+    }
 }
@@ -3,8 +3,13 @@ package org.amse.ys.zip;
 import org.fbreader.util.IOUtil;
 import org.geometerplus.zlibrary.core.util.InputStreamHolder;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
@@ -21,11 +26,17 @@ public final class ZipFile {
         }
     };
 
+    private final static int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private final static int INDEX_FILE_VERSION = 0x5a495801;
+
     private final InputStreamHolder myStreamHolder;
     private final Map<String, LocalFileHeader> myFileHeaders =
             new TreeMap<String, LocalFileHeader>(ourIgnoreCaseComparator);
 
     private boolean myAllFilesAreRead;
+    private boolean myIndexIsChecked;
+    private volatile File myIndexFile;
+    private volatile String mySourceKey;
     private volatile LinkedList<MyBufferedInputStream> myStoredStreams;
 
     public ZipFile(final String fileName) {
@@ -81,6 +92,9 @@ public final class ZipFile {
         if (myAllFilesAreRead) {
             return;
         }
+        if (readIndexedHeaders()) {
+            return;
+        }
         myAllFilesAreRead = true;
 
         MyBufferedInputStream baseStream = getBaseStream();
@@ -94,6 +108,181 @@ public final class ZipFile {
         } finally {
             storeBaseStream(baseStream);
         }
+        writeIndexFile();
+    }
+
+    /**
+     * Fills the header map from the index file or from the central directory, whichever is available.
+     * Returns false if neither can be used.
+     */
+    private boolean readIndexedHeaders() throws IOException {
+        if (myIndexIsChecked) {
+            return myAllFilesAreRead;
+        }
+        myIndexIsChecked = true;
+
+        if (readIndexFile()) {
+            myAllFilesAreRead = true;
+            return true;
+        }
+        if (readCentralDirectory()) {
+            myAllFilesAreRead = true;
+            writeIndexFile();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Builds the entry index from the central directory at the end of the archive.
+     * Returns false if the archive has no readable central directory (e.g., it is truncated);
+     * in this case the caller should fall back to the sequential scan of local headers.
+     */
+    private boolean readCentralDirectory() throws IOException {
+        final MyBufferedInputStream baseStream = getBaseStream();
+        try {
+            baseStream.setPosition(0);
+            final int length = baseStream.available();
+            if (length < END_OF_CENTRAL_DIRECTORY_SIZE) {
+                return false;
+            }
+
+            final int tailLength = Math.min(length, END_OF_CENTRAL_DIRECTORY_SIZE + 0xFFFF);
+            final byte[] tail = new byte[tailLength];
+            baseStream.setPosition(length - tailLength);
+            for (int offset = 0; offset < tailLength; ) {
+                final int ready = baseStream.read(tail, offset, tailLength - offset);
+                if (ready <= 0) {
+                    return false;
+                }
+                offset += ready;
+            }
+
+            int eocd = tailLength - END_OF_CENTRAL_DIRECTORY_SIZE;
+            for (; eocd >= 0; --eocd) {
+                if (read4Bytes(tail, eocd) == LocalFileHeader.END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                    break;
+                }
+            }
+            if (eocd < 0) {
+                return false;
+            }
+
+            final int count = read2Bytes(tail, eocd + 10);
+            final int directorySize = read4Bytes(tail, eocd + 12);
+            final int directoryOffset = read4Bytes(tail, eocd + 16);
+            // ZIP64 archives and inconsistent records are left to the sequential scan
+            if (count == 0xFFFF || directoryOffset < 0 || directorySize < 0 ||
+                    (long) directoryOffset + directorySize > length - tailLength + eocd) {
+                return false;
+            }
+
+            final Map<String, LocalFileHeader> headers =
+                    new TreeMap<String, LocalFileHeader>(ourIgnoreCaseComparator);
+            baseStream.setPosition(directoryOffset);
+            for (int i = 0; i < count; ++i) {
+                final LocalFileHeader header = new LocalFileHeader();
+                header.readFrom(baseStream);
+                if (header.Signature != LocalFileHeader.FOLDER_HEADER_SIGNATURE) {
+                    return false;
+                }
+                if (header.FileName != null) {
+                    headers.put(header.FileName, header);
+                }
+            }
+
+            myFileHeaders.clear();
+            myFileHeaders.putAll(headers);
+            return true;
+        } catch (ZipException e) {
+            return false;
+        } finally {
+            storeBaseStream(baseStream);
+        }
+    }
+
+    /**
+     * Sets the file used to persist the entry index between sessions.
+     * sourceKey should change whenever the archive changes (e.g., path + size + modification time);
+     * an index written for another key is ignored and rewritten.
+     */
+    public void setIndexFile(File indexFile, String sourceKey) {
+        myIndexFile = indexFile;
+        mySourceKey = sourceKey;
+    }
+
+    private boolean readIndexFile() {
+        final File indexFile = myIndexFile;
+        final String sourceKey = mySourceKey;
+        if (indexFile == null || sourceKey == null || !indexFile.exists()) {
+            return false;
+        }
+
+        DataInputStream stream = null;
+        try {
+            stream = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (stream.readInt() != INDEX_FILE_VERSION || !sourceKey.equals(stream.readUTF())) {
+                return false;
+            }
+            final int count = stream.readInt();
+            final Map<String, LocalFileHeader> headers =
+                    new TreeMap<String, LocalFileHeader>(ourIgnoreCaseComparator);
+            for (int i = 0; i < count; ++i) {
+                final LocalFileHeader header = new LocalFileHeader();
+                header.readFrom(stream);
+                headers.put(header.FileName, header);
+            }
+            myFileHeaders.clear();
+            myFileHeaders.putAll(headers);
+            // the modification time orders index files for the least-recently-used trimming
+            indexFile.setLastModified(System.currentTimeMillis());
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            IOUtil.closeQuietly(stream);
+        }
+    }
+
+    private void writeIndexFile() {
+        final File indexFile = myIndexFile;
+        final String sourceKey = mySourceKey;
+        if (indexFile == null || sourceKey == null) {
+            return;
+        }
+
+        File tempFile = null;
+        DataOutputStream stream = null;
+        try {
+            indexFile.getParentFile().mkdirs();
+            // several ZipFile instances might write the same index at once
+            tempFile = File.createTempFile(indexFile.getName() + ".", ".tmp", indexFile.getParentFile());
+            stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            stream.writeInt(INDEX_FILE_VERSION);
+            stream.writeUTF(sourceKey);
+            stream.writeInt(myFileHeaders.size());
+            for (LocalFileHeader header : myFileHeaders.values()) {
+                header.writeTo(stream);
+            }
+            stream.close();
+            stream = null;
+            if (!tempFile.renameTo(indexFile)) {
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            IOUtil.closeQuietly(stream);
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static int read2Bytes(byte[] data, int offset) {
+        return (data[offset] & 0xFF) + ((data[offset + 1] & 0xFF) << 8);
+    }
+
+    private static int read4Bytes(byte[] data, int offset) {
+        return read2Bytes(data, offset) + (read2Bytes(data, offset + 2) << 16);
     }
 
     /**
@@ -149,6 +338,24 @@ public final class ZipFile {
         return new ZipInputStream(this, header);
     }
 
+    /**
+     * Moves the stream to the data of the entry; for entries indexed from
+     * the central directory the local header is read once to find the data offset
+     */
+    void seekToData(MyBufferedInputStream baseStream, LocalFileHeader header) throws IOException {
+        if (header.DataOffset < 0) {
+            baseStream.setPosition(header.LocalHeaderOffset);
+            if (baseStream.read4Bytes() != LocalFileHeader.FILE_HEADER_SIGNATURE) {
+                throw new ZipException("Local header for " + header.FileName + " is not found");
+            }
+            baseStream.skip(22);
+            final int nameLength = baseStream.read2Bytes();
+            final int extraLength = baseStream.read2Bytes();
+            header.DataOffset = baseStream.offset() + nameLength + extraLength;
+        }
+        baseStream.setPosition(header.DataOffset);
+    }
+
     public boolean entryExists(String entryName) {
         try {
             return getHeader(entryName) != null;
@@ -166,6 +373,7 @@ public final class ZipFile {
     }
 
     public LocalFileHeader getHeader(String entryName) throws IOException {
+        readIndexedHeaders();
         if (!myFileHeaders.isEmpty()) {
             LocalFileHeader header = myFileHeaders.get(entryName);
             if (header != null) {